@@ -0,0 +1,209 @@
+package com.moonlit.logfaces.appenders.log4j2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Caller side of append: a memento queued for the dispatcher to format
+ * against the event encoded by the caller and queued as bytes, on heap or
+ * in the off-heap buffer. The benchmark
+ * samples append latency with a loopback sink draining the connection; main
+ * runs it and then measures heap retained per queued event while the server
+ * is down and nothing leaves the appender.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncodeOnAppendBenchmark {
+	private static final int RETAINED_EVENTS = 100000;
+
+	@Param({"memento", "encode", "direct"})
+	public String mode;
+
+	@Param({"xml", "binary"})
+	public String format;
+
+	private ServerSocket server;
+	private final List<Socket> accepted = new ArrayList<Socket>();
+	private LogfacesAppender appender;
+	private SortedArrayStringMap mdc;
+	private long sequence;
+
+	@Setup
+	public void setup() throws Exception {
+		server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				accept();
+			}
+		}, "sink");
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		appender = createAppender(mode, format, server.getLocalPort(), 8192);
+		while(!appender.socketManager.isOperational())
+			Thread.sleep(10);
+		mdc = context();
+	}
+
+	private void accept() {
+		while(!server.isClosed()) {
+			try {
+				final Socket socket = server.accept();
+				synchronized(accepted) {
+					accepted.add(socket);
+				}
+				Thread reader = new Thread(new Runnable() {
+					public void run() {
+						drain(socket);
+					}
+				}, "sink-reader");
+				reader.setDaemon(true);
+				reader.start();
+			}
+			catch(IOException e) {
+				return;
+			}
+		}
+	}
+
+	private static void drain(Socket socket) {
+		byte[] chunk = new byte[16 * 1024];
+		try {
+			InputStream in = socket.getInputStream();
+			while(in.read(chunk) >= 0)
+				;
+		}
+		catch(IOException e) {
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		appender.stop(1, TimeUnit.SECONDS);
+		server.close();
+		synchronized(accepted) {
+			for(Socket socket : accepted)
+				socket.close();
+		}
+	}
+
+	@Benchmark
+	public void append() {
+		appender.append(event(mdc, sequence++));
+	}
+
+	static LogfacesAppender createAppender(String mode, String format, int port, int queueSize) {
+		LogfacesAppender appender;
+		if("binary".equals(format))
+			appender = new LogfacesAppender("benchmark", new LogfacesBinaryLayout("benchmark", "localhost", false), null);
+		else
+			appender = new LogfacesAppender("benchmark", new LogfacesXmlLayout("benchmark", "localhost", false, StandardCharsets.UTF_8), null);
+		TcpManager tcp = new TcpManager("localhost", port, 1000, 3, appender.getLayout());
+		tcp.setBatching(16 * 1024, 20);
+		appender.setSocketManager(tcp);
+		appender.setQueueSize(queueSize);
+		appender.setAsyncBufferSize(256L * 1024 * 1024);
+		appender.setEncodeOnAppend("encode".equals(mode));
+		if("direct".equals(mode))
+			appender.setBufferBytes(256L * 1024 * 1024);
+		appender.start();
+		return appender;
+	}
+
+	static SortedArrayStringMap context() {
+		SortedArrayStringMap mdc = new SortedArrayStringMap();
+		mdc.putValue("user", "john.doe@example.com");
+		mdc.putValue("session", "8f14e45fceea167a5a36dedd4bea2543");
+		mdc.putValue("request", "GET /api/v1/orders?id=42");
+		return mdc;
+	}
+
+	/**
+	 * New message and parameters every time, as the logger would create them
+	 */
+	static LogEvent event(SortedArrayStringMap mdc, long sequence) {
+		return Log4jLogEvent.newBuilder()
+				.setLoggerName("com.example.orders.OrderService")
+				.setLevel(Level.INFO)
+				.setThreadName("http-nio-8080-exec-7")
+				.setTimeMillis(System.currentTimeMillis())
+				.setContextData(mdc)
+				.setMessage(new ParameterizedMessage("Order {} for customer {} reserved, {} items, total {}",
+						sequence, "john.doe", 3, 129.90))
+				.build();
+	}
+
+	/**
+	 * Heap taken by queued events: appends to a server which isn't there
+	 * and compares heap after full collections before and after
+	 */
+	static long retainedBytesPerEvent(String mode, String format) throws Exception {
+		ServerSocket closed = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		int port = closed.getLocalPort();
+		closed.close();
+
+		LogfacesAppender appender = createAppender(mode, format, port, RETAINED_EVENTS);
+		SortedArrayStringMap mdc = context();
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		// first event allocates the buffers, they are not per event
+		appender.append(event(mdc, 0));
+		long before = usedHeap(memory);
+		for(int i = 1; i < RETAINED_EVENTS; i++)
+			appender.append(event(mdc, i));
+		long after = usedHeap(memory);
+		// the slab is allocated up front, encoded events take their share of it
+		if(appender.encoded != null && !appender.encoded.isDirect())
+			after += appender.encoded.bytes();
+		appender.stop(0, TimeUnit.MILLISECONDS);
+		return (after - before) / (RETAINED_EVENTS - 1);
+	}
+
+	private static long usedHeap(MemoryMXBean memory) throws InterruptedException {
+		for(int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return memory.getHeapMemoryUsage().getUsed();
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(EncodeOnAppendBenchmark.class.getSimpleName()).build()).run();
+		for(String format : new String[] {"xml", "binary"}) {
+			for(String mode : new String[] {"memento", "encode", "direct"})
+				System.out.printf("retained heap %s %s: %d bytes per queued event%n", format, mode, retainedBytesPerEvent(mode, format));
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package com.moonlit.logfaces.appenders.log4j2;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.MarkerManager;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the byte array path (toSerializable followed by getBytes for the
+ * text layouts, as the socket managers used to do) with encoding straight
+ * into a reusable destination. Run with -prof gc to see the allocation rate
+ * per event.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LayoutBenchmark {
+	@Param({"xml", "json", "binary"})
+	public String format;
+
+	@Param({"false", "true"})
+	public boolean thrown;
+
+	private Layout<?> layout;
+	private BufferDestination destination;
+	private LogEvent event;
+
+	@Setup
+	public void setup() {
+		if("binary".equals(format))
+			layout = new LogfacesBinaryLayout("benchmark", "localhost", false);
+		else if("json".equals(format))
+			layout = new LogfacesJsonLayout("benchmark", "localhost", false, StandardCharsets.UTF_8);
+		else
+			layout = new LogfacesXmlLayout("benchmark", "localhost", false, StandardCharsets.UTF_8);
+		destination = new BufferDestination();
+
+		SortedArrayStringMap mdc = new SortedArrayStringMap();
+		mdc.putValue("user", "john.doe@example.com");
+		mdc.putValue("session", "8f14e45fceea167a5a36dedd4bea2543");
+		mdc.putValue("request", "GET /api/v1/orders?id=42");
+		event = Log4jLogEvent.newBuilder()
+				.setLoggerName("com.example.orders.OrderService")
+				.setLevel(Level.WARN)
+				.setThreadName("http-nio-8080-exec-7")
+				.setTimeMillis(System.currentTimeMillis())
+				.setMarker(MarkerManager.getMarker("AUDIT"))
+				.setContextData(mdc)
+				.setMessage(new SimpleMessage("Order 42 for customer <john.doe> could not be reserved, stock level is 0 & retry is scheduled"))
+				.setThrown(thrown ? new IllegalStateException("stock reservation failed") : null)
+				.build();
+	}
+
+	@Benchmark
+	public int toByteArray() {
+		return layout.toByteArray(event).length;
+	}
+
+	@Benchmark
+	public int encode() {
+		layout.encode(event, destination);
+		int size = destination.size();
+		destination.reset();
+		return size;
+	}
+}
@@ -0,0 +1,138 @@
+package com.moonlit.logfaces.appenders.log4j2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sustained throughput of the dispatcher handing events to a pool of 1 to 8
+ * loopback connections. The sink discards everything it reads; with read
+ * delay it pauses after each read the way a stream over a long link waits
+ * for acknowledgements, which is where more connections pay off. Sender
+ * queues fill up within the warmup, so the score is what the connections
+ * drain, not what the queues absorb.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(1)
+@Fork(1)
+public class TcpPoolBenchmark {
+	@Param({"1", "2", "4", "8"})
+	public int connections;
+
+	@Param({"0", "200"})
+	public long readDelayMicros;
+
+	private ServerSocket server;
+	private final List<Socket> accepted = new ArrayList<Socket>();
+	private SocketManager manager;
+	private LogEvent event;
+
+	@Setup
+	public void setup() throws Exception {
+		server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				accept();
+			}
+		}, "sink");
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		LogfacesBinaryLayout layout = new LogfacesBinaryLayout("benchmark", "localhost", false);
+		List<TcpManager> pool = new ArrayList<TcpManager>();
+		for(int i = 0; i < connections; i++) {
+			TcpManager tcp = new TcpManager("localhost", server.getLocalPort(), 1000, 3, layout);
+			tcp.setBatching(16 * 1024, 20);
+			pool.add(tcp);
+		}
+		manager = connections == 1 ? pool.get(0) : new TcpPool(pool);
+		manager.start();
+		while(!manager.isOperational())
+			Thread.sleep(10);
+
+		event = Log4jLogEvent.newBuilder()
+				.setLoggerName("com.example.orders.OrderService")
+				.setLevel(Level.INFO)
+				.setThreadName("http-nio-8080-exec-7")
+				.setTimeMillis(System.currentTimeMillis())
+				.setMessage(new SimpleMessage("Order 42 for customer john.doe reserved, 3 items, total 129.90"))
+				.build();
+	}
+
+	private void accept() {
+		while(!server.isClosed()) {
+			try {
+				final Socket socket = server.accept();
+				synchronized(accepted) {
+					accepted.add(socket);
+				}
+				Thread reader = new Thread(new Runnable() {
+					public void run() {
+						drain(socket);
+					}
+				}, "sink-reader");
+				reader.setDaemon(true);
+				reader.start();
+			}
+			catch(IOException e) {
+				return;
+			}
+		}
+	}
+
+	private void drain(Socket socket) {
+		byte[] chunk = new byte[16 * 1024];
+		try {
+			InputStream in = socket.getInputStream();
+			while(in.read(chunk) >= 0) {
+				if(readDelayMicros > 0)
+					LockSupport.parkNanos(readDelayMicros * 1000);
+			}
+		}
+		catch(IOException e) {
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		manager.stop();
+		server.close();
+		synchronized(accepted) {
+			for(Socket socket : accepted)
+				socket.close();
+		}
+	}
+
+	@Benchmark
+	public boolean send() {
+		return manager.send(event);
+	}
+}
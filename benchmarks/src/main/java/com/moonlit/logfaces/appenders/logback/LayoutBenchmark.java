@@ -0,0 +1,76 @@
+package com.moonlit.logfaces.appenders.logback;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.MarkerFactory;
+
+import com.moonlit.logfaces.appenders.util.EventBuffer;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+/**
+ * Same event as the log4j2 layout benchmark, encoded by the logback layouts
+ * into a reusable buffer the way the appender does on its dispatcher.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LayoutBenchmark {
+	@Param({"xml", "json", "binary"})
+	public String format;
+
+	@Param({"false", "true"})
+	public boolean thrown;
+
+	private LogfacesLayout layout;
+	private EventBuffer buffer;
+	private LoggingEvent event;
+
+	@Setup
+	public void setup() {
+		layout = "binary".equals(format) ?
+				new LogfacesBinaryLayout("benchmark", true, false) :
+				new LogfacesLayout("json".equals(format), "benchmark", true, false);
+		buffer = new EventBuffer();
+
+		LoggerContext context = new LoggerContext();
+		Logger logger = context.getLogger("com.example.orders.OrderService");
+		event = new LoggingEvent(Logger.class.getName(), logger, Level.WARN,
+				"Order {} for customer <{}> could not be reserved, stock level is 0 & retry is scheduled",
+				thrown ? new IllegalStateException("stock reservation failed") : null, new Object[] {42, "john.doe"});
+		Map<String, String> mdc = new HashMap<String, String>();
+		mdc.put("user", "john.doe@example.com");
+		mdc.put("session", "8f14e45fceea167a5a36dedd4bea2543");
+		mdc.put("request", "GET /api/v1/orders?id=42");
+		event.setMDCPropertyMap(mdc);
+		event.addMarker(MarkerFactory.getMarker("AUDIT"));
+		event.setThreadName("http-nio-8080-exec-7");
+	}
+
+	@Benchmark
+	public int encode() {
+		layout.encode(event, buffer);
+		int size = buffer.size();
+		buffer.reset();
+		return size;
+	}
+}
@@ -0,0 +1,341 @@
+package com.moonlit.logfaces.appenders.receiver;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.core.config.Configurator;
+import org.apache.logging.log4j.core.config.builder.api.AppenderComponentBuilder;
+import org.apache.logging.log4j.core.config.builder.api.ConfigurationBuilder;
+import org.apache.logging.log4j.core.config.builder.api.ConfigurationBuilderFactory;
+import org.apache.logging.log4j.core.config.builder.impl.BuiltConfiguration;
+import org.slf4j.LoggerFactory;
+
+import com.moonlit.logfaces.appenders.util.AppenderMetrics;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.core.status.Status;
+
+/**
+ * Drives log4j2 and logback appenders against LocalReceiver and reports
+ * sustained throughput and loss. Every event carries a sequence number, the
+ * receiver tracks which arrived, so loss and duplicates are exact. Events
+ * the appender dropped on purpose (full queue, shedding) are reported apart
+ * from those lost after the appender accepted them.
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar com.moonlit.logfaces.appenders.receiver.LoadDriver [key=value ...]
+ *
+ *   framework=log4j2,logback  appenders to drive, one after another
+ *   protocol=tcp              tcp, nio or udp (log4j2 only)
+ *   format=binary             xml, json or binary
+ *   threads=4                 application threads logging
+ *   seconds=10                duration of the run
+ *   rate=0                    events per second per thread, 0 as fast as possible
+ *   size=100                  message length
+ *
+ *   readDelay=0               receiver pauses ms before every read
+ *   readRate=0                receiver reads bytes per second per connection
+ *   resetAfter=0              receiver resets each connection after this many events
+ *   resetEvery=0              receiver resets all connections every ms
+ *   stall=0                   receiver stops reading for ms, starting at a third of the run
+ * </pre>
+ *
+ * Other keys are set on the appenders as they are, like queueSize=10000 or
+ * compression=deflate.
+ */
+public class LoadDriver {
+	private static final Map<String, String> DEFAULTS = new LinkedHashMap<String, String>();
+	static {
+		DEFAULTS.put("framework", "log4j2,logback");
+		DEFAULTS.put("protocol", "tcp");
+		DEFAULTS.put("format", "binary");
+		DEFAULTS.put("threads", "4");
+		DEFAULTS.put("seconds", "10");
+		DEFAULTS.put("rate", "0");
+		DEFAULTS.put("size", "100");
+		DEFAULTS.put("readDelay", "0");
+		DEFAULTS.put("readRate", "0");
+		DEFAULTS.put("resetAfter", "0");
+		DEFAULTS.put("resetEvery", "0");
+		DEFAULTS.put("stall", "0");
+	}
+
+	/**
+	 * Appender under load
+	 */
+	static abstract class Target {
+		abstract void log(String message);
+		abstract AppenderMetrics metrics();
+		abstract void stop();
+	}
+
+	private final Map<String, String> options = new LinkedHashMap<String, String>(DEFAULTS);
+	private final Map<String, String> appenderOptions = new LinkedHashMap<String, String>();
+	private volatile boolean producing;
+
+	public LoadDriver(String[] args) {
+		for(String arg : args) {
+			int eq = arg.indexOf('=');
+			if(eq <= 0)
+				throw new IllegalArgumentException("expected key=value, got " + arg);
+			String key = arg.substring(0, eq);
+			if(DEFAULTS.containsKey(key))
+				options.put(key, arg.substring(eq + 1));
+			else
+				appenderOptions.put(key, arg.substring(eq + 1));
+		}
+	}
+
+	private long option(String key) {
+		return Long.parseLong(options.get(key));
+	}
+
+	public void run() throws Exception {
+		for(String framework : options.get("framework").split(",")) {
+			framework = framework.trim();
+			if("logback".equals(framework) && "udp".equalsIgnoreCase(options.get("protocol"))) {
+				System.out.println("logback: udp is not supported, skipped");
+				continue;
+			}
+			run(framework);
+		}
+	}
+
+	private void run(String framework) throws Exception {
+		SequenceTracker tracker = new SequenceTracker();
+		LocalReceiver receiver = new LocalReceiver(0, tracker);
+		receiver.start();
+		if("udp".equalsIgnoreCase(options.get("protocol")))
+			receiver.startUdp();
+		receiver.setReadDelay(option("readDelay"));
+		receiver.setReadRate(option("readRate"));
+		receiver.setResetAfter(option("resetAfter"));
+
+		final Target target = "logback".equals(framework) ? logback(receiver.getPort()) : log4j2(receiver.getPort());
+		long deadline = System.currentTimeMillis() + 5000;
+		while(receiver.getConnections() == 0 && !"udp".equalsIgnoreCase(options.get("protocol")) && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+
+		final AtomicLong sequence = new AtomicLong();
+		final long rate = option("rate");
+		final String payload = payload((int)option("size"));
+		List<Thread> producers = new ArrayList<Thread>();
+		for(int i = 0; i < option("threads"); i++) {
+			Thread producer = new Thread(new Runnable() {
+				public void run() {
+					long interval = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+					long next = System.nanoTime();
+					while(producing) {
+						target.log("seq=" + sequence.getAndIncrement() + " " + payload);
+						if(interval > 0) {
+							next += interval;
+							long wait = next - System.nanoTime();
+							if(wait > 0)
+								LockSupport.parkNanos(wait);
+						}
+					}
+				}
+			}, "load-" + i);
+			producers.add(producer);
+		}
+
+		long seconds = option("seconds");
+		long resetEvery = option("resetEvery");
+		long stall = option("stall");
+		long start = System.currentTimeMillis();
+		long end = start + TimeUnit.SECONDS.toMillis(seconds);
+		long stallFrom = start + TimeUnit.SECONDS.toMillis(seconds) / 3;
+		long nextReset = resetEvery > 0 ? start + resetEvery : Long.MAX_VALUE;
+		long nextReport = start + 1000;
+		long lastReceived = 0;
+		producing = true;
+		for(Thread producer : producers)
+			producer.start();
+
+		while(true) {
+			Thread.sleep(10);
+			long now = System.currentTimeMillis();
+			if(now >= end)
+				break;
+			boolean stalled = stall > 0 && now >= stallFrom && now < stallFrom + stall;
+			receiver.setStalled(stalled);
+			if(now >= nextReset) {
+				receiver.resetConnections();
+				nextReset += resetEvery;
+			}
+			if(now >= nextReport) {
+				long received = tracker.getReceived();
+				System.out.printf("%s %3ds: logged %d, received %d (%d/s), connections %d%s%n", framework, (now - start) / 1000,
+						sequence.get(), received, received - lastReceived, receiver.getConnections(), stalled ? ", stalled" : "");
+				lastReceived = received;
+				nextReport += 1000;
+			}
+		}
+
+		producing = false;
+		for(Thread producer : producers)
+			producer.join();
+		long logged = sequence.get();
+		long elapsed = System.currentTimeMillis() - start;
+		receiver.setStalled(false);
+		AppenderMetrics metrics = target.metrics();
+		long drained = drain(tracker, metrics, start);
+		long dropped = metrics.getDropped();
+		long sent = metrics.getSent();
+		target.stop();
+		drained = Math.max(drained, drain(tracker, metrics, start));
+		receiver.close();
+
+		long distinct = tracker.getDistinct();
+		long lost = tracker.getLost(logged);
+		System.out.printf("%s %s/%s, %s threads, %d s%n", framework, options.get("protocol"), options.get("format"), options.get("threads"), seconds);
+		System.out.printf("  logged     %d (%d/s)%n", logged, logged * 1000 / Math.max(elapsed, 1));
+		System.out.printf("  received   %d (%d/s), duplicates %d%n", distinct, distinct * 1000 / Math.max(drained, 1), tracker.getDuplicates());
+		System.out.printf("  dropped    %d by appender, %d lost after accepted, %d in total%n", dropped, lost - dropped, lost);
+		System.out.printf("  appender   sent %d%n", sent);
+		System.out.printf("  receiver   %d bytes, %d resets, %d errors%n", receiver.getBytes(), receiver.getResets(), receiver.getErrors());
+		if(lost > 0)
+			System.out.println("  missing    " + tracker.missing(logged, 5));
+	}
+
+	/**
+	 * Waits until appender queue is empty and events stop coming, at most 30 seconds,
+	 * which covers reconnection delays
+	 * @return ms from start to the last event received
+	 */
+	private static long drain(SequenceTracker tracker, AppenderMetrics metrics, long start) throws InterruptedException {
+		long received = tracker.getReceived();
+		long last = System.currentTimeMillis();
+		long deadline = last + 30000;
+		while(System.currentTimeMillis() < deadline) {
+			Thread.sleep(100);
+			long now = tracker.getReceived();
+			if(now != received) {
+				received = now;
+				last = System.currentTimeMillis();
+			}
+			else if(metrics.getQueueDepth() == 0 && System.currentTimeMillis() - last >= 500)
+				break;
+		}
+		return last - start;
+	}
+
+	private static String payload(int size) {
+		String words = "order 42 for customer john.doe reserved, 3 items, total 129.90, warehouse eu-west ";
+		StringBuilder buf = new StringBuilder(size);
+		while(buf.length() < size)
+			buf.append(words);
+		buf.setLength(size);
+		return buf.toString();
+	}
+
+	private Target log4j2(int port) {
+		ConfigurationBuilder<BuiltConfiguration> builder = ConfigurationBuilderFactory.newConfigurationBuilder();
+		builder.setConfigurationName("load");
+		builder.setStatusLevel(org.apache.logging.log4j.Level.ERROR);
+		builder.setPackages("com.moonlit.logfaces.appenders.log4j2");
+		AppenderComponentBuilder appender = builder.newAppender("load", "logFaces")
+				.addAttribute("protocol", options.get("protocol"))
+				.addAttribute("format", options.get("format"))
+				.addAttribute("remoteHost", "localhost")
+				.addAttribute("port", port)
+				.addAttribute("application", "load");
+		for(Map.Entry<String, String> option : appenderOptions.entrySet())
+			appender.addAttribute(option.getKey(), option.getValue());
+		builder.add(appender);
+		builder.add(builder.newRootLogger(org.apache.logging.log4j.Level.INFO).add(builder.newAppenderRef("load")));
+
+		final org.apache.logging.log4j.core.LoggerContext context = Configurator.initialize(builder.build());
+		final org.apache.logging.log4j.Logger logger = context.getLogger(LoadDriver.class.getName());
+		final com.moonlit.logfaces.appenders.log4j2.LogfacesAppender lfa = context.getConfiguration().getAppender("load");
+		if(lfa == null)
+			throw new IllegalStateException("log4j2 appender failed to start, see status messages");
+		return new Target() {
+			void log(String message) {
+				logger.info(message);
+			}
+
+			AppenderMetrics metrics() {
+				return lfa.getMetrics();
+			}
+
+			void stop() {
+				Configurator.shutdown(context);
+			}
+		};
+	}
+
+	private Target logback(int port) throws Exception {
+		final LoggerContext context = (LoggerContext)LoggerFactory.getILoggerFactory();
+		final com.moonlit.logfaces.appenders.logback.LogfacesAppender lfa = new com.moonlit.logfaces.appenders.logback.LogfacesAppender();
+		lfa.setContext(context);
+		lfa.setName("load");
+		lfa.setProtocol(options.get("protocol"));
+		lfa.setFormat(options.get("format"));
+		lfa.setRemoteHost("localhost");
+		lfa.setPort(port);
+		lfa.setApplication("load");
+		for(Map.Entry<String, String> option : appenderOptions.entrySet())
+			set(lfa, option.getKey(), option.getValue());
+		lfa.start();
+
+		final Logger logger = context.getLogger(LoadDriver.class.getName());
+		logger.setLevel(Level.INFO);
+		logger.setAdditive(false);
+		logger.addAppender(lfa);
+		return new Target() {
+			void log(String message) {
+				logger.info(message);
+			}
+
+			AppenderMetrics metrics() {
+				return lfa.getMetrics();
+			}
+
+			void stop() {
+				lfa.stop();
+				context.stop();
+				for(Status status : context.getStatusManager().getCopyOfStatusList()) {
+					if(status.getLevel() >= Status.ERROR)
+						System.out.println("  status     " + status.getMessage() + (status.getThrowable() != null ? status.getThrowable() : ""));
+				}
+			}
+		};
+	}
+
+	/**
+	 * Sets appender property the way logback configurator would
+	 */
+	private static void set(Object bean, String key, String value) throws Exception {
+		String name = "set" + Character.toUpperCase(key.charAt(0)) + key.substring(1);
+		for(Method method : bean.getClass().getMethods()) {
+			if(!method.getName().equals(name) || method.getParameterTypes().length != 1)
+				continue;
+			Class<?> type = method.getParameterTypes()[0];
+			if(type == String.class)
+				method.invoke(bean, value);
+			else if(type == int.class)
+				method.invoke(bean, Integer.parseInt(value));
+			else if(type == long.class)
+				method.invoke(bean, Long.parseLong(value));
+			else if(type == boolean.class)
+				method.invoke(bean, Boolean.parseBoolean(value));
+			else
+				continue;
+			return;
+		}
+		throw new IllegalArgumentException("logback appender has no property " + key);
+	}
+
+	public static void main(String[] args) throws Exception {
+		new LoadDriver(args).run();
+	}
+}
@@ -0,0 +1,91 @@
+package com.moonlit.logfaces.appenders.util;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Escaping of typical event fields, regex based implementation
+ * which Utils used to have against the table driven Escaper.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EscapeBenchmark {
+	private static final String CONTROL_REGEX = "[\\p{Cntrl}&&[^\r\n\t]]|[\\ufffe-\\uffff]";
+
+	@Param({"message", "mdc", "quoted", "stacktrace"})
+	public String input;
+
+	private String text;
+	private final StringBuilder buf = new StringBuilder(16 * 1024);
+
+	@Setup
+	public void setup() {
+		if("message".equals(input)) {
+			text = "Order 42 for customer john.doe could not be reserved, stock level is 0, retry is scheduled in 30 seconds";
+		}
+		else if("mdc".equals(input)) {
+			text = "8f14e45fceea167a5a36dedd4bea2543";
+		}
+		else if("quoted".equals(input)) {
+			text = "Request \"GET /api/v1/orders?id=42&expand=<lines>\" failed with C:\\temp\\orders.tmp locked";
+		}
+		else {
+			StringWriter sw = new StringWriter();
+			new IllegalStateException("stock reservation failed", new RuntimeException("connection refused")).printStackTrace(new PrintWriter(sw));
+			text = sw.toString();
+		}
+	}
+
+	@Benchmark
+	public String regexXml() {
+		return text.replaceAll(CONTROL_REGEX, "");
+	}
+
+	@Benchmark
+	public String regexJson() {
+		String out = text.replace("\\", "\\\\");
+		out = out.replace("\"", "\\\"");
+		return out.replaceAll(CONTROL_REGEX, "");
+	}
+
+	@Benchmark
+	public String escapeXml() {
+		return Escaper.CONTROL.escape(text);
+	}
+
+	@Benchmark
+	public String escapeJson() {
+		return Escaper.JSON.escape(text);
+	}
+
+	@Benchmark
+	public int appendCData() {
+		buf.setLength(0);
+		Escaper.CDATA.append(buf, text);
+		return buf.length();
+	}
+
+	@Benchmark
+	public int appendJson() {
+		buf.setLength(0);
+		Escaper.JSON.append(buf, text);
+		return buf.length();
+	}
+}
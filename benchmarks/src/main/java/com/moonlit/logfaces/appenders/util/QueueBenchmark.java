@@ -0,0 +1,98 @@
+package com.moonlit.logfaces.appenders.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Application threads handing events over to a single dispatcher, the fair
+ * ArrayBlockingQueue appenders used to create against MpscQueue. Benchmark
+ * threads are the producers, one background thread drains in batches as the
+ * dispatchers do. Run main to get the whole sweep from 1 to 64 producers,
+ * or pick a single count with -t.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueueBenchmark {
+	private static final int[] PRODUCERS = {1, 2, 4, 8, 16, 32, 64};
+	private static final Object EVENT = new Object();
+
+	@Param({"fair", "mpsc"})
+	public String queue;
+
+	@Param({"500", "8192"})
+	public int capacity;
+
+	private BlockingQueue<Object> q;
+	private Thread consumer;
+	private volatile boolean running;
+
+	@Setup
+	public void setup() {
+		q = "fair".equals(queue) ? new ArrayBlockingQueue<Object>(capacity, true) : new MpscQueue<Object>(capacity);
+		running = true;
+		consumer = new Thread(new Runnable() {
+			public void run() {
+				List<Object> batch = new ArrayList<Object>(256);
+				while(running) {
+					try {
+						Object first = q.poll(100, TimeUnit.MILLISECONDS);
+						if(first == null)
+							continue;
+						batch.add(first);
+						q.drainTo(batch, 255);
+						batch.clear();
+					}
+					catch(InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}, "consumer");
+		consumer.setDaemon(true);
+		consumer.start();
+	}
+
+	@TearDown
+	public void tearDown() throws InterruptedException {
+		running = false;
+		consumer.join();
+	}
+
+	@Benchmark
+	public boolean offer() throws InterruptedException {
+		return q.offer(EVENT, 100, TimeUnit.MILLISECONDS);
+	}
+
+	public static void main(String[] args) throws Exception {
+		for(int producers : PRODUCERS) {
+			Options options = new OptionsBuilder()
+					.include(QueueBenchmark.class.getSimpleName())
+					.threads(producers)
+					.build();
+			new Runner(options).run();
+		}
+	}
+}
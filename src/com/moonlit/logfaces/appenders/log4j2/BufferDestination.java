@@ -0,0 +1,41 @@
+/*
+ * This is a derivative work of Apache log4j project and adapted for logFaces.
+ * All credits go to the authors of log4j framework whose source code is re-used.
+ * 
+ * ******************************************************************************** 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package com.moonlit.logfaces.appenders.log4j2;
+
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+
+import com.moonlit.logfaces.appenders.util.EventBuffer;
+
+/**
+ * Reusable destination owned by socket managers, layouts encode
+ * events straight into it without intermediate strings.
+ */
+public class BufferDestination extends EventBuffer implements ByteBufferDestination{
+
+	public BufferDestination() {
+		super();
+	}
+
+	public BufferDestination(int capacity) {
+		super(capacity);
+	}
+}
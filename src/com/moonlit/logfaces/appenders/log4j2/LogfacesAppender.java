@@ -21,11 +21,16 @@
 
 package com.moonlit.logfaces.appenders.log4j2;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.nio.charset.Charset;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
 
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.core.Appender;
@@ -41,10 +46,28 @@ import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
 import org.apache.logging.log4j.core.config.plugins.PluginConfiguration;
 import org.apache.logging.log4j.core.config.plugins.PluginElement;
 import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.apache.logging.log4j.core.impl.ContextDataFactory;
 import org.apache.logging.log4j.core.impl.Log4jLogEvent;
-import org.apache.logging.log4j.core.layout.AbstractStringLayout;
 import org.apache.logging.log4j.core.net.ssl.SslConfiguration;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.ParameterConsumer;
+import org.apache.logging.log4j.message.ParameterVisitable;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.StringMap;
 
+import com.moonlit.logfaces.appenders.util.AppenderMetrics;
+import com.moonlit.logfaces.appenders.util.Balancer;
+import com.moonlit.logfaces.appenders.util.ByteRing;
+import com.moonlit.logfaces.appenders.util.Coalescer;
+import com.moonlit.logfaces.appenders.util.DispatchLoop;
+import com.moonlit.logfaces.appenders.util.EventBuffer;
+import com.moonlit.logfaces.appenders.util.EventQueue;
+import com.moonlit.logfaces.appenders.util.Journal;
+import com.moonlit.logfaces.appenders.util.LatencyHistogram;
+import com.moonlit.logfaces.appenders.util.MpscQueue;
+import com.moonlit.logfaces.appenders.util.PriorityLanes;
+import com.moonlit.logfaces.appenders.util.RateLimiter;
+import com.moonlit.logfaces.appenders.util.SegmentLog;
 import com.moonlit.logfaces.appenders.util.Utils;
 
 
@@ -56,16 +79,113 @@ public class LogfacesAppender extends AbstractAppender{
 	public static final int DEFAULT_NOF_RETRIES = 3;
 	public static final int DEFAULT_OFFER_TIMEOUT = 0;
 	public static final int READ_QUEUE_TIMEOUT = 5000;
+	public static final int DEFAULT_BATCH_SIZE = 0;
+	public static final int DEFAULT_LINGER_TIME = 20;
+	public static final int MAX_BATCH_SIZE = 256;
+	public static final long DEFAULT_SPILL_SIZE = 256 * 1024 * 1024;
+	protected static final int MAX_REPLAY_SIZE = 64 * 1024;
+	public static final long DEFAULT_ASYNC_BUFFER_SIZE = 4 * 1024 * 1024;
+	public static final String REPEATS_KEY = "repeats";
+	public static final long DEFAULT_LATENCY_REPORT = 60000;
+	// async backpressure not set and plain wait, which takes offerTimeout
+	static final long ASYNC_WAIT_DEFAULT = Long.MIN_VALUE;
+	static final long ASYNC_WAIT_OFFER = -2;
 	
 	protected SocketManager socketManager;
 	protected String backupRef;
 	protected Appender backup;
-	protected BlockingQueue<LogEvent>  queue;
+	protected EventQueue<LogEvent>  queue;
+	// lanes per level when shedding is configured, the queue is the lanes then
+	protected String shedding;
+	protected PriorityLanes<LogEvent> lanes;
+	// limits of runaway loggers, checked before anything else is done with the event
+	protected RateLimiter limiter;
+	// repeats of the same event within a window are counted instead of sent
+	protected Coalescer<LogEvent> coalescer;
+	// running hash handed to parameter visits, saves copying reusable messages' parameters
+	private static final ThreadLocal<long[]> hashes = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[1];
+		}
+	};
+	private static final ParameterConsumer<long[]> PARAMETER_HASH = new ParameterConsumer<long[]>() {
+		@Override
+		public void accept(Object parameter, int index, long[] h) {
+			h[0] = Coalescer.hash(h[0], parameter != null ? parameter.hashCode() : 0);
+		}
+	};
 	private Dispatcher dispatcher;
 	protected int queueSize = DEFAULT_QUEUE_SIZE;
 	protected long offerTimeout = DEFAULT_OFFER_TIMEOUT;
+	protected long lingerTime;
 	protected int warnOverflow;
 	protected boolean locationInfo;
+	// disk spill taking events the queue can't, disabled without directory
+	protected String spillDir;
+	protected long spillSize = DEFAULT_SPILL_SIZE;
+	protected SegmentLog spill;
+	// journal takes every event ahead of sending, the spill is the journal then
+	protected String journalDir;
+	protected long journalSync = Journal.DEFAULT_SYNC_INTERVAL;
+	protected boolean journaling;
+	// events of async loggers encoded on the ring thread, and of all
+	// loggers when encoding on append, the queue is left empty then
+	protected volatile ByteRing encoded;
+	protected boolean encodeOnAppend;
+	// bytes of off-heap buffer taking all encoded events, bounds them instead of queue size
+	protected long bufferBytes;
+	protected long asyncBufferSize = DEFAULT_ASYNC_BUFFER_SIZE;
+	protected String asyncBackpressure;
+	// wait of hand over for space, parsed from backpressure
+	protected long asyncWait = ASYNC_WAIT_DEFAULT;
+	protected final AtomicLong asyncDropped = new AtomicLong();
+	// latencies of enqueueing on caller thread, waiting in the queue or buffer
+	// and encoding plus writing on the dispatcher, only when measured
+	protected boolean measureLatency;
+	protected long latencyReport = DEFAULT_LATENCY_REPORT;
+	protected LatencyHistogram enqueueLatency, queueLatency, sendLatency;
+	// counters of the pipeline, registered as MBean unless jmx is off
+	protected boolean jmx = true;
+	protected final AppenderMetrics metrics = new AppenderMetrics() {
+		@Override
+		public int getQueueDepth() {
+			return getQueuedEvents();
+		}
+
+		@Override
+		public int getQueueCapacity() {
+			EventQueue<LogEvent> q = queue;
+			return q != null ? q.capacity() : queueSize;
+		}
+
+		@Override
+		public long getBytesSent() {
+			return socketManager.getBytesWritten();
+		}
+
+		@Override
+		public long getReconnects() {
+			return socketManager.getReconnects();
+		}
+
+		@Override
+		public String getCurrentHost() {
+			return socketManager.getCurrentHost();
+		}
+
+		@Override
+		public long getDisconnectedMillis() {
+			return socketManager.getDisconnectedMillis();
+		}
+	};
+	// events encoded on caller threads go through these
+	private final ThreadLocal<BufferDestination> buffers = new ThreadLocal<BufferDestination>() {
+		@Override
+		protected BufferDestination initialValue() {
+			return new BufferDestination();
+		}
+	};
 	private Configuration config;
 	private String cls = getClass().getSimpleName();
 	
@@ -79,22 +199,41 @@ public class LogfacesAppender extends AbstractAppender{
     @Override
     public void start() {
     	setStarting();
-    	queue = new ArrayBlockingQueue<LogEvent>(queueSize, true);
+    	if(shedding != null)
+    		queue = lanes = createLanes();
+    	else
+    		queue = new MpscQueue<LogEvent>(queueSize);
+    	if(bufferBytes > 0)
+    		allocateBuffer();
+    	if(measureLatency) {
+    		enqueueLatency = new LatencyHistogram();
+    		queueLatency = new LatencyHistogram();
+    		sendLatency = new LatencyHistogram();
+    		queue.measureResidence(queueLatency);
+    		if(encoded != null)
+    			encoded.measureResidence(queueLatency);
+    	}
+    	if(spillDir != null || journalDir != null)
+    		openSpill();
 		if(backupRef != null)
 			backup = config.getAppenders().get(backupRef);
 
 		dispatcher = new Dispatcher();
-		dispatcher.setName("LogfacesDispatcher");
-		dispatcher.setDaemon(true);
+		queue.setConsumer(dispatcher);
+		if(spill != null)
+			spill.setReader(dispatcher);
+		setStarted();
 		dispatcher.start();
-		while(!isStarted()){
+    	
+		socketManager.start();
+		if(jmx) {
 			try {
-				Thread.sleep(10);
-			} catch (InterruptedException e) {
+				metrics.register("log4j2", getName());
+			}
+			catch(Exception e) {
+				LOGGER.warn("{} metrics not registered with JMX: {}", cls, e.getMessage());
 			}
 		}
-    	
-		socketManager.start();
 		LOGGER.trace("{} started",  cls);
     }
 
@@ -105,15 +244,19 @@ public class LogfacesAppender extends AbstractAppender{
     	// the call is blocked until dispatcher is done fluching the queue
     	setStopping();
 		try {
-			dispatcher.interrupt();
+			dispatcher.wakeUp();
 			dispatcher.join(timeUnit.toMillis(timeout));
 		} catch(Exception e) {
 		}
     	
 		socketManager.stop();
+		long undelivered = socketManager.getUndelivered();
+		metrics.dropped(undelivered);
+		closeSpill();
+		metrics.unregister();
 		setStopped();
 		
-		boolean ok = !dispatcher.isAlive() && dispatcher.orphans == 0 && queue.isEmpty();
+		boolean ok = !dispatcher.isAlive() && dispatcher.orphans == 0 && undelivered == 0 && queue.isEmpty();
 		LOGGER.log(ok ? Level.TRACE:Level.WARN, "{} stopped {}",  cls, ok ? "OK" : "with problems");
 		return ok;
     }
@@ -122,32 +265,160 @@ public class LogfacesAppender extends AbstractAppender{
     public void append(final LogEvent event) {
     	if(event == null || !isStarted())
     		return;
-    	
+
+    	if(limiter != null){
+    		RateLimiter.Rule rule = limiter.match(event.getLoggerName(), severityOf(event));
+    		if(rule != null && !rule.tryAcquire(event.getLoggerName()))
+    			return;
+    	}
+    	LogEvent forward = event;
+    	if(coalescer != null){
+    		long repeats = coalescer.check(hashOf(event), event.getTimeMillis(), event);
+    		if(repeats == Coalescer.SWALLOW)
+    			return;
+    		if(repeats > 0)
+    			forward = withRepeats(event, repeats);
+    	}
+    	LatencyHistogram latency = enqueueLatency;
+    	if(latency == null) {
+    		enqueue(forward);
+    		return;
+    	}
+    	long started = System.nanoTime();
+    	enqueue(forward);
+    	latency.record(System.nanoTime() - started);
+    }
+
+    /**
+     * Hash of message pattern, parameters, level and logger, same as logback,
+     * only messages without a pattern are formatted
+     */
+    private long hashOf(LogEvent event) {
+    	long h = Coalescer.SEED;
+    	Message message = event.getMessage();
+    	if(message instanceof ParameterVisitable) {
+    		long[] state = hashes.get();
+    		state[0] = Coalescer.hash(h, message.getFormat());
+    		((ParameterVisitable)message).forEachParameter(PARAMETER_HASH, state);
+    		h = state[0];
+    	}
+    	else if(message != null) {
+    		String format = message.getFormat();
+    		h = Coalescer.hash(h, format != null ? format : message.getFormattedMessage());
+    		Object[] parameters = message.getParameters();
+    		if(parameters != null) {
+    			for(Object parameter : parameters)
+    				h = Coalescer.hash(h, parameter != null ? parameter.hashCode() : 0);
+    		}
+    	}
+    	h = Coalescer.hash(h, event.getLevel().intLevel());
+    	String logger = event.getLoggerName();
+    	return Coalescer.mix(Coalescer.hash(h, logger != null ? logger.hashCode() : 0));
+    }
+
+    /**
+     * Copy of the event with number of repeats swallowed before it in context data
+     */
+    private LogEvent withRepeats(LogEvent event, long repeats) {
+    	StringMap data = ContextDataFactory.createContextData(event.getContextData());
+    	data.putValue(REPEATS_KEY, String.valueOf(repeats));
+    	return new Log4jLogEvent.Builder(event).setContextData(data).build();
+    }
+
+    /**
+     * Event telling how many events of a limited logger were suppressed
+     */
+    private LogEvent summary(String logger, long suppressed) {
+    	return Log4jLogEvent.newBuilder()
+    			.setLoggerName(logger)
+    			.setLevel(Level.WARN)
+    			.setThreadName(Thread.currentThread().getName())
+    			.setTimeMillis(System.currentTimeMillis())
+    			.setMessage(new SimpleMessage("suppressed " + suppressed + " events from logger " + logger))
+    			.build();
+    }
+
+    /**
+     * @return 0 for fatal and error to 4 for trace, same as rate limits and lanes
+     */
+    static int severityOf(LogEvent event) {
+    	int level = event.getLevel().intLevel();
+    	if(level <= Level.ERROR.intLevel())
+    		return 0;
+    	if(level <= Level.WARN.intLevel())
+    		return 1;
+    	if(level <= Level.INFO.intLevel())
+    		return 2;
+    	return level <= Level.DEBUG.intLevel() ? 3 : 4;
+    }
+
+    /**
+     * Queues an event the appender made up itself, without waiting for room,
+     * spill or backup; it may come from the dispatcher, which would wait for itself
+     */
+    private void enqueueNow(LogEvent event) {
+    	if(queue.offer(event))
+    		metrics.enqueued();
+    	else
+    		metrics.dropped(1);
+    }
+
+    private void enqueue(final LogEvent event) {
 		event.getContextStack();
 		event.getThreadName();
 		event.getContextData();
 		if(locationInfo)
 			event.getSource();
     	
-		// if async stuff, send it directly out
+		// journaled events go to the socket only through the journal
+		if(journaling && spill(event)) {
+			metrics.enqueued();
+			return;
+		}
+
+		// async loggers hand bytes over, the ring must not wait for the network
     	if(event instanceof RingBufferLogEvent){
-    		socketManager.send(event);
+    		handOver(event);
     		return;
     	}
     	
 		try {
+			// once spilling, events queue up behind the spilled ones
+			if(spill != null && !spill.isEmpty() && spill(event)) {
+				metrics.enqueued();
+				return;
+			}
+
+			// only the bytes are kept, dispatcher doesn't format anything
+			if(encodeOnAppend){
+				handOver(event);
+				return;
+			}
+
 	    	// must clone to avoid GC optimization reusing same objects
 	    	LogEvent clone = Log4jLogEvent.createMemento(event, locationInfo);
 			if(!queue.offer(clone, offerTimeout, TimeUnit.MILLISECONDS)){
+				if(spill != null && spill(event)){
+					metrics.enqueued();
+					if(warnOverflow++ == 0)
+						LOGGER.warn("{} queue is full with {} events, spilling to {}", cls, queue.size(), spillDir);
+					return;
+				}
 				if(warnOverflow++ == 0){
 					LOGGER.warn("{} queue is full with {} events. If you see this message it means that queue size needs to be increased or amount of produced log events decreased.", cls, queue.size());
 					LOGGER.warn("{} {}", cls, (backup == null)?"fall back is disabled":"backup appender activated; You can later import this data into the logfaces server manually.");
 				}
-				if(backup != null)
+				if(backup != null) {
 					backup.append(event);
+					metrics.backup();
+				}
+				else {
+					metrics.dropped(1);
+				}
 				return;
 			}
 
+			metrics.enqueued();
 			warnOverflow = 0;
 		}
 		catch(InterruptedException e) {
@@ -157,6 +428,191 @@ public class LogfacesAppender extends AbstractAppender{
 		}
     }
     
+    /**
+     * Encodes event on the calling thread (ring thread of async loggers or
+     * the application thread when encoding on append) and passes the bytes
+     * to the dispatcher. When they don't fit, backpressure decides: drop
+     * overflows right away, wait gives it offerTimeout, wait:&lt;ms&gt; the
+     * milliseconds, block waits for space.
+     * Without backpressure set async loggers drop and the others wait as they
+     * would for the queue. Overflow goes to the spill, backup appender or is
+     * dropped, in that order.
+     */
+    protected void handOver(LogEvent event) {
+    	BufferDestination buffer = buffers.get();
+    	try {
+    		getLayout().encode(event, buffer);
+    		ByteRing ring = encodedRing();
+    		long wait = asyncWait;
+    		if(wait == ASYNC_WAIT_DEFAULT)
+    			wait = event instanceof RingBufferLogEvent ? 0 : offerTimeout;
+    		else if(wait == ASYNC_WAIT_OFFER)
+    			wait = offerTimeout;
+    		boolean handed = wait == 0 ? ring.offer(buffer.array(), 0, buffer.size()) : ring.offer(buffer.array(), 0, buffer.size(), wait, TimeUnit.MILLISECONDS);
+    		if(handed) {
+    			metrics.enqueued();
+    			queue.wakeUp();
+    			return;
+    		}
+
+    		if(spill != null && spill.append(buffer.array(), 0, buffer.size())) {
+    			metrics.enqueued();
+    			return;
+    		}
+    		if(warnOverflow++ == 0)
+    			LOGGER.warn("{} event buffer is full with {} bytes, {}", cls, ring.bytes(), backup == null ? "dropping events" : "backup appender activated");
+    		if(backup != null) {
+    			backup.append(event);
+    			metrics.backup();
+    		}
+    		else {
+    			asyncDropped.incrementAndGet();
+    			metrics.dropped(1);
+    		}
+    	}
+    	catch(InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    	}
+    	catch(Exception e) {
+    		LOGGER.warn("{} failed to hand over event: {}", cls, e.getMessage());
+    	}
+    	finally {
+    		buffer.reset();
+    	}
+    }
+
+    /**
+     * Lanes of fatal and error, warn, info, debug and trace events, the first two are urgent
+     */
+    private PriorityLanes<LogEvent> createLanes() {
+    	return new PriorityLanes<LogEvent>(queueSize, 5, 2, PriorityLanes.Shedding.parse(shedding)) {
+    		@Override
+    		protected int laneOf(LogEvent event) {
+    			return severityOf(event);
+    		}
+    	};
+    }
+
+    private void allocateBuffer() {
+    	try {
+    		encoded = new ByteRing((int)Math.min(bufferBytes, Integer.MAX_VALUE - 8), true);
+    		encodeOnAppend = true;
+    	}
+    	catch(OutOfMemoryError e) {
+    		LOGGER.warn("{} can't allocate {} bytes of direct memory, queueing up to {} events instead: {}", cls, bufferBytes, queueSize, e.getMessage());
+    	}
+    }
+
+    private ByteRing encodedRing() {
+    	ByteRing ring = encoded;
+    	if(ring == null) {
+    		synchronized(this) {
+    			if((ring = encoded) == null) {
+    				ring = new ByteRing((int)Math.min(asyncBufferSize, Integer.MAX_VALUE - 8));
+    				if(queueLatency != null)
+    					ring.measureResidence(queueLatency);
+    				encoded = ring;
+    			}
+    		}
+    	}
+    	return ring;
+    }
+
+    /**
+     * @return events waiting for the dispatcher, queued and encoded
+     */
+    public int getQueuedEvents() {
+    	ByteRing ring = encoded;
+    	EventQueue<LogEvent> q = queue;
+    	return (q != null ? q.size() : 0) + (ring != null ? ring.size() : 0);
+    }
+
+    /**
+     * @return bytes taken by encoded events waiting for the dispatcher
+     */
+    public long getQueuedBytes() {
+    	ByteRing ring = encoded;
+    	return ring != null ? ring.bytes() : 0;
+    }
+
+    /**
+     * @return queued events dropped by shedding to make room for more severe or newer ones
+     */
+    public long getShedEvents() {
+    	PriorityLanes<LogEvent> l = lanes;
+    	return l != null ? l.getShed() : 0;
+    }
+
+    /**
+     * @return encoded events dropped as the buffer was full, with no spill or backup to take them
+     */
+    public long getAsyncDropped() {
+    	return asyncDropped.get();
+    }
+
+    /**
+     * Serializes the event on caller thread and appends it to the spill,
+     * a copy into mapped memory, the dispatcher sends it when it gets to it
+     */
+    protected boolean spill(LogEvent event) {
+    	BufferDestination buffer = buffers.get();
+    	try {
+    		getLayout().encode(event, buffer);
+    		return spill.append(buffer.array(), 0, buffer.size());
+    	}
+    	catch(Exception e) {
+    		LOGGER.warn("{} failed to spill event: {}", cls, e.getMessage());
+    		return false;
+    	}
+    	finally {
+    		buffer.reset();
+    	}
+    }
+
+    private void openSpill() {
+    	try {
+    		long segmentSize = Math.min(SegmentLog.DEFAULT_SEGMENT_SIZE, spillSize / 2);
+    		if(journalDir != null) {
+    			spill = new Journal(new File(journalDir), getName(), spillSize, (int)segmentSize, journalSync);
+    			journaling = true;
+    			// the dispatcher batches journal records itself and needs to know they were written
+    			List<TcpManager> connections = Collections.emptyList();
+    			if(socketManager instanceof TcpManager)
+    				connections = Collections.singletonList((TcpManager)socketManager);
+    			if(socketManager instanceof TcpPool)
+    				connections = ((TcpPool)socketManager).getConnections();
+    			boolean batching = false;
+    			for(TcpManager tcp : connections) {
+    				batching |= tcp.isBatching();
+    				tcp.setBatching(0, 0);
+    			}
+    			if(batching)
+    				LOGGER.warn("{} batchSize is ignored with journalDir, journaled events are sent in batches of up to {} bytes", cls, MAX_REPLAY_SIZE);
+    			if(!spill.isEmpty())
+    				LOGGER.info("{} resending {} journaled events", cls, spill.size());
+    		}
+    		else {
+    			// spill is not a journal, whatever previous run left behind is deleted
+    			spill = new SegmentLog(new File(spillDir), getName(), spillSize, (int)segmentSize, false);
+    		}
+    	}
+    	catch(IOException e) {
+    		LOGGER.warn("{} {} disabled: {}", cls, journalDir != null ? "journal" : "spill", e.getMessage());
+    		spill = null;
+    		journaling = false;
+    	}
+    }
+
+    private void closeSpill() {
+    	if(spill == null)
+    		return;
+    	try {
+    		spill.close();
+    	}
+    	catch(IOException e) {
+    	}
+    }
+
     public void setQueueSize(int size){
     	this.queueSize = size;
     }
@@ -164,6 +620,13 @@ public class LogfacesAppender extends AbstractAppender{
     public void setOfferTimeout(long timeout){
     	this.offerTimeout = timeout;
     }
+
+    /**
+     * How long dispatcher waits for more events before it flushes a partial batch
+     */
+    public void setLingerTime(long lingerTime){
+    	this.lingerTime = lingerTime;
+    }
     
     public void setSocketManager(SocketManager sm){
     	this.socketManager = sm;
@@ -181,6 +644,175 @@ public class LogfacesAppender extends AbstractAppender{
 		this.backupRef = backupRef;
 	}
 
+	/**
+	 * Directory of disk spill, events which don't fit into the queue go there
+	 */
+	public void setSpillDir(String spillDir) {
+		this.spillDir = spillDir;
+	}
+
+	/**
+	 * Bytes the encoded events may take while waiting for the dispatcher
+	 */
+	public void setAsyncBufferSize(long asyncBufferSize) {
+		this.asyncBufferSize = asyncBufferSize;
+	}
+
+	/**
+	 * What async logger does when async buffer is full: drop, wait (offerTimeout),
+	 * wait:&lt;ms&gt; or block
+	 */
+	public void setAsyncBackpressure(String asyncBackpressure) {
+		this.asyncBackpressure = asyncBackpressure;
+		this.asyncWait = parseBackpressure(asyncBackpressure);
+	}
+
+	/**
+	 * @return milliseconds to wait for space, 0 to drop, -1 to block, ASYNC_WAIT_OFFER
+	 * for offerTimeout, ASYNC_WAIT_DEFAULT when not set or not understood
+	 */
+	static long parseBackpressure(String value) {
+		if(value == null || value.trim().isEmpty())
+			return ASYNC_WAIT_DEFAULT;
+		String s = value.trim().toLowerCase();
+		if(s.equals("drop"))
+			return 0;
+		if(s.equals("block"))
+			return -1;
+		if(s.equals("wait"))
+			return ASYNC_WAIT_OFFER;
+		if(s.startsWith("wait:")) {
+			long millis = Utils.parseLong(s.substring(5).trim(), -1);
+			if(millis >= 0)
+				return millis;
+		}
+		LOGGER.warn("logFaces: unknown asyncBackpressure {}, expected drop, wait, wait:<ms> or block", value);
+		return ASYNC_WAIT_DEFAULT;
+	}
+
+	/**
+	 * Queues events in lanes per level, most severe sent first, and sets what gives
+	 * way when the queue is full: reject, drop-lowest, drop-oldest or block-high
+	 */
+	public void setShedding(String shedding) {
+		this.shedding = shedding;
+	}
+
+	/**
+	 * Rate limits of loggers, like "com.acme.retry=100/s; org.hibernate:DEBUG=10/s"
+	 */
+	public void setRateLimit(String rateLimit) {
+		this.limiter = RateLimiter.parse(rateLimit);
+	}
+
+	/**
+	 * Window in milliseconds in which repeats of an event are counted instead of sent,
+	 * the next one after it carries the count as "repeats" attribute, or a copy of the
+	 * first repeat once the window closed with nothing after it, 0 disables it
+	 */
+	public void setCoalesceWindow(long millis) {
+		if(millis <= 0) {
+			this.coalescer = null;
+			return;
+		}
+		this.coalescer = new Coalescer<LogEvent>(millis, new Coalescer.Listener<LogEvent>() {
+			@Override
+			public LogEvent retain(LogEvent event) {
+				return Log4jLogEvent.createMemento(event, locationInfo);
+			}
+
+			@Override
+			public void onRepeats(LogEvent event, long repeats) {
+				enqueueNow(withRepeats(event, repeats));
+			}
+		});
+	}
+
+	/**
+	 * Size of off-heap buffer of encoded events, events are encoded on append
+	 * and the buffer takes as many as fit in it, regardless of queue size
+	 */
+	public void setBufferBytes(long bufferBytes) {
+		this.bufferBytes = bufferBytes;
+	}
+
+	/**
+	 * Events are encoded by the caller and queued as bytes, no copy of the event is kept
+	 */
+	public void setEncodeOnAppend(boolean encodeOnAppend) {
+		this.encodeOnAppend = encodeOnAppend;
+	}
+
+	/**
+	 * Directory of write ahead journal, every event is journaled before it's sent
+	 * and whatever wasn't written to the socket is sent on the next start.
+	 * Journaled events are read and written in batches by the dispatcher, so
+	 * batchSize and lingerTime of the connections are ignored with a journal.
+	 */
+	public void setJournalDir(String journalDir) {
+		this.journalDir = journalDir;
+	}
+
+	/**
+	 * Interval of journal group commit (fsync), in milliseconds
+	 */
+	public void setJournalSync(long journalSync) {
+		this.journalSync = journalSync;
+	}
+
+	/**
+	 * Disk space the spill or journal may take, oldest events are dropped beyond it
+	 */
+	public void setSpillSize(long spillSize) {
+		this.spillSize = spillSize;
+	}
+
+	/**
+	 * Registers metrics of the appender as MBean, on by default
+	 */
+	public void setJmx(boolean jmx) {
+		this.jmx = jmx;
+	}
+
+	public AppenderMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Measures latency of enqueueing, waiting in the queue and sending events
+	 */
+	public void setMeasureLatency(boolean measureLatency) {
+		this.measureLatency = measureLatency;
+	}
+
+	/**
+	 * Interval of logging latency percentiles as status at info level, 0 only measures
+	 */
+	public void setLatencyReport(long millis) {
+		this.latencyReport = millis;
+	}
+
+	/**
+	 * @return time callers spend handing events over, null unless latency is measured
+	 */
+	public LatencyHistogram getEnqueueLatency() {
+		return enqueueLatency;
+	}
+
+	/**
+	 * @return time events wait for the dispatcher, null unless latency is measured
+	 */
+	public LatencyHistogram getQueueLatency() {
+		return queueLatency;
+	}
+
+	/**
+	 * @return time dispatcher takes to encode and write an event, null unless latency is measured
+	 */
+	public LatencyHistogram getSendLatency() {
+		return sendLatency;
+	}
+
 	@PluginFactory
 	public static LogfacesAppender createAppender(
 			@PluginAttribute("name") final String name,
@@ -197,6 +829,29 @@ public class LogfacesAppender extends AbstractAppender{
             @PluginAttribute("backup") final String backup,
             @PluginAttribute("format") final String format,
             @PluginAttribute("hostCase") final String hostCase,
+            @PluginAttribute("traceReferences") final String traceReferences,
+            @PluginAttribute("batchSize") final String batchSize,
+            @PluginAttribute("lingerTime") final String lingerTime,
+            @PluginAttribute("sendBufferSize") final String sendBufferSize,
+            @PluginAttribute("compression") final String compression,
+            @PluginAttribute("compressionLevel") final String compressionLevel,
+            @PluginAttribute("spillDir") final String spillDir,
+            @PluginAttribute("spillSize") final String spillSize,
+            @PluginAttribute("journalDir") final String journalDir,
+            @PluginAttribute("journalSync") final String journalSync,
+            @PluginAttribute("connections") final String connections,
+            @PluginAttribute("balance") final String balance,
+            @PluginAttribute("balanceKey") final String balanceKey,
+            @PluginAttribute("asyncBufferSize") final String asyncBufferSize,
+            @PluginAttribute("asyncBackpressure") final String asyncBackpressure,
+            @PluginAttribute("encodeOnAppend") final String encodeOnAppend,
+            @PluginAttribute("bufferBytes") final String bufferBytes,
+            @PluginAttribute("shedding") final String shedding,
+            @PluginAttribute("rateLimit") final String rateLimit,
+            @PluginAttribute("coalesceWindow") final String coalesceWindow,
+            @PluginAttribute("jmx") final String jmx,
+            @PluginAttribute("measureLatency") final String measureLatency,
+            @PluginAttribute("latencyReport") final String latencyReport,
             @PluginElement("Filters") final Filter filter,
             @PluginElement("SslConfiguration") final SslConfiguration sslConfiguration,
             @PluginConfiguration final Configuration config
@@ -205,15 +860,57 @@ public class LogfacesAppender extends AbstractAppender{
 		SocketManager sm = null;
 		boolean locationInfo = Utils.parseBool(location, false);
 		String localhost = Utils.getLocalHostName(Utils.parseInt(hostCase, 0));
-		AbstractStringLayout layout = "json".equalsIgnoreCase(format) ? 
-				                                   new LogfacesJsonLayout(application, localhost, locationInfo, charset) :			
-			                                       new LogfacesXmlLayout(application, localhost, locationInfo, charset);
+		Layout<? extends Serializable> layout;
+		if("json".equalsIgnoreCase(format))
+			layout = new LogfacesJsonLayout(application, localhost, locationInfo, charset);
+		else if("binary".equalsIgnoreCase(format))
+			layout = new LogfacesBinaryLayout(application, localhost, locationInfo);
+		else
+			layout = new LogfacesXmlLayout(application, localhost, locationInfo, charset);
 		
-		if(protocol == null || protocol.equalsIgnoreCase("tcp")){
-			sm = new TcpManager(host, Utils.parseInt(portNum, DEFAULT_PORT), sslConfiguration,
-					                  Utils.parseInt(delay, DEFAULT_RECONNECTION_DELAY), 
-					                  Utils.parseInt(nofRetries, DEFAULT_NOF_RETRIES),
-					                  layout);
+		boolean nio = "nio".equalsIgnoreCase(protocol);
+		if(nio && sslConfiguration != null){
+			LOGGER.warn("logFaces: nio protocol doesn't support SSL, falling back to tcp");
+			nio = false;
+		}
+		
+		if(protocol == null || protocol.equalsIgnoreCase("tcp") || protocol.equalsIgnoreCase("nio")){
+			// balancing pins connections to each of the hosts, otherwise they all fail over along the list
+			List<String> targets = new ArrayList<String>();
+			if(balance != null && host != null){
+				for(String h : host.split(","))
+					targets.add(h.trim());
+			}
+			else{
+				targets.add(host);
+			}
+			List<TcpManager> pool = new ArrayList<TcpManager>();
+			for(int i = 0; i < Math.max(Utils.parseInt(connections, 1), 1) * targets.size(); i++){
+				String target = targets.get(i % targets.size());
+				TcpManager tcp;
+				if(nio)
+					tcp = new NioManager(target, Utils.parseInt(portNum, DEFAULT_PORT), 
+							                  Utils.parseInt(delay, DEFAULT_RECONNECTION_DELAY), 
+							                  Utils.parseInt(nofRetries, DEFAULT_NOF_RETRIES),
+							                  layout, Utils.parseInt(sendBufferSize, 0));
+				else
+					tcp = new TcpManager(target, Utils.parseInt(portNum, DEFAULT_PORT), sslConfiguration,
+							                  Utils.parseInt(delay, DEFAULT_RECONNECTION_DELAY), 
+							                  Utils.parseInt(nofRetries, DEFAULT_NOF_RETRIES),
+							                  layout);
+				tcp.setTraceReferences(Utils.parseBool(traceReferences, false));
+				tcp.setBatching(Utils.parseInt(batchSize, DEFAULT_BATCH_SIZE), Utils.parseLong(lingerTime, DEFAULT_LINGER_TIME));
+				tcp.setCompression("deflate".equalsIgnoreCase(compression), Utils.parseInt(compressionLevel, Deflater.DEFAULT_COMPRESSION));
+				pool.add(tcp);
+			}
+			if(pool.size() > 1){
+				TcpPool tcpPool = new TcpPool(pool, Balancer.Strategy.parse(balance));
+				tcpPool.setHashKey(balanceKey, application);
+				sm = tcpPool;
+			}
+			else{
+				sm = pool.get(0);
+			}
 		}
 		else{
 			sm = new UdpManager(host, Utils.parseInt(portNum, DEFAULT_PORT+1), layout);
@@ -223,68 +920,288 @@ public class LogfacesAppender extends AbstractAppender{
 		lfsa.setLocationInfo(locationInfo);
 		lfsa.setQueueSize(Utils.parseInt(queueSize, DEFAULT_QUEUE_SIZE));
 		lfsa.setOfferTimeout(Utils.parseLong(offerTimeout, DEFAULT_OFFER_TIMEOUT));
+		if(Utils.parseInt(batchSize, DEFAULT_BATCH_SIZE) > 0 && !(sm instanceof UdpManager))
+			lfsa.setLingerTime(Utils.parseLong(lingerTime, DEFAULT_LINGER_TIME));
 		lfsa.setSocketManager(sm);
 		lfsa.setConfig(config);
 		lfsa.setBackupRef(backup);
+		lfsa.setSpillDir(spillDir);
+		lfsa.setSpillSize(Utils.parseSize(spillSize, DEFAULT_SPILL_SIZE));
+		lfsa.setJournalDir(journalDir);
+		lfsa.setAsyncBufferSize(Utils.parseSize(asyncBufferSize, DEFAULT_ASYNC_BUFFER_SIZE));
+		lfsa.setAsyncBackpressure(asyncBackpressure);
+		lfsa.setEncodeOnAppend(Utils.parseBool(encodeOnAppend, false));
+		lfsa.setBufferBytes(Utils.parseSize(bufferBytes, 0));
+		lfsa.setShedding(shedding);
+		lfsa.setRateLimit(rateLimit);
+		lfsa.setCoalesceWindow(Utils.parseLong(coalesceWindow, 0));
+		lfsa.setJmx(Utils.parseBool(jmx, true));
+		lfsa.setMeasureLatency(Utils.parseBool(measureLatency, false));
+		lfsa.setLatencyReport(Utils.parseLong(latencyReport, DEFAULT_LATENCY_REPORT));
+		lfsa.setJournalSync(Utils.parseLong(journalSync, Journal.DEFAULT_SYNC_INTERVAL));
         return lfsa;
 	}
 	
-	class Dispatcher extends Thread{
+	class Dispatcher extends DispatchLoop implements RateLimiter.Listener{
 		int orphans = 0;
-		public void run(){
-			int failures = 0;
-			LogEvent event = null;
-			
-			setStarted();
-			while(isStarted()){
-				try {
-					if(!socketManager.isOperational()){
-						if(!isStarted())
-							break;
-						Thread.sleep(500);
-						continue;
+		int failures = 0;
+		long reportedDrops = 0;
+		long reportedShed = 0;
+		// events taken from the queue and not sent yet, reused for every batch
+		final List<LogEvent> batch = new ArrayList<LogEvent>(MAX_BATCH_SIZE);
+		final EventBuffer spilled = new EventBuffer();
+		// encoded events of async loggers taken from the ring and not sent yet
+		final EventBuffer pending = new EventBuffer();
+		int pendingCount;
+		// counts of the last latency report and when the next one is due
+		long[] enqueueReported, queueReported, sendReported;
+		long nextReport = System.currentTimeMillis() + latencyReport;
+		// when the socket is flushed unless events come, 0 with events in hand, -1 once flushed
+		long flushDue;
+
+		/**
+		 * Sends a batch worth of events, or waits for them. Partial batch of the
+		 * socket goes out once no event came for lingerTime.
+		 */
+		@Override
+		protected long turn(){
+			if(!isStarted())
+				return finish();
+			try {
+				reportLatency();
+				if(limiter != null)
+					limiter.sweep(this);
+				if(coalescer != null)
+					coalescer.sweep(System.currentTimeMillis());
+				if(!socketManager.isOperational()){
+					reportDrops();
+					return 500;
+				}
+				
+				if(batch.isEmpty() && hasEncoded()) {
+					flushDue = 0;
+					pump();
+					// queued events get their turn too
+					queue.drainTo(batch, MAX_BATCH_SIZE);
+					if(batch.isEmpty())
+						return 0;
+				}
+
+				if(batch.isEmpty()) {
+					// spilled events are younger than anything in the queue
+					if(spill != null && queue.isEmpty() && !spill.isEmpty()) {
+						flushDue = 0;
+						replay();
+						return 0;
+					}
+					// appends to the journal wake the dispatcher up
+					if(journaling && queue.isEmpty()) {
+						socketManager.flush();
+						return READ_QUEUE_TIMEOUT;
 					}
-					
-					event = queue.poll(READ_QUEUE_TIMEOUT, TimeUnit.MILLISECONDS);
-					if(event == null)
-						continue;
-					if(!socketManager.send(event)) {
-						// try few times to re-send
-						if(++failures < 3)
-							queue.offer(event);
-						else
+					queue.drainTo(batch, MAX_BATCH_SIZE);
+					if(batch.isEmpty())
+						return linger();
+					flushDue = 0;
+				}
+
+				int sent = 0, delivered = 0;
+				while(sent < batch.size()) {
+					long started = sendLatency != null ? System.nanoTime() : 0;
+					if(!socketManager.send(batch.get(sent))) {
+						// try few times to re-send, the rest of the batch waits
+						if(++failures >= 3) {
 							LOGGER.warn("log event dropped, unable to deliver to server");
-						continue;
+							metrics.dropped(1);
+							failures = 0;
+							sent++;
+						}
+						break;
 					}
-					
+					if(sendLatency != null)
+						sendLatency.record(System.nanoTime() - started);
 					failures = 0;
-					
-				} catch(InterruptedException e) {
+					sent++;
+					delivered++;
+				}
+				batch.subList(0, sent).clear();
+				metrics.sent(delivered);
+				reportDrops();
+			}
+			catch(Exception e){
+				LOGGER.warn("{} queue processing failed: {}", cls, e.getMessage());
+			}
+			return 0;
+		}
+
+		/**
+		 * Queue is empty, flushes the socket once it stayed empty for lingerTime
+		 * @return time until the flush or the next look around
+		 */
+		long linger() {
+			long now = System.currentTimeMillis();
+			if(flushDue == 0)
+				flushDue = now + lingerTime;
+			if(flushDue > now)
+				return flushDue - now;
+			if(flushDue > 0) {
+				socketManager.flush();
+				flushDue = -1;
+			}
+			return READ_QUEUE_TIMEOUT;
+		}
+
+		/**
+		 * Last turn, makes sure to leave nothing behind
+		 */
+		long finish() {
+			if(!batch.isEmpty() || !queue.isEmpty() || hasEncoded() || (spill != null && !spill.isEmpty()))
+				flush();
+			socketManager.flush();
+			return -1;
+		}
+
+		boolean hasEncoded() {
+			ByteRing ring = encoded;
+			return !pending.isEmpty() || (ring != null && !ring.isEmpty());
+		}
+
+		/**
+		 * Writes a batch of events encoded by async loggers, kept until sent
+		 */
+		void pump() {
+			if(pending.isEmpty())
+				pendingCount = encoded.drainTo(pending, socketManager instanceof UdpManager ? 1 : MAX_BATCH_SIZE, MAX_REPLAY_SIZE);
+			long started = sendLatency != null ? System.nanoTime() : 0;
+			if(socketManager.send(pending.array(), 0, pending.size())) {
+				if(sendLatency != null)
+					sendLatency.record((System.nanoTime() - started) / pendingCount, pendingCount);
+				metrics.sent(pendingCount);
+				failures = 0;
+				pending.reset();
+			}
+			else if(++failures >= 3) {
+				LOGGER.warn("async log events dropped, unable to deliver to server");
+				metrics.dropped(pendingCount);
+				failures = 0;
+				pending.reset();
+			}
+		}
+
+		/**
+		 * Sends spilled events oldest first, they are consumed only once sent.
+		 * Over tcp the records go out together in one write, datagrams carry one each.
+		 * Spilled records are dropped after three failed sends, journaled ones never.
+		 * @return number of records consumed
+		 */
+		int replay() {
+			int consumed = 0;
+			int records = socketManager instanceof UdpManager ? 1 : MAX_BATCH_SIZE;
+			for(int n = 0; n < MAX_BATCH_SIZE; n += records) {
+				int count = spill.read(spilled, records, MAX_REPLAY_SIZE);
+				if(count == 0)
 					break;
+				long started = sendLatency != null ? System.nanoTime() : 0;
+				boolean sent = socketManager.send(spilled.array(), 0, spilled.size());
+				if(sent && sendLatency != null)
+					sendLatency.record((System.nanoTime() - started) / count, count);
+				spilled.reset();
+				if(!sent) {
+					// journal keeps them for the next connection or the next start
+					if(++failures < 3 || journaling)
+						break;
+					LOGGER.warn("{} spilled log events dropped, unable to deliver to server", count);
+					metrics.dropped(count);
 				}
-				catch(Exception e){
-					LOGGER.warn("{} queue processing failed: {}", cls, e.getMessage());
-					continue;
+				else {
+					metrics.sent(count);
 				}
+				failures = 0;
+				spill.advance(count);
+				consumed += count;
 			}
-			
-			// make sure to leave nothing behind
-			if(!queue.isEmpty()) {
-				interrupted();
-				flush();
+			reportDrops();
+			return consumed;
+		}
+
+		/**
+		 * Summary of a limited logger, queued without waiting as this runs on the dispatcher
+		 */
+		@Override
+		public void onSuppressed(String logger, long events) {
+			enqueueNow(summary(logger, events));
+		}
+
+		/**
+		 * Logs percentiles of latencies measured since the last report, if there was anything to measure
+		 */
+		void reportLatency() {
+			if(sendLatency == null || latencyReport <= 0 || System.currentTimeMillis() < nextReport)
+				return;
+			nextReport = System.currentTimeMillis() + latencyReport;
+			if(enqueueReported == null) {
+				enqueueReported = new long[LatencyHistogram.BUCKETS];
+				queueReported = new long[LatencyHistogram.BUCKETS];
+				sendReported = new long[LatencyHistogram.BUCKETS];
+			}
+			long[] enqueued = enqueueLatency.since(enqueueReported);
+			long[] queued = queueLatency.since(queueReported);
+			long[] sent = sendLatency.since(sendReported);
+			if(LatencyHistogram.count(enqueued) == 0 && LatencyHistogram.count(sent) == 0)
+				return;
+			LOGGER.info("{} latency of enqueue: {}", cls, LatencyHistogram.summary(enqueued));
+			LOGGER.info("{} latency in queue: {}", cls, LatencyHistogram.summary(queued));
+			LOGGER.info("{} latency of send: {}", cls, LatencyHistogram.summary(sent));
+		}
+
+		void reportDrops() {
+			if(lanes != null && lanes.getShed() > reportedShed) {
+				long shed = lanes.getShed();
+				LOGGER.warn("{} queue is full, shed {} events ({})", cls, shed - reportedShed, lanes.getShedding());
+				metrics.dropped(shed - reportedShed);
+				reportedShed = shed;
 			}
-		}	
+			if(spill == null)
+				return;
+			long drops = spill.getDropped();
+			if(drops > reportedDrops) {
+				LOGGER.warn("{} spill is full, dropped {} oldest events", cls, drops - reportedDrops);
+				metrics.dropped(drops - reportedDrops);
+				reportedDrops = drops;
+			}
+		}
 		
 		void flush() {
+			for(LogEvent event : batch) {
+				if(!socketManager.send(event))
+					orphans++;
+				else
+					metrics.sent(1);
+			}
+			batch.clear();
 			while(!queue.isEmpty()) {
 				try {
 					LogEvent event = queue.take();
 					if(!socketManager.send(event))
 						orphans++;
+					else
+						metrics.sent(1);
 				} catch(Exception e) {
 					break;
 				}
 			}
+			while(hasEncoded() && socketManager.isOperational())
+				pump();
+			if(hasEncoded())
+				orphans += encoded.size() + (pending.isEmpty() ? 0 : pendingCount);
+			if(spill != null) {
+				for(int idle = 0; idle < 3 && !spill.isEmpty() && socketManager.isOperational(); )
+					idle = replay() > 0 ? 0 : idle + 1;
+				// journal keeps them for the next start
+				if(!journaling)
+					orphans += spill.size();
+			}
+			metrics.dropped(orphans);
 			LOGGER.log(orphans > 0 ? Level.WARN : Level.TRACE, "{} flushed, orphaned {} events", cls, orphans);
 		}
 	}
@@ -0,0 +1,179 @@
+/*
+ * This is a derivative work of Apache log4j project and adapted for logFaces.
+ * All credits go to the authors of log4j framework whose source code is re-used.
+ * 
+ * ******************************************************************************** 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package com.moonlit.logfaces.appenders.log4j2;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.ThreadContext.ContextStack;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.layout.AbstractLayout;
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+import org.apache.logging.log4j.core.util.Throwables;
+import org.apache.logging.log4j.util.ReadOnlyStringMap;
+import org.apache.logging.log4j.util.TriConsumer;
+
+import com.moonlit.logfaces.appenders.util.BinaryFormat;
+import com.moonlit.logfaces.appenders.util.EventBuffer;
+import com.moonlit.logfaces.appenders.util.ThrowableCache;
+import com.moonlit.logfaces.appenders.util.Utils;
+
+
+public class LogfacesBinaryLayout extends AbstractLayout<byte[]>{
+	private static final TriConsumer<String, Object, EventBuffer> PROPERTY_WRITER = new TriConsumer<String, Object, EventBuffer>() {
+		@Override
+		public void accept(String key, Object value, EventBuffer out) {
+			BinaryFormat.writeProperty(out, key, String.valueOf(value));
+		}
+	};
+	private static final ThreadLocal<EventBuffer> buffers = new ThreadLocal<EventBuffer>();
+
+	protected boolean locationInfo;
+	protected String applicationName = "";
+	protected String hostName = "";
+	protected final byte[] constantFields;
+	protected final ThrowableCache traces = new ThrowableCache();
+	
+	protected LogfacesBinaryLayout(String application, String hostName, boolean locationInfo){
+		super(null, null, null);
+		this.locationInfo = locationInfo;
+		this.applicationName = application;
+		this.hostName = hostName;
+		this.constantFields = BinaryFormat.constantFields(application, hostName);
+	}
+
+    @Override
+    public byte[] toSerializable(final LogEvent event) {
+        EventBuffer out = getBuffer();
+        format(event, out);
+        byte[] data = new byte[out.size()];
+        System.arraycopy(out.array(), 0, data, 0, data.length);
+        out.reset();
+        return data;
+    }
+
+    @Override
+    public byte[] toByteArray(final LogEvent event) {
+        return toSerializable(event);
+    }
+
+    @Override
+    public void encode(final LogEvent event, final ByteBufferDestination destination) {
+        if(destination instanceof EventBuffer) {
+        	format(event, (EventBuffer)destination);
+        	return;
+        }
+        EventBuffer out = getBuffer();
+        format(event, out);
+        destination.writeBytes(out.array(), 0, out.size());
+        out.reset();
+    }
+
+    protected void format(final LogEvent event, final EventBuffer out) {
+        int frame = BinaryFormat.beginFrame(out, event.getTimeMillis(), levelCode(event.getLevel()));
+        out.writeBytes(constantFields);
+        BinaryFormat.writeField(out, BinaryFormat.THREAD, event.getThreadName());
+        BinaryFormat.writeField(out, BinaryFormat.LOGGER, event.getLoggerName());
+        if(event.getMessage() != null)
+        	BinaryFormat.writeField(out, BinaryFormat.MESSAGE, event.getMessage().getFormattedMessage());
+
+		ContextStack ctx = event.getContextStack();
+		if(ctx != null && ctx.getDepth() > 0)
+			BinaryFormat.writeField(out, BinaryFormat.NDC, Utils.join(ctx.asList(), " "));
+
+		Throwable throwable = event.getThrown();
+		if (throwable != null) {
+			long fingerprint = ThrowableCache.fingerprint(throwable);
+			if(!out.markTraceSent(fingerprint))
+				BinaryFormat.writeField(out, BinaryFormat.THROWABLE, renderThrowable(throwable, fingerprint));
+			if(out.isTraceReferences())
+				BinaryFormat.writeField(out, BinaryFormat.TRACE_ID, fingerprint);
+		}
+
+		if(locationInfo) { 
+			StackTraceElement element = event.getSource();
+			if(element != null){
+				BinaryFormat.writeField(out, BinaryFormat.CLASS, element.getClassName());
+				BinaryFormat.writeField(out, BinaryFormat.METHOD, element.getMethodName());
+				BinaryFormat.writeField(out, BinaryFormat.FILE, element.getFileName());
+				BinaryFormat.writeField(out, BinaryFormat.LINE, element.getLineNumber());
+			}
+		}
+
+        Marker marker = event.getMarker();
+        if(marker != null)
+        	BinaryFormat.writeProperty(out, "marker", marker.getName());
+
+		ReadOnlyStringMap cmap = event.getContextData();
+		if(cmap != null && !cmap.isEmpty())
+			cmap.forEach(PROPERTY_WRITER, out);
+
+		BinaryFormat.endFrame(out, frame);
+    }
+
+    private String renderThrowable(Throwable throwable, long fingerprint) {
+    	String rendered = traces.get(fingerprint);
+    	if(rendered == null) {
+    		rendered = Utils.join(Throwables.toStringList(throwable), Utils.EOL);
+    		traces.put(fingerprint, rendered);
+    	}
+    	return rendered;
+    }
+
+    static byte levelCode(Level level) {
+    	int value = level.intLevel();
+    	if(value <= Level.FATAL.intLevel())
+    		return BinaryFormat.FATAL;
+    	if(value <= Level.ERROR.intLevel())
+    		return BinaryFormat.ERROR;
+    	if(value <= Level.WARN.intLevel())
+    		return BinaryFormat.WARN;
+    	if(value <= Level.INFO.intLevel())
+    		return BinaryFormat.INFO;
+    	if(value <= Level.DEBUG.intLevel())
+    		return BinaryFormat.DEBUG;
+    	return BinaryFormat.TRACE;
+    }
+
+    private static EventBuffer getBuffer() {
+    	EventBuffer out = buffers.get();
+    	if(out == null) {
+    		out = new EventBuffer();
+    		buffers.set(out);
+    	}
+    	return out;
+    }
+
+    @Override
+    public Map<String, String> getContentFormat() {
+        final Map<String, String> result = new HashMap<String, String>();
+        result.put("format", "logfaces-binary");
+        result.put("version", String.valueOf(BinaryFormat.VERSION));
+        return result;
+    }
+
+    @Override
+    public String getContentType() {
+        return "application/octet-stream";
+    }
+}
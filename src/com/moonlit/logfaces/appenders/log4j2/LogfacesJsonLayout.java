@@ -29,35 +29,74 @@ import org.apache.logging.log4j.Marker;
 import org.apache.logging.log4j.ThreadContext.ContextStack;
 import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.layout.AbstractStringLayout;
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
 import org.apache.logging.log4j.core.util.Throwables;
 import org.apache.logging.log4j.util.ReadOnlyStringMap;
+import org.apache.logging.log4j.util.TriConsumer;
 
+import com.moonlit.logfaces.appenders.util.EscapeCache;
+import com.moonlit.logfaces.appenders.util.Escaper;
+import com.moonlit.logfaces.appenders.util.EventBuffer;
+import com.moonlit.logfaces.appenders.util.ThrowableCache;
 import com.moonlit.logfaces.appenders.util.Utils;
 
 
 public class LogfacesJsonLayout extends AbstractStringLayout{
+	private static final TriConsumer<String, Object, StringBuilder> PROPERTY_WRITER = new TriConsumer<String, Object, StringBuilder>() {
+		@Override
+		public void accept(String key, Object value, StringBuilder buf) {
+			Utils.jsonProperty(buf, key, String.valueOf(value));
+		}
+	};
+
 	protected boolean locationInfo;
 	protected String applicationName = "";
 	protected String hostName = "";
+	protected final EscapeCache names = new EscapeCache(Escaper.JSON);
+	protected final ThrowableCache traces = new ThrowableCache();
+	// application and host never change, they open every event
+	protected final String head;
+	protected final byte[] headBytes;
 	
 	protected LogfacesJsonLayout(String application, String hostName, boolean locationInfo, Charset charset){
 		super(charset);
 		this.locationInfo = locationInfo;
 		this.applicationName = application;
 		this.hostName = hostName;
+
+		StringBuilder buf = new StringBuilder(128);
+		buf.append("{");
+		Utils.jsonAttribute(buf, "a", applicationName, true);
+		Utils.jsonAttribute(buf, "h", hostName, false);
+		this.head = buf.toString();
+		this.headBytes = head.getBytes(charset);
 	}
 
     @Override
     public String toSerializable(final LogEvent event) {
-        StringBuilder buf = new StringBuilder(256);
-        buf.append("{");
-        
-		Utils.jsonAttribute(buf, "a", applicationName, true);
-		Utils.jsonAttribute(buf, "h", hostName, false);
-		Utils.jsonAttribute(buf, "t", ""+event.getTimeMillis(), false);
-		Utils.jsonAttribute(buf, "r", event.getThreadName(), false);
+        final StringBuilder buf = getStringBuilder();
+        buf.append(head);
+        format(event, buf, null);
+        return buf.toString();
+    }
+
+    @Override
+    public void encode(final LogEvent event, final ByteBufferDestination destination) {
+        final StringBuilder buf = getStringBuilder();
+        destination.writeBytes(headBytes, 0, headBytes.length);
+        format(event, buf, destination instanceof EventBuffer ? (EventBuffer)destination : null);
+        getStringBuilderEncoder().encode(buf, destination);
+        trimToMaxSize(buf);
+    }
+
+    /**
+     * @param out connection buffer the event goes to, tracks traces already sent, may be null
+     */
+    protected void format(final LogEvent event, final StringBuilder buf, final EventBuffer out) {
+		Utils.jsonAttribute(buf, "t", event.getTimeMillis(), false);
+		Utils.jsonAttribute(buf, "r", names, event.getThreadName());
 		Utils.jsonAttribute(buf, "p", event.getLevel().toString(), false);
-		Utils.jsonAttribute(buf, "g", event.getLoggerName(), false);
+		Utils.jsonAttribute(buf, "g", names, event.getLoggerName());
 		Utils.jsonAttribute(buf, "m", event.getMessage() != null ? event.getMessage().getFormattedMessage() : "", false);
 
 		ContextStack ctx = event.getContextStack();
@@ -65,15 +104,21 @@ public class LogfacesJsonLayout extends AbstractStringLayout{
 			Utils.jsonAttribute(buf, "n", ctx.asList(), " ", false);
 		
 		Throwable throwable = event.getThrown();
+		long fingerprint = 0;
 		if (throwable != null){
-			List<String> list = Throwables.toStringList(throwable);
+			fingerprint = ThrowableCache.fingerprint(throwable);
 			Utils.jsonAttribute(buf, "w", "true", false);
-			Utils.jsonAttribute(buf, "i", list, Utils.EOL, false);
+			buf.append(",\"i\":\"");
+			if(out != null && out.markTraceSent(fingerprint))
+				buf.append(ThrowableCache.reference(fingerprint));
+			else
+				buf.append(renderThrowable(throwable, fingerprint));
+			buf.append('"');
 		}
 		
         Marker marker = event.getMarker();
         if(marker != null)
-        	Utils.jsonAttribute(buf, "p_marker", Utils.safeJson(marker.getName()), false);
+        	Utils.jsonProperty(buf, "marker", marker.getName());
         
 		if(locationInfo) { 
 			StackTraceElement element = event.getSource();
@@ -81,20 +126,34 @@ public class LogfacesJsonLayout extends AbstractStringLayout{
 				Utils.jsonAttribute(buf, "c", element.getClassName(), false);
 				Utils.jsonAttribute(buf, "e", element.getMethodName(), false);
 				Utils.jsonAttribute(buf, "f", element.getFileName(), false);
-				Utils.jsonAttribute(buf, "l", ""+element.getLineNumber(), false);
+				Utils.jsonAttribute(buf, "l", element.getLineNumber(), false);
 			}
 		}
 
 		ReadOnlyStringMap cmap = event.getContextData();
-		if(cmap != null && !cmap.isEmpty()){
-			Map<String,String> map = cmap.toMap();
-			for(String key : map.keySet()){
-				Utils.jsonAttribute(buf, "p_"+key, String.valueOf(map.get(key)), false);
-			}
-		}
+		if(cmap != null && !cmap.isEmpty())
+			cmap.forEach(PROPERTY_WRITER, buf);
+
+		if(throwable != null && out != null && out.isTraceReferences())
+			Utils.jsonProperty(buf, Utils.TRACE_KEY, ThrowableCache.id(fingerprint));
 		
         buf.append("}");
-		return buf.toString();
+    }
+
+    private String renderThrowable(Throwable throwable, long fingerprint) {
+		String rendered = traces.get(fingerprint);
+		if(rendered == null) {
+			StringBuilder buf = new StringBuilder(1024);
+			List<String> list = Throwables.toStringList(throwable);
+			for(int i = 0; i < list.size(); i++) {
+				if(i > 0)
+					buf.append(Utils.EOL);
+				Escaper.JSON.append(buf, list.get(i));
+			}
+			rendered = buf.toString();
+			traces.put(fingerprint, rendered);
+		}
+		return rendered;
     }
     
     @Override
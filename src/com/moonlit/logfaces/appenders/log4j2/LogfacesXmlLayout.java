@@ -29,65 +29,108 @@ import org.apache.logging.log4j.Marker;
 import org.apache.logging.log4j.ThreadContext.ContextStack;
 import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.layout.AbstractStringLayout;
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
 import org.apache.logging.log4j.core.util.Throwables;
-import org.apache.logging.log4j.core.util.Transform;
 import org.apache.logging.log4j.util.ReadOnlyStringMap;
+import org.apache.logging.log4j.util.TriConsumer;
 
+import com.moonlit.logfaces.appenders.util.EscapeCache;
+import com.moonlit.logfaces.appenders.util.Escaper;
+import com.moonlit.logfaces.appenders.util.EventBuffer;
+import com.moonlit.logfaces.appenders.util.ThrowableCache;
 import com.moonlit.logfaces.appenders.util.Utils;
 
 
 public class LogfacesXmlLayout extends AbstractStringLayout{
+	private static final TriConsumer<String, Object, StringBuilder> DATA_WRITER = new TriConsumer<String, Object, StringBuilder>() {
+		@Override
+		public void accept(String key, Object value, StringBuilder buf) {
+			appendData(buf, key, value);
+		}
+	};
+
     private boolean locationInfo;
 	private String applicationName = "";
 	private String hostName = "";
+	private final EscapeCache names = new EscapeCache(Escaper.XML_ATTRIBUTE);
+	private final ThrowableCache traces = new ThrowableCache();
+	// application and host data never change, they are rendered once
+	// together with closing tags, order of data elements doesn't matter
+	private final String tail;
+	private final byte[] tailBytes;
 
 	protected LogfacesXmlLayout(String application, String hostName, boolean locationInfo, Charset charset){
 		super(charset);
 		this.locationInfo = locationInfo;
 		this.applicationName = application;
 		this.hostName = hostName;
+
+		StringBuilder buf = new StringBuilder(256);
+		appendData(buf, Utils.APP_KEY, applicationName);
+		appendData(buf, Utils.HOST_KEY, hostName);
+		buf.append("</log4j:properties>\r\n");
+		buf.append("</log4j:event>\r\n\r\n");
+		this.tail = buf.toString();
+		this.tailBytes = tail.getBytes(charset);
 	}
 
     @Override
     public String toSerializable(final LogEvent event) {
-        final StringBuilder buf = new StringBuilder(256);
+        final StringBuilder buf = getStringBuilder();
+        format(event, buf, null);
+        buf.append(tail);
+        return buf.toString();
+    }
+
+    @Override
+    public void encode(final LogEvent event, final ByteBufferDestination destination) {
+        final StringBuilder buf = getStringBuilder();
+        format(event, buf, destination instanceof EventBuffer ? (EventBuffer)destination : null);
+        getStringBuilderEncoder().encode(buf, destination);
+        destination.writeBytes(tailBytes, 0, tailBytes.length);
+        trimToMaxSize(buf);
+    }
 
+    /**
+     * @param out connection buffer the event goes to, tracks traces already sent, may be null
+     */
+    protected void format(final LogEvent event, final StringBuilder buf, final EventBuffer out) {
 		buf.append("<log4j:event logger=\"");
-		buf.append(Transform.escapeHtmlTags(event.getLoggerName()));
+		names.append(buf, event.getLoggerName());
 		buf.append("\" timestamp=\"");
 		buf.append(event.getTimeMillis());
 		buf.append("\" level=\"");
 		buf.append(event.getLevel());
 		buf.append("\" thread=\"");
-		buf.append(Transform.escapeHtmlTags(event.getThreadName()));
+		names.append(buf, event.getThreadName());
 		buf.append("\">\r\n");
 
 		buf.append("<log4j:message><![CDATA[");
-		if(event.getMessage() != null) {
-			String message = event.getMessage().getFormattedMessage();
-			Transform.appendEscapingCData(buf, Utils.safeXml(message));
-		}
+		if(event.getMessage() != null)
+			Escaper.CDATA.append(buf, event.getMessage().getFormattedMessage());
 		buf.append("]]></log4j:message>\r\n");       
 
 		ContextStack ctx = event.getContextStack();
 		if(ctx != null && ctx.getDepth() > 0) {
-			String ndc = event.getContextStack().toString();
-			if(ndc != null){
-				ndc = ndc.replaceAll("[\\[\\]]", "");
-				buf.append("<log4j:NDC><![CDATA[");
-				Transform.appendEscapingCData(buf, Utils.safeXml(ndc));
-				buf.append("]]></log4j:NDC>\r\n");
+			List<String> ndc = ctx.asList();
+			buf.append("<log4j:NDC><![CDATA[");
+			for(int i = 0; i < ndc.size(); i++) {
+				if(i > 0)
+					buf.append(", ");
+				Escaper.CDATA.append(buf, ndc.get(i));
 			}
+			buf.append("]]></log4j:NDC>\r\n");
 		}
 
 		Throwable throwable = event.getThrown();
-		 if (throwable != null) {
-			List<String> s = Throwables.toStringList(throwable);
+		long fingerprint = 0;
+		if (throwable != null) {
+			fingerprint = ThrowableCache.fingerprint(throwable);
 			buf.append("<log4j:throwable><![CDATA[");
-			for (final String str : s) {
-				Transform.appendEscapingCData(buf, Utils.safeXml(str));
-				buf.append("\r\n");
-			}
+			if(out != null && out.markTraceSent(fingerprint))
+				buf.append(ThrowableCache.reference(fingerprint));
+			else
+				buf.append(renderThrowable(throwable, fingerprint));
 			buf.append("]]></log4j:throwable>\r\n");
 		}
 
@@ -95,9 +138,9 @@ public class LogfacesXmlLayout extends AbstractStringLayout{
 			StackTraceElement element = event.getSource();
 			if(element != null){
 				buf.append("<log4j:locationInfo class=\"");
-				buf.append(Transform.escapeHtmlTags(element.getClassName()));
+				Escaper.XML_ATTRIBUTE.append(buf, element.getClassName());
 				buf.append("\" method=\"");
-				buf.append(Transform.escapeHtmlTags(element.getMethodName()));
+				Escaper.XML_ATTRIBUTE.append(buf, element.getMethodName());
 				buf.append("\" file=\"");
 				buf.append(element.getFileName());
 				buf.append("\" line=\"");
@@ -107,39 +150,40 @@ public class LogfacesXmlLayout extends AbstractStringLayout{
 		}
 
 		buf.append("<log4j:properties>\r\n");
-		buf.append("<log4j:data name=\"" + Utils.APP_KEY);
-		buf.append("\" value=\"" + Transform.escapeHtmlTags(applicationName));
-		buf.append("\"/>\r\n");
-
-		buf.append("<log4j:data name=\"" + Utils.HOST_KEY);
-		buf.append("\" value=\"" + Transform.escapeHtmlTags(hostName));
-		buf.append("\"/>\r\n");
-
-		if (event.getMarker() != null){
-			Marker marker = event.getMarker();
-			buf.append("<log4j:data name=\"" + Transform.escapeHtmlTags("marker"));
-			buf.append("\" value=\"" + Transform.escapeHtmlTags(Utils.safeXml(marker.getName())));
-			buf.append("\"/>\r\n");
-		}
+		Marker marker = event.getMarker();
+		if (marker != null)
+			appendData(buf, "marker", marker.getName());
 		
 		ReadOnlyStringMap contextMap = event.getContextData();
-		if(contextMap != null){
-			Map<String, String> map = contextMap.toMap(); 
-			for(String key : map.keySet()){
-				String value = Utils.safeXml(String.valueOf(map.get(key)));
-				buf.append("<log4j:data name=\"");
-				buf.append(Transform.escapeHtmlTags(key));
-				buf.append("\" value=\"");
-				buf.append(Transform.escapeHtmlTags(value));
-				buf.append("\"/>\r\n");
+		if(contextMap != null && !contextMap.isEmpty())
+			contextMap.forEach(DATA_WRITER, buf);
+
+		if(throwable != null && out != null && out.isTraceReferences())
+			appendData(buf, Utils.TRACE_KEY, ThrowableCache.id(fingerprint));
+    }
+
+    private String renderThrowable(Throwable throwable, long fingerprint) {
+		String rendered = traces.get(fingerprint);
+		if(rendered == null) {
+			StringBuilder buf = new StringBuilder(1024);
+			for (final String str : Throwables.toStringList(throwable)) {
+				Escaper.CDATA.append(buf, str);
+				buf.append("\r\n");
 			}
+			rendered = buf.toString();
+			traces.put(fingerprint, rendered);
 		}
-
-		buf.append("</log4j:properties>\r\n");
-		buf.append("</log4j:event>\r\n\r\n");
-		return buf.toString();
+		return rendered;
     }
     
+    static void appendData(StringBuilder buf, String name, Object value) {
+		buf.append("<log4j:data name=\"");
+		Escaper.XML_ATTRIBUTE.append(buf, name);
+		buf.append("\" value=\"");
+		Escaper.XML_ATTRIBUTE.append(buf, String.valueOf(value));
+		buf.append("\"/>\r\n");
+    }
+
     @Override
     public byte[] getHeader() {
     	return null;
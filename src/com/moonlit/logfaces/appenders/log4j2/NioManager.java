@@ -0,0 +1,71 @@
+/*
+ * This is a derivative work of Apache log4j project and adapted for logFaces.
+ * All credits go to the authors of log4j framework whose source code is re-used.
+ * 
+ * ******************************************************************************** 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package com.moonlit.logfaces.appenders.log4j2;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+import org.apache.logging.log4j.core.Layout;
+
+import com.moonlit.logfaces.appenders.util.ChannelOutputStream;
+import com.moonlit.logfaces.appenders.util.SharedScheduler;
+
+/**
+ * TCP transport over non blocking SocketChannel, see ChannelOutputStream.
+ * Combined with batching, whole batch goes out with one gathering write.
+ * Doesn't support SSL.
+ */
+public class NioManager extends TcpManager{
+	protected int sendBufferSize;
+	protected ChannelOutputStream channel;
+	private static final byte[] NO_PROBE = new byte[0];
+
+	public NioManager(String hosts, int port, int delay, int retries, Layout<? extends Serializable> layout, int sendBufferSize) {
+		super(hosts, port, delay, retries, layout);
+		this.sendBufferSize = sendBufferSize;
+	}
+
+	@Override
+	protected OutputStream open() throws Exception {
+		channel = ChannelOutputStream.open(address, port, sendBufferSize, SharedScheduler.connectTimeout(reconnectionDelay));
+		return channel;
+	}
+
+	/**
+	 * Peer which went away is noticed by reading, no probe bytes needed
+	 */
+	@Override
+	protected byte[] probe() {
+		return NO_PROBE;
+	}
+
+	@Override
+	protected int transmit() throws IOException {
+		long writes = channel.getWriteCount();
+		channel.checkAlive();
+		// through compression, if enabled
+		buffer.writeTo(oos);
+		oos.flush();
+		return (int)(channel.getWriteCount() - writes);
+	}
+}
@@ -26,6 +26,28 @@ import org.apache.logging.log4j.core.LogEvent;
 public interface SocketManager {
 	public boolean isOperational();
 	public boolean send(LogEvent event);
+	/**
+	 * Sends event already serialized by the layout, as taken from the spill
+	 */
+	public boolean send(byte[] data, int offset, int length);
+	/**
+	 * Writes out whatever send has buffered so far
+	 */
+	public void flush();
+	public long getBytesWritten();
+	/**
+	 * @return connections opened again after the first one
+	 */
+	public long getReconnects();
+	/**
+	 * @return host of current connection, null when not connected
+	 */
+	public String getCurrentHost();
+	public long getDisconnectedMillis();
+	/**
+	 * @return events send took but stop had to discard, as they were never written
+	 */
+	public long getUndelivered();
 	public void start();
 	public void stop();
 }
@@ -25,10 +25,13 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.zip.Deflater;
 
 import javax.net.SocketFactory;
 
@@ -38,6 +41,10 @@ import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.net.ssl.SslConfiguration;
 import org.apache.logging.log4j.status.StatusLogger;
 
+import com.moonlit.logfaces.appenders.util.ConnectionStats;
+import com.moonlit.logfaces.appenders.util.DeflatingOutputStream;
+import com.moonlit.logfaces.appenders.util.SharedScheduler;
+
 public class TcpManager implements SocketManager{
 	protected int nofRetries;
 	protected int reconnectionDelay;
@@ -52,6 +59,29 @@ public class TcpManager implements SocketManager{
 	protected int nofFailures = 0;
 	protected long totalCount;
 	protected SslConfiguration sslConfiguration;
+	protected final BufferDestination buffer = new BufferDestination();
+	// batching, disabled when batch size is 0
+	protected int batchSize;
+	protected long lingerTime;
+	protected long batchStarted;
+	// with trace references, events of current batch and where each one
+	// starts, null for records which came encoded already
+	protected final List<LogEvent> batchEvents = new ArrayList<LogEvent>();
+	protected int[] batchMarks = new int[64];
+	// events in current batch and those discarded with it on stop
+	protected int pendingEvents;
+	protected volatile long undelivered;
+	// transmission statistics, written under the lock
+	protected volatile long batchCount, writeCount, bytesWritten;
+	protected volatile double batchRate, byteRate;
+	protected final ConnectionStats connection = new ConnectionStats();
+	// compression of the whole stream, level -1 is the deflater default
+	protected boolean compression;
+	protected int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+	protected volatile DeflatingOutputStream deflating;
+	private long rateStarted = System.nanoTime(), rateBatches, rateBytes;
+	protected static final byte[] CHALLENGE = "  ".getBytes();
+	protected static final long SECOND = 1000000000L;
 	protected static final Logger LOGGER = StatusLogger.getLogger();
 	
 	public TcpManager(String hosts, int port, int delay, int retries, Layout<? extends Serializable> layout) {
@@ -70,6 +100,36 @@ public class TcpManager implements SocketManager{
 		this.sslConfiguration = sslConfiguration;
 	}
 
+	/**
+	 * Accumulates encoded events and writes them out in one go once the
+	 * batch reaches the size (in bytes) or gets older than linger time.
+	 * Appender with a journal turns it off, it batches journaled events itself.
+	 */
+	public void setBatching(int batchSize, long lingerTime) {
+		this.batchSize = Math.max(batchSize, 0);
+		this.lingerTime = Math.max(lingerTime, 0);
+	}
+
+	public boolean isBatching() {
+		return batchSize > 0;
+	}
+
+	/**
+	 * Compresses the connection with deflate, flushed at batch boundaries,
+	 * so it pays off with batching enabled
+	 */
+	public void setCompression(boolean enabled, int level) {
+		this.compression = enabled;
+		this.compressionLevel = level;
+	}
+
+	/**
+	 * Sends each distinct stack trace once per connection, then only its reference
+	 */
+	public void setTraceReferences(boolean enabled) {
+		buffer.setTraceReferences(enabled);
+	}
+
 	@Override
 	public void start(){
 		if(started)
@@ -82,8 +142,22 @@ public class TcpManager implements SocketManager{
 	public void stop(){
 		if(!started)
 			return;
+		flush();
 		started = false;
-		cleanUp();
+		synchronized(this) {
+			// batch kept while disconnected has nowhere to go
+			if(pendingEvents > 0) {
+				LOGGER.warn("logFaces: {} events of unsent batch discarded on stop", pendingEvents);
+				undelivered += pendingEvents;
+				pendingEvents = 0;
+				buffer.reset();
+				batchEvents.clear();
+			}
+			cleanUp();
+		}
+		LOGGER.debug("logFaces: sent {} events in {} batches, {} bytes per write", totalCount, batchCount, getBytesPerWrite());
+		if(compression)
+			LOGGER.debug("logFaces: compression ratio {}, {} us per batch", getCompressionRatio(), getCompressionMicrosPerBatch());
 	}
 	
 	@Override
@@ -92,20 +166,18 @@ public class TcpManager implements SocketManager{
 	}
 	
 	@Override
-	public boolean send(LogEvent event){
+	public synchronized boolean send(LogEvent event){
 		if(event == null || !operational)
 			return false;
+		if(batchSize > 0)
+			return append(event);
 		try{
-			// challenge few bytes to test broken connection
-			// without doing this, we may loose the event in socket buffers
-			oos.write("  ".getBytes());
-			oos.flush();
-			
-			// transmit actual data
-			String formatted = layout.toSerializable(event).toString();
-			oos.write(formatted.getBytes());
-			oos.flush();
+			// encode straight into the reusable buffer
+			begin();
+			layout.encode(event, buffer);
+			int writes = transmit();
 			totalCount++;
+			written(writes, buffer.size());
 			return true;
 		}
 		catch(IOException e){
@@ -114,26 +186,243 @@ public class TcpManager implements SocketManager{
 		}
 		catch(Exception e){
 			LOGGER.warn("general purpose error: {}", e.getMessage());
+			// the trace may have been marked as sent without being sent
+			buffer.clearTraces();
+		}
+		finally{
+			buffer.reset();
+		}
+		return false;
+	}
+
+	/**
+	 * Encodes the event at the end of current batch, the batch goes out when
+	 * it's full, too old, or the event closes a batch of async loggers.
+	 * Once encoded, the event is owned by the batch and will be written
+	 * even if this attempt fails, so true is returned.
+	 */
+	protected boolean append(LogEvent event) {
+		int mark = begin();
+		try{
+			layout.encode(event, buffer);
+		}
+		catch(Exception e){
+			LOGGER.warn("general purpose error: {}", e.getMessage());
+			buffer.truncate(mark);
+			buffer.clearTraces();
+			return false;
+		}
+
+		appended(event, mark, event.isEndOfBatch());
+		return true;
+	}
+
+	private void appended(LogEvent event, int mark, boolean endOfBatch) {
+		if(buffer.isTraceReferences()) {
+			int n = batchEvents.size();
+			if(n == batchMarks.length)
+				batchMarks = Arrays.copyOf(batchMarks, n * 2);
+			batchMarks[n] = mark;
+			batchEvents.add(event);
+		}
+		totalCount++;
+		long now = System.nanoTime();
+		if(pendingEvents++ == 0)
+			batchStarted = now;
+		if(buffer.size() >= batchSize || endOfBatch || now - batchStarted >= lingerTime * 1000000L)
+			writeBatch();
+	}
+
+	/**
+	 * Sends event serialized earlier, spilled events are encoded without
+	 * trace references, so they don't depend on the connection
+	 */
+	@Override
+	public synchronized boolean send(byte[] data, int offset, int length) {
+		if(!operational)
+			return false;
+		int mark = begin();
+		buffer.writeBytes(data, offset, length);
+		if(batchSize > 0) {
+			appended(null, mark, false);
+			return true;
+		}
+		try{
+			int writes = transmit();
+			totalCount++;
+			written(writes, length);
+			return true;
+		}
+		catch(IOException e){
+			LOGGER.warn("socket write failed: {}", e.getMessage());
+			reconnect();
+		}
+		finally{
+			buffer.reset();
 		}
 		return false;
 	}
 
+	@Override
+	public synchronized void flush() {
+		if(operational && batchSize > 0 && pendingEvents > 0)
+			writeBatch();
+	}
+
+	/**
+	 * @return events discarded with the batch they were in when stopped
+	 */
+	@Override
+	public long getUndelivered() {
+		return undelivered;
+	}
+
+	/**
+	 * Starts the buffer with the probe, unless it holds something already
+	 * @return where the next event starts
+	 */
+	private int begin() {
+		if(buffer.isEmpty())
+			buffer.writeBytes(probe());
+		return buffer.size();
+	}
+
+	/**
+	 * Few bytes going ahead of every batch in the same write to test broken
+	 * connection, the server skips them
+	 */
+	protected byte[] probe() {
+		return CHALLENGE;
+	}
+
+	/**
+	 * Probing the connection before every event doesn't go along with
+	 * batching, instead one probe goes ahead of the whole batch. A peer which
+	 * went away answers with reset and the write after it fails.
+	 * The batch is then kept and written first thing after reconnect.
+	 */
+	private void writeBatch() {
+		try{
+			written(transmit(), buffer.size());
+			buffer.reset();
+			batchEvents.clear();
+			pendingEvents = 0;
+		}
+		catch(IOException e){
+			LOGGER.warn("socket write failed, {} bytes kept for resend: {}", buffer.size(), e.getMessage());
+			reconnect();
+		}
+	}
+
+	/**
+	 * Writes content of the buffer to the connection
+	 * @return number of socket writes it took
+	 */
+	protected int transmit() throws IOException {
+		// the probe is in the buffer already, one write and one flush
+		buffer.writeTo(oos);
+		oos.flush();
+		return 1;
+	}
+
+	private void written(int writes, int bytes) {
+		writeCount += writes;
+		bytesWritten += bytes;
+		batchCount++;
+		rateBatches++;
+		rateBytes += bytes;
+		long now = System.nanoTime();
+		if(now - rateStarted >= SECOND) {
+			batchRate = rateBatches * (double)SECOND / (now - rateStarted);
+			byteRate = rateBytes * (double)SECOND / (now - rateStarted);
+			rateStarted = now;
+			rateBatches = 0;
+			rateBytes = 0;
+		}
+	}
+
+	public long getTotalCount() {
+		return totalCount;
+	}
+
+	public long getBatchCount() {
+		return batchCount;
+	}
+
+	public long getWriteCount() {
+		return writeCount;
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	@Override
+	public long getReconnects() {
+		return connection.getReconnects();
+	}
+
+	@Override
+	public long getDisconnectedMillis() {
+		return connection.getDisconnectedMillis();
+	}
+
+	/**
+	 * @return batches written per second, measured over the last second or so
+	 */
+	public double getBatchesPerSecond() {
+		return System.nanoTime() - rateStarted > 2 * SECOND ? 0 : batchRate;
+	}
+
+	/**
+	 * @return bytes written per second, measured over the last second or so
+	 */
+	public double getBytesPerSecond() {
+		return System.nanoTime() - rateStarted > 2 * SECOND ? 0 : byteRate;
+	}
+
+	@Override
+	public String getCurrentHost() {
+		return operational ? hosts.get(hostIndex) : null;
+	}
+
+	/**
+	 * @return bytes encoded and waiting in current batch, an estimate when called from other threads
+	 */
+	public int getPendingBytes() {
+		return buffer.size();
+	}
+
+	public long getBytesPerWrite() {
+		long writes = writeCount;
+		return writes == 0 ? 0 : bytesWritten / writes;
+	}
+
+	/**
+	 * @return compression ratio of current connection, 0 if not compressed
+	 */
+	public double getCompressionRatio() {
+		DeflatingOutputStream stream = deflating;
+		return stream != null ? stream.getRatio() : 0;
+	}
+
+	/**
+	 * @return time spent compressing each batch, in microseconds
+	 */
+	public double getCompressionMicrosPerBatch() {
+		DeflatingOutputStream stream = deflating;
+		return stream != null ? stream.getMicrosPerBatch() : 0;
+	}
+
 	protected void cleanUp() {
 		if (oos != null) {
-			try {
-				oos.close();
-			}
-			catch (IOException e) {
-				LOGGER.warn("failed to close socket stream: {}", e.getMessage());
-			}
-
-			oos = null;
+			closeStream();
 			operational = false;
 		}
 
 		if (connector != null) {
-			connector.shutdown = true;
-			connector.interrupt();
+			connector.cancel();
 			connector = null;
 		}
 	}
@@ -147,54 +436,150 @@ public class TcpManager implements SocketManager{
 		}
 	}
 	
-	protected void reconnect() {
+	protected void closeStream() {
+		try {
+			oos.close();
+		}
+		catch (IOException e) {
+			LOGGER.warn("failed to close socket stream: {}", e.getMessage());
+		}
 		oos = null;
+	}
+
+	protected void reconnect() {
+		if(oos != null)
+			closeStream();
 		operational = false;
+		// new connection knows nothing about traces sent before
+		buffer.clearTraces();
+		relayout();
+		if(started)
+			connection.disconnected();
 		if(connector == null && nofRetries > 0 && started) {
 			address = getAddressByName(hosts.get(hostIndex));
 			connector = new Connector();
-			connector.setDaemon(true);
-			connector.setPriority(Thread.MIN_PRIORITY);
-			connector.start();
+			connector.schedule(nofFailures > 0 ? reconnectionDelay : 0);
 		}
 	}
 
-	class Connector extends Thread {
-		boolean shutdown = false;
-		
-		public void run() {
-			while(!shutdown){
+	/**
+	 * Batch kept for resend may refer to traces sent over the connection which
+	 * failed, its events are laid out again so the next one gets them in full
+	 */
+	private void relayout() {
+		int n = batchEvents.size();
+		if(n == 0)
+			return;
+		byte[] kept = Arrays.copyOf(buffer.array(), buffer.size());
+		// the probe ahead of the first event stays
+		buffer.truncate(batchMarks[0]);
+		for(int i = 0; i < n; i++) {
+			int start = batchMarks[i];
+			int end = i + 1 < n ? batchMarks[i + 1] : kept.length;
+			LogEvent event = batchEvents.get(i);
+			int mark = buffer.size();
+			batchMarks[i] = mark;
+			if(event != null) {
 				try{
-					if(nofFailures > 0)
-						sleep(reconnectionDelay);
-					oos = createSocket().getOutputStream();
-					operational = true;
-					connector = null;
-					return;
-				} 
-				catch (InterruptedException e){
-					return;
-				} 
+					layout.encode(event, buffer);
+					continue;
+				}
 				catch(Exception e){
-					if(++nofFailures >= nofRetries){
-						if(++hostIndex >= hosts.size())
-							hostIndex = 0;
-						LOGGER.warn(String.format("logFaces: appender unable to connect to %s after %d retries, trying %s", address, nofRetries, hosts.get(hostIndex)));
-						nofFailures = 0;
-						connector = null;
-						reconnect();
-						return;
+					buffer.truncate(mark);
+				}
+			}
+			buffer.writeBytes(kept, start, end - start);
+		}
+	}
+
+	/**
+	 * Connection attempts run on the shared scheduler, each one
+	 * after a failure is scheduled reconnection delay later
+	 */
+	class Connector implements Runnable {
+		volatile boolean shutdown = false;
+		volatile ScheduledFuture<?> attempt;
+
+		void schedule(long delay) {
+			attempt = SharedScheduler.schedule(this, delay);
+		}
+
+		void cancel() {
+			shutdown = true;
+			ScheduledFuture<?> pending = attempt;
+			if(pending != null)
+				pending.cancel(false);
+		}
+
+		public void run() {
+			if(shutdown)
+				return;
+			OutputStream stream;
+			try{
+				stream = compress(open());
+			} 
+			catch(Exception e){
+				failed();
+				return;
+			}
+			synchronized(TcpManager.this){
+				// stopped while connecting, the lock keeps stop from running in between
+				if(shutdown){
+					try{
+						stream.close();
+					}
+					catch(IOException ce){
 					}
+					return;
+				}
+				oos = stream;
+				operational = true;
+				connection.connected();
+				connector = null;
+			}
+		}
+
+		private void failed() {
+			synchronized(TcpManager.this){
+				if(shutdown)
+					return;
+				if(++nofFailures < nofRetries){
+					schedule(reconnectionDelay);
+					return;
 				}
+				if(++hostIndex >= hosts.size())
+					hostIndex = 0;
+				LOGGER.warn(String.format("logFaces: appender unable to connect to %s after %d retries, trying %s", address, nofRetries, hosts.get(hostIndex)));
+				nofFailures = 0;
+				connector = null;
 			}
+			// resolving next host doesn't hold the lock
+			reconnect();
 		}
-		
-		private Socket createSocket() throws Exception{
-			SocketFactory factory = (sslConfiguration == null) ? SocketFactory.getDefault() : sslConfiguration.getSslSocketFactory(); 
-			Socket socket = factory.createSocket(address, port);
+	}
+
+	protected OutputStream compress(OutputStream stream) {
+		if(!compression)
+			return stream;
+		deflating = new DeflatingOutputStream(stream, compressionLevel);
+		return deflating;
+	}
+
+	/**
+	 * Opens new connection to current address
+	 */
+	protected OutputStream open() throws Exception{
+		SocketFactory factory = (sslConfiguration == null) ? SocketFactory.getDefault() : sslConfiguration.getSslSocketFactory(); 
+		Socket socket = factory.createSocket();
+		try {
 			socket.setKeepAlive(true);
 			socket.setTcpNoDelay(true);
-			return socket;
+			socket.connect(new InetSocketAddress(address, port), SharedScheduler.connectTimeout(reconnectionDelay));
+			return socket.getOutputStream();
+		}
+		catch(IOException e) {
+			socket.close();
+			throw e;
 		}
 	}
 }
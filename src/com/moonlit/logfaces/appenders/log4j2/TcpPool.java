@@ -0,0 +1,407 @@
+/*
+ * This is a derivative work of Apache log4j project and adapted for logFaces.
+ * All credits go to the authors of log4j framework whose source code is re-used.
+ * 
+ * ******************************************************************************** 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package com.moonlit.logfaces.appenders.log4j2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import com.moonlit.logfaces.appenders.util.Balancer;
+import com.moonlit.logfaces.appenders.util.DispatchLoop;
+import com.moonlit.logfaces.appenders.util.MpscQueue;
+
+/**
+ * Several parallel connections to the server, each one a TcpManager of
+ * its own with sender loop encoding and writing its events. Senders run
+ * in turns on the shared dispatcher lane, not on threads of their own. A single
+ * stream is limited by its window over a link with high latency and by
+ * one thread doing layout and writes, connections lift both limits.
+ *
+ * The dispatcher hands events over to current connection and moves to the
+ * next one after a batch worth of events, chosen by the balancer, or picks
+ * connection for every event when hashing a key. Connections which are down
+ * are skipped and reconnect on their own, events already handed over to one
+ * move to another connection. Order is kept per connection only, the server
+ * orders events by time anyway.
+ *
+ * Connections either all go to the same host list with failover, or each
+ * one is pinned to its host when balancing across servers. A pinned
+ * connection keeps retrying its host in the background while it's down.
+ */
+public class TcpPool implements SocketManager {
+	public static final int SENDER_QUEUE_SIZE = 1024;
+	public static final int EVENTS_PER_TURN = 256;
+	protected static final long SEND_TIMEOUT = 5000;
+	protected static final long IDLE_POLL = 500;
+	protected static final long RECONNECT_POLL = 100;
+
+	protected final List<Sender> senders = new ArrayList<Sender>();
+	protected final List<TcpManager> managers = new ArrayList<TcpManager>();
+	protected final Balancer<Sender> balancer;
+	// MDC key hashed to pick connection, application name when not present
+	protected String hashKey, application;
+	// dispatcher only
+	protected Sender current;
+	protected int handedOver;
+	protected volatile boolean started;
+	protected volatile long undelivered;
+	protected static final Logger LOGGER = StatusLogger.getLogger();
+
+	public TcpPool(List<TcpManager> connections) {
+		this(connections, Balancer.Strategy.ROUND_ROBIN);
+	}
+
+	public TcpPool(List<TcpManager> connections, Balancer.Strategy strategy) {
+		for(int i = 0; i < connections.size(); i++) {
+			managers.add(connections.get(i));
+			senders.add(new Sender(connections.get(i), i));
+		}
+		balancer = new Balancer<Sender>(senders, strategy);
+	}
+
+	/**
+	 * Key for hash strategy, MDC value of the key or the application name
+	 */
+	public void setHashKey(String hashKey, String application) {
+		this.hashKey = hashKey;
+		this.application = application;
+	}
+
+	@Override
+	public void start() {
+		if(started)
+			return;
+		started = true;
+		for(Sender sender : senders) {
+			sender.manager.start();
+			sender.start();
+		}
+	}
+
+	@Override
+	public void stop() {
+		if(!started)
+			return;
+		started = false;
+		for(Sender sender : senders)
+			sender.wakeUp();
+		for(Sender sender : senders) {
+			try {
+				sender.join(SEND_TIMEOUT);
+			}
+			catch(InterruptedException e) {
+			}
+		}
+		int orphans = 0;
+		for(Sender sender : senders) {
+			sender.manager.stop();
+			orphans += sender.orphans + sender.queue.size() + sender.manager.getUndelivered();
+			LOGGER.debug("logFaces: connection {} sent {} events, {} bytes in {} batches", sender.index, 
+					sender.manager.getTotalCount(), sender.manager.getBytesWritten(), sender.manager.getBatchCount());
+		}
+		if(orphans > 0)
+			LOGGER.warn("logFaces: {} events left undelivered by connection pool", orphans);
+		undelivered = orphans;
+	}
+
+	@Override
+	public boolean isOperational() {
+		for(TcpManager manager : managers) {
+			if(manager.isOperational())
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Hands the event over to a connection, events of async loggers are
+	 * copied as they are reused once this returns
+	 */
+	@Override
+	public boolean send(LogEvent event) {
+		if(event == null)
+			return false;
+		Sender sender = next(event);
+		if(sender == null)
+			return false;
+		try {
+			return sender.queue.offer(event.toImmutable(), SEND_TIMEOUT, TimeUnit.MILLISECONDS);
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Serialized events go out right away on calling thread, so that the
+	 * result tells if they were written
+	 */
+	@Override
+	public boolean send(byte[] data, int offset, int length) {
+		Sender sender = next(null);
+		return sender != null && sender.manager.send(data, offset, length);
+	}
+
+	/**
+	 * @return connection to use for next event, null when all are down
+	 */
+	private Sender next(LogEvent event) {
+		if(balancer.getStrategy() == Balancer.Strategy.HASH)
+			return balancer.choose(keyOf(event));
+		Sender sender = current;
+		if(sender == null || handedOver++ >= EVENTS_PER_TURN || !sender.isAvailable()) {
+			handedOver = 1;
+			current = sender = balancer.choose(null);
+		}
+		return sender;
+	}
+
+	private CharSequence keyOf(LogEvent event) {
+		if(event != null && hashKey != null) {
+			Object value = event.getContextData().getValue(hashKey);
+			if(value instanceof CharSequence)
+				return (CharSequence)value;
+			if(value != null)
+				return value.toString();
+		}
+		return application;
+	}
+
+	/**
+	 * @return some other connection which is up and has room, any thread
+	 */
+	private Sender other(Sender busy) {
+		for(Sender sender : senders) {
+			if(sender != busy && sender.isAvailable() && sender.queue.remainingCapacity() > 0)
+				return sender;
+		}
+		return null;
+	}
+
+	/**
+	 * Senders flush partial batches on their own once they go idle
+	 */
+	@Override
+	public void flush() {
+	}
+
+	public List<TcpManager> getConnections() {
+		return Collections.unmodifiableList(managers);
+	}
+
+	public long getTotalCount() {
+		long total = 0;
+		for(TcpManager manager : managers)
+			total += manager.getTotalCount();
+		return total;
+	}
+
+	@Override
+	public long getBytesWritten() {
+		long total = 0;
+		for(TcpManager manager : managers)
+			total += manager.getBytesWritten();
+		return total;
+	}
+
+	@Override
+	public long getReconnects() {
+		long total = 0;
+		for(TcpManager manager : managers)
+			total += manager.getReconnects();
+		return total;
+	}
+
+	/**
+	 * @return hosts of connections which are up, null when all are down
+	 */
+	@Override
+	public String getCurrentHost() {
+		StringBuilder hosts = new StringBuilder();
+		for(TcpManager manager : managers) {
+			String host = manager.getCurrentHost();
+			if(host != null && hosts.indexOf(host) < 0)
+				hosts.append(hosts.length() > 0 ? "," : "").append(host);
+		}
+		return hosts.length() > 0 ? hosts.toString() : null;
+	}
+
+	/**
+	 * @return time each connection spent down, summed
+	 */
+	@Override
+	public long getDisconnectedMillis() {
+		long total = 0;
+		for(TcpManager manager : managers)
+			total += manager.getDisconnectedMillis();
+		return total;
+	}
+
+	/**
+	 * @return events left in sender queues or dropped by senders and kept batches, once stopped
+	 */
+	@Override
+	public long getUndelivered() {
+		return undelivered;
+	}
+
+	public double getBytesPerSecond() {
+		double total = 0;
+		for(TcpManager manager : managers)
+			total += manager.getBytesPerSecond();
+		return total;
+	}
+
+	class Sender extends DispatchLoop implements Balancer.Target {
+		final TcpManager manager;
+		final MpscQueue<LogEvent> queue = new MpscQueue<LogEvent>(SENDER_QUEUE_SIZE);
+		final int index;
+		int orphans;
+		// event waiting for reconnect and how many times it failed
+		LogEvent retry;
+		int failures;
+		// when partial batch is flushed unless events come, 0 with events in hand, -1 once flushed
+		long flushDue;
+
+		Sender(TcpManager manager, int index) {
+			this.manager = manager;
+			this.index = index;
+			queue.setConsumer(this);
+		}
+
+		@Override
+		public boolean isAvailable() {
+			return manager.isOperational();
+		}
+
+		/**
+		 * Queued events are estimated with average size of events written so far
+		 */
+		@Override
+		public long getOutstandingBytes() {
+			long count = manager.getTotalCount();
+			long average = count > 0 ? manager.getBytesWritten() / count : 0;
+			return queue.size() * average + manager.getPendingBytes();
+		}
+
+		/**
+		 * Sends up to a turn worth of events, the loop ends once stopped and drained
+		 */
+		@Override
+		protected long turn() {
+			try {
+				if(!manager.isOperational()) {
+					reroute();
+					return started ? RECONNECT_POLL : finish();
+				}
+				if(retry != null) {
+					if(!send(retry))
+						return RECONNECT_POLL;
+					retry = null;
+				}
+				int count = 0;
+				LogEvent event;
+				while(count < EVENTS_PER_TURN && (event = queue.poll()) != null) {
+					count++;
+					if(!send(event)) {
+						retry = event;
+						return RECONNECT_POLL;
+					}
+				}
+				if(count > 0)
+					return 0;
+				if(!started)
+					return finish();
+				return linger();
+			}
+			catch(Exception e) {
+				LOGGER.warn("logFaces: connection {} failed: {}", index, e.getMessage());
+				return started ? RECONNECT_POLL : finish();
+			}
+		}
+
+		/**
+		 * Went idle, partial batch doesn't wait longer than lingerTime
+		 */
+		private long linger() {
+			long now = System.currentTimeMillis();
+			if(flushDue == 0)
+				flushDue = now + manager.lingerTime;
+			if(flushDue > now)
+				return flushDue - now;
+			if(flushDue > 0) {
+				manager.flush();
+				flushDue = -1;
+			}
+			return IDLE_POLL;
+		}
+
+		private long finish() {
+			if(retry != null) {
+				orphans++;
+				retry = null;
+			}
+			manager.flush();
+			return -1;
+		}
+
+		/**
+		 * Moves events waiting for this connection to others while it's down
+		 */
+		private void reroute() {
+			LogEvent event;
+			while((event = queue.peek()) != null) {
+				Sender other = other(this);
+				if(other == null || !other.queue.offer(event))
+					return;
+				queue.poll();
+			}
+		}
+
+		/**
+		 * Tries few times, waiting for reconnect in between, unless other connection takes it
+		 * @return false if the event has to wait for reconnect
+		 */
+		private boolean send(LogEvent event) {
+			flushDue = 0;
+			if(manager.send(event)) {
+				failures = 0;
+				return true;
+			}
+			Sender other = other(this);
+			if(other == null || !other.queue.offer(event)) {
+				if(++failures < 3 && started)
+					return false;
+				LOGGER.warn("log event dropped, unable to deliver to server over connection {}", index);
+				orphans++;
+			}
+			failures = 0;
+			return true;
+		}
+	}
+}
@@ -39,6 +39,10 @@ public class UdpManager implements SocketManager{
     protected InetAddress address;
     protected int port;
     protected Layout<? extends Serializable> layout;
+    protected final BufferDestination buffer = new BufferDestination();
+    protected DatagramPacket packet;
+    protected String host;
+    protected volatile long bytesWritten;
     protected static final Logger LOGGER = StatusLogger.getLogger();
 	
 	public UdpManager(String host, int port, Layout<? extends Serializable> layout){
@@ -46,6 +50,7 @@ public class UdpManager implements SocketManager{
         this.port = port;
         try {
         	host = (host != null) ? host : "localhost";
+        	this.host = host;
             address = InetAddress.getByName(host);
         } catch (final UnknownHostException ex) {
             throw new AppenderLoggingException("Could not find host " + host, ex);
@@ -70,14 +75,64 @@ public class UdpManager implements SocketManager{
 	public boolean isOperational() {
 		return true;
 	}
+
+	@Override
+	public void flush() {
+	}
 	
 	@Override
-	public boolean send(LogEvent event) {
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * Datagrams don't connect, there is nothing to reconnect
+	 */
+	@Override
+	public long getReconnects() {
+		return 0;
+	}
+
+	@Override
+	public String getCurrentHost() {
+		return host;
+	}
+
+	@Override
+	public long getDisconnectedMillis() {
+		return 0;
+	}
+
+	/**
+	 * Datagrams go out as they are sent, nothing is held back
+	 */
+	@Override
+	public long getUndelivered() {
+		return 0;
+	}
+
+	@Override
+	public synchronized boolean send(LogEvent event) {
+		try {
+			layout.encode(event, buffer);
+			return send(buffer.array(), 0, buffer.size());
+		} catch (Exception e) {
+			LOGGER.warn("failed sending datagram, error: {}", e.getMessage());
+			return false;
+		} finally {
+			buffer.reset();
+		}
+	}
+
+	@Override
+	public synchronized boolean send(byte[] data, int offset, int length) {
 		try {
-			String formatted = layout.toSerializable(event).toString();
-			byte[] data = formatted.getBytes();
-			DatagramPacket packet = new DatagramPacket(data, data.length, address, port);
+			if(packet == null)
+				packet = new DatagramPacket(data, offset, length, address, port);
+			else
+				packet.setData(data, offset, length);
 			ds.send(packet);
+			bytesWritten += length;
 			return true;
 		} catch (Exception e) {
 			LOGGER.warn("failed sending datagram, error: {}", e.getMessage());
@@ -9,26 +9,56 @@
  */
 
 package com.moonlit.logfaces.appenders.logback;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.security.KeyStore;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
 import javax.net.SocketFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 
+import com.moonlit.logfaces.appenders.util.AppenderMetrics;
+import com.moonlit.logfaces.appenders.util.Balancer;
+import com.moonlit.logfaces.appenders.util.ByteRing;
+import com.moonlit.logfaces.appenders.util.ChannelOutputStream;
+import com.moonlit.logfaces.appenders.util.Coalescer;
+import com.moonlit.logfaces.appenders.util.DispatchLoop;
+import com.moonlit.logfaces.appenders.util.ConnectionStats;
+import com.moonlit.logfaces.appenders.util.DeflatingOutputStream;
+import com.moonlit.logfaces.appenders.util.EventBuffer;
+import com.moonlit.logfaces.appenders.util.EventQueue;
+import com.moonlit.logfaces.appenders.util.Journal;
+import com.moonlit.logfaces.appenders.util.LatencyHistogram;
+import com.moonlit.logfaces.appenders.util.MpscQueue;
+import com.moonlit.logfaces.appenders.util.PriorityLanes;
+import com.moonlit.logfaces.appenders.util.RateLimiter;
+import com.moonlit.logfaces.appenders.util.SegmentLog;
+import com.moonlit.logfaces.appenders.util.SharedScheduler;
+import com.moonlit.logfaces.appenders.util.Utils;
+
+import org.slf4j.Marker;
+import org.slf4j.event.KeyValuePair;
+
+import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.ThrowableProxy;
+import ch.qos.logback.classic.spi.LoggingEvent;
 import ch.qos.logback.core.Appender;
 import ch.qos.logback.core.AppenderBase;
 import ch.qos.logback.core.spi.AppenderAttachable;
@@ -38,11 +68,17 @@ public class LogfacesAppender extends AppenderBase<ILoggingEvent> implements App
 	public static final int DEFAULT_SHUTDOWN_TIMEOUT = 5000;
 	public static final String APPLICATION_KEY = "application";
 	public static final String HOSTNAME_KEY = "hostname";
+	public static final int MAX_BATCH_SIZE = 256;
+	protected static final int MAX_WRITE_SIZE = 64 * 1024;
+	public static final long DEFAULT_SPILL_SIZE = 256 * 1024 * 1024;
+	public static final long DEFAULT_ENCODE_BUFFER_SIZE = 4 * 1024 * 1024;
+	public static final String REPEATS_KEY = "repeats";
+	public static final long DEFAULT_LATENCY_REPORT = 60000;
 
-	protected String remoteHost, trustStore, trustStorePassword, format;
+	protected String remoteHost, trustStore, trustStorePassword, format, protocol;
 	protected InetAddress address;
 	protected int port = 55200;
-	protected OutputStreamWriter writer;
+	protected OutputStream os;
 	protected String application;
 	protected boolean locationInfo = false;
 	protected boolean delegateMarker = false;
@@ -51,7 +87,14 @@ public class LogfacesAppender extends AppenderBase<ILoggingEvent> implements App
 	protected LogfacesLayout layout;
 
 	protected Appender<ILoggingEvent> backupAppender;
-	protected BlockingQueue<ILoggingEvent>  queue;
+	protected EventQueue<ILoggingEvent>  queue;
+	// lanes per level when shedding is configured, the queue is the lanes then
+	protected String shedding;
+	protected PriorityLanes<ILoggingEvent> lanes;
+	// limits of runaway loggers, checked before anything else is done with the event
+	protected RateLimiter limiter;
+	// repeats of the same event within a window are counted instead of sent
+	protected Coalescer<ILoggingEvent> coalescer;
 	protected List<String> hosts = new ArrayList<String>();
 	protected Dispatcher dispatcher;
 	protected int hostIndex = 0;
@@ -61,8 +104,104 @@ public class LogfacesAppender extends AppenderBase<ILoggingEvent> implements App
 	protected int queueSize = 500;
 	protected int nofFailures = 0;
 	protected int reconnectionDelay = DEFAULT_RECONNECTION_DELAY;
+	protected int sendBufferSize;
+	protected String compression;
+	protected int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+	// channel of nio connection and compression of current connection, if any
+	protected volatile ChannelOutputStream channel;
+	protected volatile DeflatingOutputStream deflating;
 	protected int warnOverflow;
+	// disk spill taking events the queue can't, disabled without directory
+	protected String spillDir;
+	protected long spillSize = DEFAULT_SPILL_SIZE;
+	protected SegmentLog spill;
+	// journal takes every event ahead of sending, the spill is the journal then
+	protected String journalDir;
+	protected long journalSync = Journal.DEFAULT_SYNC_INTERVAL;
+	protected boolean journaling;
+	// balancing across all hosts, one link per host, instead of failover
+	protected String balance, balanceKey;
+	protected List<Link> links;
+	protected Balancer<Link> balancer;
+	protected volatile ScheduledFuture<?> prober;
+	// events encoded by the caller wait here as bytes instead of in the queue
+	protected boolean encodeOnAppend;
+	protected long encodeBufferSize = DEFAULT_ENCODE_BUFFER_SIZE;
+	protected volatile ByteRing encoded;
+	// off-heap buffer bounded by bytes, when set it takes all events instead of the queue
+	protected long bufferBytes;
+	private final ThreadLocal<EventBuffer> spillBuffers = new ThreadLocal<EventBuffer>(){
+		@Override
+		protected EventBuffer initialValue() {
+			return new EventBuffer();
+		}
+	};
 	protected SocketFactory socketFactory;
+	protected final EventBuffer buffer = new EventBuffer();
+	// latencies of enqueueing on caller thread, waiting in the queue or buffer
+	// and encoding plus writing on the dispatcher, only when measured
+	protected boolean measureLatency;
+	protected long latencyReport = DEFAULT_LATENCY_REPORT;
+	protected LatencyHistogram enqueueLatency, queueLatency, sendLatency;
+	// counters of the pipeline, registered as MBean unless jmx is off
+	protected boolean jmx = true;
+	protected final ConnectionStats connection = new ConnectionStats();
+	protected volatile long bytesWritten;
+	protected final AppenderMetrics metrics = new AppenderMetrics(){
+		@Override
+		public int getQueueDepth(){
+			return getQueuedEvents();
+		}
+
+		@Override
+		public int getQueueCapacity(){
+			EventQueue<ILoggingEvent> q = queue;
+			return q != null ? q.capacity() : queueSize;
+		}
+
+		@Override
+		public long getBytesSent(){
+			long bytes = bytesWritten;
+			if(links != null){
+				for(Link link : links)
+					bytes += link.bytesWritten;
+			}
+			return bytes;
+		}
+
+		@Override
+		public long getReconnects(){
+			if(links == null)
+				return connection.getReconnects();
+			long reconnects = 0;
+			for(Link link : links)
+				reconnects += link.connection.getReconnects();
+			return reconnects;
+		}
+
+		@Override
+		public String getCurrentHost(){
+			if(links == null)
+				return os != null ? hosts.get(hostIndex) : null;
+			StringBuilder up = new StringBuilder();
+			for(Link link : links){
+				if(link.available)
+					up.append(up.length() > 0 ? "," : "").append(link.host);
+			}
+			return up.length() > 0 ? up.toString() : null;
+		}
+
+		@Override
+		public long getDisconnectedMillis(){
+			if(links == null)
+				return connection.getDisconnectedMillis();
+			long millis = 0;
+			for(Link link : links)
+				millis += link.connection.getDisconnectedMillis();
+			return millis;
+		}
+	};
+	protected static final byte[] CHALLENGE = "   ".getBytes();
 
 	@Override
 	public void start(){
@@ -73,27 +212,113 @@ public class LogfacesAppender extends AppenderBase<ILoggingEvent> implements App
 
 		createLayout();
 		createSocketFactory();
+		if(isNio() && socketFactory != SocketFactory.getDefault()){
+			addWarn("logFaces: nio protocol doesn't support SSL, falling back to tcp");
+			protocol = "tcp";
+		}
 		
 		// prepare async stuff
 		closing = false;
-		queue = new ArrayBlockingQueue<ILoggingEvent>(queueSize, true);
+		if(shedding != null)
+			queue = lanes = createLanes();
+		else
+			queue = new MpscQueue<ILoggingEvent>(queueSize);
+		encoded = encodeOnAppend ? new ByteRing((int)Math.min(encodeBufferSize, Integer.MAX_VALUE - 8)) : null;
+		if(bufferBytes > 0){
+			try{
+				encoded = new ByteRing((int)Math.min(bufferBytes, Integer.MAX_VALUE - 8), true);
+			}
+			catch(OutOfMemoryError e){
+				addWarn(String.format("logFaces: can't allocate %d bytes of direct memory, buffer disabled: %s", bufferBytes, e.getMessage()));
+			}
+		}
+		if(measureLatency){
+			enqueueLatency = new LatencyHistogram();
+			queueLatency = new LatencyHistogram();
+			sendLatency = new LatencyHistogram();
+			queue.measureResidence(queueLatency);
+			if(encoded != null)
+				encoded.measureResidence(queueLatency);
+		}
+		if(spillDir != null || journalDir != null)
+			openSpill();
 		dispatcher = new Dispatcher();
-		dispatcher.setName("LogfacesDispatcher");
-		dispatcher.setDaemon(true);
+		queue.setConsumer(dispatcher);
+		if(spill != null)
+			spill.setReader(dispatcher);
 		dispatcher.start();
-		while(!dispatcher.running){
-			try {
-				Thread.sleep(100);
-			} catch (InterruptedException e) {
+		started = true;
+		if(jmx){
+			try{
+				metrics.register("logback", name);
+			}
+			catch(Exception e){
+				addWarn("logFaces: appender metrics not registered with JMX: " + e.getMessage());
 			}
 		}
-		started = true;
 
-		new Thread(new Runnable(){
+		if(balance != null && hosts.size() > 1){
+			startBalancing();
+			return;
+		}
+		SharedScheduler.execute(new Runnable(){
 			public void run() {
 				connect();
 			}
-		}).start();
+		});
+	}
+
+	/**
+	 * Lanes of error, warn, info, debug and trace events, the first two are urgent
+	 */
+	private PriorityLanes<ILoggingEvent> createLanes(){
+		return new PriorityLanes<ILoggingEvent>(queueSize, 5, 2, PriorityLanes.Shedding.parse(shedding)){
+			@Override
+			protected int laneOf(ILoggingEvent event){
+				return severityOf(event);
+			}
+		};
+	}
+
+	/**
+	 * @return 0 for error to 4 for trace, same as rate limits and lanes
+	 */
+	static int severityOf(ILoggingEvent event){
+		int level = event.getLevel().toInt();
+		if(level >= Level.ERROR_INT)
+			return 0;
+		if(level >= Level.WARN_INT)
+			return 1;
+		if(level >= Level.INFO_INT)
+			return 2;
+		return level >= Level.DEBUG_INT ? 3 : 4;
+	}
+
+	/**
+	 * Links to all hosts, a prober task on the shared scheduler opens those which are down
+	 * while the dispatcher spreads batches over those which are up
+	 */
+	private void startBalancing(){
+		links = new ArrayList<Link>();
+		for(String host : hosts)
+			links.add(new Link(host.trim()));
+		balancer = new Balancer<Link>(links, Balancer.Strategy.parse(balance));
+		SharedScheduler.execute(new Runnable(){
+			public void run() {
+				if(!started)
+					return;
+				for(Link link : links){
+					if(!link.available)
+						link.open();
+				}
+				if(started)
+					prober = SharedScheduler.schedule(this, reconnectionDelay);
+			}
+		});
+	}
+
+	protected boolean isConnected(){
+		return links != null ? balancer.isAvailable() : os != null;
 	}
 
 	@Override
@@ -105,44 +330,69 @@ public class LogfacesAppender extends AppenderBase<ILoggingEvent> implements App
 		shutdownDispatcher();
 		detachAndStopAllAppenders();
 		cleanUp();
+		closeSpill();
+		metrics.unregister();
 	}
 	
 	protected void shutdownDispatcher(){
 		// if there is anything lingering in the queue 
 		// make sure to flush it to server before yielding control
 		dispatcher.shutdown = true;
+		dispatcher.wakeUp();
 		long timeout = shutdowdnTimeout/100;
-		while(!queue.isEmpty() && dispatcher.isAlive() && --timeout > 0){
+		while(!dispatcher.isDrained() && dispatcher.isAlive() && --timeout > 0){
 			try {
 				Thread.sleep(100);
 			} catch(InterruptedException e){
 				break;
 			}
 		}
+		// disconnected dispatcher would wait for the connection forever
+		dispatcher.halted = true;
+		dispatcher.wakeUp();
+		try {
+			dispatcher.join(1000);
+		} catch(InterruptedException e){
+		}
+		long orphans = dispatcher.undelivered();
+		if(orphans > 0){
+			metrics.dropped(orphans);
+			addWarn(String.format("logFaces: appender stopped, %d events left undelivered", orphans));
+		}
 		dispatcher = null;
 	}
 
-	protected void cleanUp(){
-		if (writer != null){
+	protected synchronized void cleanUp(){
+		if (os != null){
 			try{
-				writer.close();
+				os.close();
 			}
 			catch (IOException e){
 				addWarn(e.getMessage(),e);
 			}
-			writer = null;
+			os = null;
 		}
 
 		if(connector != null){
-		   connector.shutdown = true;
-		   connector.interrupt();
+		   connector.cancel();
 		   connector = null;
 		}
+		if(prober != null){
+			prober.cancel(false);
+			prober = null;
+		}
+
+		if(links != null){
+			for(Link link : links)
+				link.close();
+		}
 	}
 	
 	private void createLayout() {
-		boolean json = (format != null && format.equals("json"));
-		layout = new LogfacesLayout(json, application, delegateMarker, locationInfo);
+		if("binary".equalsIgnoreCase(format))
+			layout = new LogfacesBinaryLayout(application, delegateMarker, locationInfo);
+		else
+			layout = new LogfacesLayout("json".equals(format), application, delegateMarker, locationInfo);
 	}
 
 	private void createSocketFactory(){
@@ -171,38 +421,221 @@ public class LogfacesAppender extends AppenderBase<ILoggingEvent> implements App
 		try{
 			cleanUp();
 			address = getAddressByName(hosts.get(hostIndex));
-			Socket socket = socketFactory.createSocket(address, port);
-			socket.setKeepAlive(true);
-			socket.setTcpNoDelay(true);
-			writer = new OutputStreamWriter(socket.getOutputStream());
+			OutputStream stream = openStream();
+			synchronized(this){
+				// stopped while connecting
+				if(!started){
+					closeQuietly(stream);
+					return;
+				}
+				os = stream;
+			}
+			connection.connected();
 		}
 		catch(Exception e){
+			connection.disconnected();
 			addWarn(String.format("logFaces: appender can't connect to server %s:%d, starting failover", hosts.get(hostIndex), port));
 			startFailover();
 		}
 	}
 
+	/**
+	 * Opens new connection to current address, over SocketChannel with nio protocol
+	 */
+	protected OutputStream openStream() throws Exception{
+		OutputStream stream;
+		if(isNio()){
+			channel = ChannelOutputStream.open(address, port, sendBufferSize, SharedScheduler.connectTimeout(reconnectionDelay));
+			stream = channel;
+		}
+		else{
+			stream = openSocket(address);
+		}
+		if(isDeflate()){
+			deflating = new DeflatingOutputStream(stream, compressionLevel);
+			stream = deflating;
+		}
+		return stream;
+	}
+
+	protected OutputStream openSocket(InetAddress address) throws IOException{
+		Socket socket = socketFactory.createSocket();
+		try{
+			socket.setKeepAlive(true);
+			socket.setTcpNoDelay(true);
+			socket.connect(new InetSocketAddress(address, port), SharedScheduler.connectTimeout(reconnectionDelay));
+			return socket.getOutputStream();
+		}
+		catch(IOException e){
+			socket.close();
+			throw e;
+		}
+	}
+
+	protected boolean isDeflate(){
+		return "deflate".equalsIgnoreCase(compression);
+	}
+
+	protected boolean isNio(){
+		return "nio".equalsIgnoreCase(protocol);
+	}
+
+	/**
+	 * Starts an empty buffer with few bytes testing broken connection, they go
+	 * out in the same write as the events and the server skips them. Nio reads
+	 * the connection instead.
+	 */
+	private void probe(EventBuffer out){
+		if(out.isEmpty() && !isNio())
+			out.writeBytes(CHALLENGE);
+	}
+
+	protected void closeQuietly(OutputStream stream){
+		try{
+			if(stream != null)
+				stream.close();
+		}
+		catch(IOException e){
+		}
+	}
+
 	@Override
 	public void append(ILoggingEvent event) {
 		if (event == null || !started)
 			return;
 
+		if(limiter != null){
+			RateLimiter.Rule rule = limiter.match(event.getLoggerName(), severityOf(event));
+			if(rule != null && !rule.tryAcquire(event.getLoggerName()))
+				return;
+		}
+		ILoggingEvent forward = event;
+		if(coalescer != null){
+			long repeats = coalescer.check(hashOf(event), event.getTimeStamp(), event);
+			if(repeats == Coalescer.SWALLOW)
+				return;
+			if(repeats > 0)
+				forward = withRepeats(event, repeats);
+		}
+		LatencyHistogram latency = enqueueLatency;
+		if(latency == null){
+			enqueue(forward);
+			return;
+		}
+		long started = System.nanoTime();
+		enqueue(forward);
+		latency.record(System.nanoTime() - started);
+	}
+
+	/**
+	 * Hash of message pattern and arguments, level and logger, nothing is formatted
+	 */
+	private long hashOf(ILoggingEvent event){
+		long h = Coalescer.hash(Coalescer.SEED, event.getMessage());
+		Object[] arguments = event.getArgumentArray();
+		if(arguments != null){
+			for(Object argument : arguments)
+				h = Coalescer.hash(h, argument != null ? argument.hashCode() : 0);
+		}
+		h = Coalescer.hash(h, event.getLevel().toInt());
+		String logger = event.getLoggerName();
+		return Coalescer.mix(Coalescer.hash(h, logger != null ? logger.hashCode() : 0));
+	}
+
+	/**
+	 * Copy of the event with number of repeats swallowed before it in MDC
+	 */
+	private ILoggingEvent withRepeats(ILoggingEvent event, long repeats){
+		LoggingEvent copy = new LoggingEvent();
+		copy.setLoggerName(event.getLoggerName());
+		copy.setLevel(event.getLevel());
+		copy.setMessage(event.getMessage());
+		copy.setArgumentArray(event.getArgumentArray());
+		copy.setThreadName(event.getThreadName());
+		copy.setTimeStamp(event.getTimeStamp());
+		copy.setSequenceNumber(event.getSequenceNumber());
+		if(event.getKeyValuePairs() != null)
+			copy.setKeyValuePairs(new ArrayList<KeyValuePair>(event.getKeyValuePairs()));
+		if(event.getThrowableProxy() instanceof ThrowableProxy)
+			copy.setThrowableProxy((ThrowableProxy)event.getThrowableProxy());
+		if(event.getMarkerList() != null){
+			for(Marker marker : event.getMarkerList())
+				copy.addMarker(marker);
+		}
+		Map<String, String> mdc = new HashMap<String, String>(event.getMDCPropertyMap());
+		mdc.put(REPEATS_KEY, String.valueOf(repeats));
+		copy.setMDCPropertyMap(mdc);
+		copy.setCallerData(locationInfo ? event.getCallerData() : new StackTraceElement[0]);
+		return copy;
+	}
+
+	/**
+	 * Event telling how many events of a limited logger were suppressed
+	 */
+	private ILoggingEvent summary(String logger, long suppressed){
+		LoggingEvent summary = new LoggingEvent();
+		summary.setLoggerName(logger);
+		summary.setLevel(Level.WARN);
+		summary.setThreadName(Thread.currentThread().getName());
+		summary.setTimeStamp(System.currentTimeMillis());
+		summary.setMessage("suppressed " + suppressed + " events from logger " + logger);
+		summary.setMDCPropertyMap(Collections.<String, String>emptyMap());
+		summary.setCallerData(new StackTraceElement[0]);
+		return summary;
+	}
+
+	/**
+	 * Queues an event the appender made up itself, without waiting for room,
+	 * spill or backup; it may come from the dispatcher, which would wait for itself
+	 */
+	private void enqueueNow(ILoggingEvent event){
+		if(queue.offer(event))
+			metrics.enqueued();
+		else
+			metrics.dropped(1);
+	}
+
+	private void enqueue(ILoggingEvent event){
 		try {
 			event.getThreadName();
 			event.getMDCPropertyMap();
 			if(locationInfo)
 				event.getCallerData();
+
+			// once spilling, events queue up behind the spilled ones
+			if((journaling || hasSpilled()) && spill(event)){
+				metrics.enqueued();
+				return;
+			}
+
+			if(encoded != null){
+				handOver(event);
+				return;
+			}
+
 			if(!queue.offer(event, offerTimeout, TimeUnit.MILLISECONDS)){
+				if(spill != null && spill(event)){
+					metrics.enqueued();
+					if(warnOverflow++ == 0)
+						addWarn(String.format("logFaces: appender queue is full [%d], spilling to %s", queue.size(), spillDir));
+					return;
+				}
 				if(warnOverflow++ == 0){
 					addWarn(String.format("logFaces: appender queue is full [%d]. If you see this message it means that queue size needs to be increased, or amount of log events decreased.", queue.size()));
 					addWarn( (backupAppender == null)?"logFaces: fall back is disabled":String.format("logFaces backup appender %s activated; You can later import this data into the logfaces server manually.", backupAppender.getName()));
 				}
 
 				// transmition queue is full, delegate to fall back appender if specified 
-				if(backupAppender != null)
+				if(backupAppender != null){
 					backupAppender.doAppend(event);
+					metrics.backup();
+				}
+				else{
+					metrics.dropped(1);
+				}
 			}
 			else{
+				metrics.enqueued();
 				warnOverflow=0;
 			}
 		} 
@@ -213,6 +646,103 @@ public class LogfacesAppender extends AppenderBase<ILoggingEvent> implements App
 		}
 	}
 
+	/**
+	 * Serializes the event on caller thread into the ring, the dispatcher only
+	 * writes the bytes out. Events which don't fit in offerTimeout overflow to
+	 * the spill or backup appender like those the queue can't take.
+	 */
+	protected void handOver(ILoggingEvent event) throws InterruptedException{
+		EventBuffer out = spillBuffers.get();
+		try{
+			layout.encode(event, out);
+			if(encoded.offer(out.array(), 0, out.size(), offerTimeout, TimeUnit.MILLISECONDS)){
+				metrics.enqueued();
+				queue.wakeUp();
+				warnOverflow = 0;
+				return;
+			}
+			if(spill != null && spill.append(out.array(), 0, out.size())){
+				metrics.enqueued();
+				if(warnOverflow++ == 0)
+					addWarn(String.format("logFaces: appender buffer is full [%d bytes], spilling to %s", encoded.bytes(), spillDir));
+				return;
+			}
+			if(warnOverflow++ == 0)
+				addWarn(String.format("logFaces: appender buffer is full [%d bytes], %s", encoded.bytes(), backupAppender == null ? "dropping events" : "backup appender activated"));
+			if(backupAppender != null){
+				backupAppender.doAppend(event);
+				metrics.backup();
+			}
+			else{
+				metrics.dropped(1);
+			}
+		}
+		catch(IOException e){
+			addWarn("logFaces appender failed to encode event: " + e.getMessage());
+		}
+		finally{
+			out.reset();
+		}
+	}
+
+	/**
+	 * Serializes the event on caller thread and appends it to the spill,
+	 * a copy into mapped memory, the dispatcher sends it when it gets to it
+	 */
+	protected boolean spill(ILoggingEvent event){
+		EventBuffer out = spillBuffers.get();
+		try{
+			layout.encode(event, out);
+			return spill.append(out.array(), 0, out.size());
+		}
+		catch(Exception e){
+			addWarn("logFaces appender failed to spill event: " + e.getMessage());
+			return false;
+		}
+		finally{
+			out.reset();
+		}
+	}
+
+	protected boolean hasSpilled(){
+		return spill != null && !spill.isEmpty();
+	}
+
+	private void openSpill(){
+		try{
+			long segmentSize = Math.min(SegmentLog.DEFAULT_SEGMENT_SIZE, spillSize / 2);
+			if(journalDir != null){
+				spill = new Journal(new File(journalDir), name, spillSize, (int)segmentSize, journalSync);
+				journaling = true;
+				if(!spill.isEmpty())
+					addInfo(String.format("logFaces: resending %d journaled events", spill.size()));
+			}
+			else{
+				// spill is not a journal, whatever previous run left behind is deleted
+				spill = new SegmentLog(new File(spillDir), name, spillSize, (int)segmentSize, false);
+			}
+		}
+		catch(IOException e){
+			addWarn(String.format("logFaces: %s disabled: %s", journalDir != null ? "journal" : "spill", e.getMessage()));
+			spill = null;
+			journaling = false;
+		}
+	}
+
+	private void closeSpill(){
+		if(spill == null)
+			return;
+		if(!spill.isEmpty() && journaling)
+			addInfo(String.format("logFaces: %d events kept in journal for the next start", spill.size()));
+		else if(!spill.isEmpty())
+			addWarn(String.format("logFaces: %d spilled events left undelivered", spill.size()));
+		try{
+			spill.close();
+		}
+		catch(IOException e){
+		}
+	}
+
 	protected InetAddress getAddressByName(String host){
 		try{
 			return InetAddress.getByName(host);
@@ -223,110 +753,506 @@ public class LogfacesAppender extends AppenderBase<ILoggingEvent> implements App
 		}
 	}
 
-	class Connector extends Thread {
-		boolean shutdown = false;
+	/**
+	 * Connection attempts run on the shared scheduler, reconnection delay apart
+	 */
+	class Connector implements Runnable {
+		volatile boolean shutdown = false;
+		volatile ScheduledFuture<?> attempt;
+
+		void schedule(){
+			attempt = SharedScheduler.schedule(this, reconnectionDelay);
+		}
+
+		void cancel(){
+			shutdown = true;
+			ScheduledFuture<?> pending = attempt;
+			if(pending != null)
+				pending.cancel(false);
+		}
+
 		public void run() {
-			Socket socket;
-			while (!shutdown) {
-				try {
-					sleep(reconnectionDelay);
-					socket = socketFactory.createSocket(address, port);
-					socket.setKeepAlive(true);
-					socket.setTcpNoDelay(true);
-					synchronized (this) {
-						writer = new OutputStreamWriter(socket.getOutputStream());
-						connector = null;
-						break;
-					}
-				} catch (InterruptedException e) {
-					return;
-				} catch(Exception e) {
-					if(++nofFailures >= nofRetries){
-						addWarn(String.format("logFaces: appender unable to connect to %s after %d retries", address, nofRetries));
-
-						// fall back to next host in the list if retries are exhausted
-						if(++hostIndex >= hosts.size())
-							hostIndex = 0;
-						nofFailures = 0;
-						connector = null;
-						startFailover();
+			if(shutdown)
+				return;
+			try {
+				OutputStream stream = openStream();
+				synchronized(LogfacesAppender.this){
+					// stopped while connecting, the lock keeps stop from running in between
+					if(shutdown){
+						closeQuietly(stream);
 						return;
 					}
+					os = stream;
+					connector = null;
 				}
+				connection.connected();
+			} catch(Exception e) {
+				if(++nofFailures >= nofRetries){
+					addWarn(String.format("logFaces: appender unable to connect to %s after %d retries", address, nofRetries));
+
+					// fall back to next host in the list if retries are exhausted
+					if(++hostIndex >= hosts.size())
+						hostIndex = 0;
+					nofFailures = 0;
+					connector = null;
+					startFailover();
+					return;
+				}
+				schedule();
 			}
 		}
 	}
 
 	protected void startFailover() {
+		// balanced links are reopened by the prober
+		if(links != null)
+			return;
 		if(connector == null && nofRetries > 0 && started) {
 			address = getAddressByName(hosts.get(hostIndex));
 			addWarn("logFaces: appender trying to fall back to " + address);
 
 			connector = new Connector();
-			connector.setDaemon(true);
-			connector.setPriority(Thread.MIN_PRIORITY);
-			connector.start();
-		}
-	}
-
-	class Dispatcher extends Thread{
-		boolean shutdown = false;
-		boolean running = false;
-		public void run(){
-			ILoggingEvent event;
-			running = true;
-			while(true){
-				try {
-					if(writer == null){
-						sleep(200);
-						continue;
+			connector.schedule();
+		}
+	}
+
+	/**
+	 * Connection to one of the hosts when balancing, with its own buffer
+	 * as stack traces sent earlier are known per connection
+	 */
+	class Link implements Balancer.Target {
+		final String host;
+		final EventBuffer buffer = new EventBuffer();
+		OutputStream os;
+		ChannelOutputStream channel;
+		// set last when opening, cleared last when closing
+		volatile boolean available;
+		boolean failed, warned;
+		volatile long bytesWritten;
+		final ConnectionStats connection = new ConnectionStats();
+
+		Link(String host){
+			this.host = host;
+			buffer.setTraceReferences(LogfacesAppender.this.buffer.isTraceReferences());
+		}
+
+		@Override
+		public boolean isAvailable(){
+			return available;
+		}
+
+		/**
+		 * Bytes laid out for this link in current batch, the batch is spread by them
+		 */
+		@Override
+		public long getOutstandingBytes(){
+			return buffer.size();
+		}
+
+		void open(){
+			try{
+				InetAddress address = InetAddress.getByName(host);
+				OutputStream stream;
+				if(isNio())
+					stream = channel = ChannelOutputStream.open(address, port, sendBufferSize, SharedScheduler.connectTimeout(reconnectionDelay));
+				else
+					stream = openSocket(address);
+				if(isDeflate())
+					stream = new DeflatingOutputStream(stream, compressionLevel);
+				synchronized(LogfacesAppender.this){
+					// stopped while connecting
+					if(!started){
+						closeQuietly(stream);
+						return;
 					}
+					os = stream;
+					warned = false;
+					available = true;
+				}
+				connection.connected();
+			}
+			catch(Exception e){
+				connection.disconnected();
+				if(!warned)
+					addWarn(String.format("logFaces: host %s:%d is down, out of rotation: %s", host, port, e.getMessage()));
+				warned = true;
+			}
+		}
 
-					event = queue.poll(shutdowdnTimeout, TimeUnit.MILLISECONDS);
-					if(event == null && !shutdown)
-						continue;
-					if(event == null && shutdown)
-						break;
-				}catch (InterruptedException e){
+		/**
+		 * Write and flush, probe included, the link is closed when it fails
+		 */
+		boolean write(EventBuffer data){
+			try{
+				if(channel != null)
+					channel.checkAlive();
+				data.writeTo(os);
+				os.flush();
+				bytesWritten += data.size();
+				return true;
+			}
+			catch(IOException e){
+				addWarn(String.format("logFaces: write to %s failed, out of rotation: %s", host, e.getMessage()));
+				connection.disconnected();
+				close();
+				return false;
+			}
+		}
+
+		void close(){
+			closeQuietly(os);
+			os = null;
+			channel = null;
+			buffer.clearTraces();
+			available = false;
+		}
+	}
+
+	class Dispatcher extends DispatchLoop implements RateLimiter.Listener{
+		volatile boolean shutdown = false;
+		// stopped waiting for the queue to drain, the next turn is the last
+		volatile boolean halted = false;
+		// waiting for events with nothing in hand
+		volatile boolean idle = false;
+		long reportedDrops = 0;
+		long reportedShed = 0;
+		// events taken from the queue and not sent yet, reused for every batch
+		final List<ILoggingEvent> batch = new ArrayList<ILoggingEvent>(MAX_BATCH_SIZE);
+		// link each event of the batch was laid out for, when balancing
+		final Link[] routes = new Link[MAX_BATCH_SIZE];
+		// events taken from the ring and not written yet
+		final EventBuffer pending = new EventBuffer();
+		int pendingCount;
+		// counts of the last latency report and when the next one is due
+		long[] enqueueReported, queueReported, sendReported;
+		long nextReport = System.currentTimeMillis() + latencyReport;
+
+		/**
+		 * Writes a batch worth of events, or waits for them
+		 */
+		@Override
+		protected long turn(){
+			idle = false;
+			if(halted)
+				return finish();
+			try {
+				reportLatency();
+				if(limiter != null)
+					limiter.sweep(this);
+				if(coalescer != null)
+					coalescer.sweep(System.currentTimeMillis());
+				if(!isConnected()){
+					reportDrops();
+					idle = batch.isEmpty() && pending.isEmpty();
+					return 200;
+				}
+
+				// unsent tail of the last batch goes first
+				if(batch.isEmpty()){
+					if(hasEncoded()){
+						pump();
+						return 0;
+					}
+					// spilled events are younger than anything in the queue
+					if(queue.isEmpty() && hasSpilled()){
+						replay();
+						return 0;
+					}
+				}
+				// appends to the queue or journal wake the dispatcher up
+				queue.drainTo(batch, MAX_BATCH_SIZE - batch.size());
+				if(batch.isEmpty()){
+					idle = true;
+					return shutdown ? finish() : shutdowdnTimeout;
+				}
+			}
+			catch(Exception e){
+				if(shutdown)
+					return finish();
+				addWarn("logFaces appender queue taking failed:" + e.getMessage());
+				return 0;
+			}
+
+			int size = batch.size();
+			long started = sendLatency != null ? System.nanoTime() : 0;
+			if(links != null)
+				transmitBalanced();
+			else
+				transmit();
+			if(sendLatency != null && batch.size() < size)
+				sendLatency.record((System.nanoTime() - started) / (size - batch.size()), size - batch.size());
+			reportDrops();
+			if(shutdown && !isConnected())
+				return finish();
+			return 0;
+		}
+
+		long finish(){
+			if(deflating != null)
+				addInfo(String.format("logFaces appender compression ratio %.1f, %.1f us per batch", getCompressionRatio(), getCompressionMicrosPerBatch()));
+			addInfo("logFaces appender dispatcher ends");
+			return -1;
+		}
+
+		boolean hasEncoded(){
+			return !pending.isEmpty() || (encoded != null && !encoded.isEmpty());
+		}
+
+		/**
+		 * @return true once everything was written and the dispatcher waits for more
+		 */
+		boolean isDrained(){
+			return idle && queue.isEmpty() && !hasSpilled() && (encoded == null || encoded.isEmpty());
+		}
+
+		/**
+		 * @return events still in hand or waiting for the dispatcher, journaled ones are kept for the next start
+		 */
+		long undelivered(){
+			long count = batch.size() + (pending.isEmpty() ? 0 : pendingCount) + queue.size();
+			if(encoded != null)
+				count += encoded.size();
+			if(spill != null && !journaling)
+				count += spill.size();
+			return count;
+		}
+
+		/**
+		 * Writes out a batch of events encoded on append, kept until written
+		 */
+		void pump(){
+			if(pending.isEmpty()){
+				probe(pending);
+				pendingCount = encoded.drainTo(pending, MAX_BATCH_SIZE, MAX_WRITE_SIZE);
+			}
+			Link link = links != null ? balancer.choose(application) : null;
+			long started = sendLatency != null ? System.nanoTime() : 0;
+			if(links != null ? link != null && link.write(pending) : write(pending)){
+				if(sendLatency != null)
+					sendLatency.record((System.nanoTime() - started) / pendingCount, pendingCount);
+				metrics.sent(pendingCount);
+				pending.reset();
+			}
+		}
+
+		/**
+		 * Spilled records are already serialized, they are copied into the
+		 * buffer as they are and consumed once the write succeeds
+		 */
+		void replay(){
+			if(links != null){
+				replayBalanced();
+				return;
+			}
+			probe(buffer);
+			int count = spill.read(buffer, MAX_BATCH_SIZE, MAX_WRITE_SIZE);
+			long started = sendLatency != null ? System.nanoTime() : 0;
+			if(write(buffer)){
+				if(sendLatency != null)
+					sendLatency.record((System.nanoTime() - started) / count, count);
+				spill.advance(count);
+				metrics.sent(count);
+			}
+			buffer.reset();
+			reportDrops();
+		}
+
+		/**
+		 * Writes serialized events with one flush, probe included
+		 */
+		boolean write(EventBuffer data){
+			try{
+				if(channel != null)
+					channel.checkAlive();
+				data.writeTo(os);
+				os.flush();
+				bytesWritten += data.size();
+				return true;
+			}
+			catch(IOException e){
+				closeQuietly(os);
+				os = null;
+				buffer.clearTraces();
+				connection.disconnected();
+				addWarn("logFaces appender socket write failed: " + e.getMessage());
+				startFailover();
+				return false;
+			}
+		}
+
+		void replayBalanced(){
+			Link link = balancer.choose(application);
+			if(link == null)
+				return;
+			probe(buffer);
+			int count = spill.read(buffer, MAX_BATCH_SIZE, MAX_WRITE_SIZE);
+			long started = sendLatency != null ? System.nanoTime() : 0;
+			if(link.write(buffer)){
+				if(sendLatency != null)
+					sendLatency.record((System.nanoTime() - started) / count, count);
+				spill.advance(count);
+				metrics.sent(count);
+			}
+			buffer.reset();
+			reportDrops();
+		}
+
+		/**
+		 * Lays out every event into the buffer of link chosen for it and
+		 * writes each buffer out. Events of links which failed stay in the
+		 * batch and are spread over remaining links next time.
+		 */
+		void transmitBalanced(){
+			int size = batch.size();
+			for(int i = 0; i < size; i++){
+				ILoggingEvent event = batch.get(i);
+				Link link = balancer.choose(keyOf(event));
+				if(link == null)
 					break;
+				routes[i] = link;
+				probe(link.buffer);
+				int mark = link.buffer.size();
+				try{
+					layout.encode(event, link.buffer);
 				}
 				catch(Exception e){
-					if(shutdown)
-						break;
-					addWarn("logFaces appender queue taking failed:" + e.getMessage());
-					continue;
+					link.buffer.truncate(mark);
+					link.buffer.clearTraces();
+					addWarn("logFaces appender failed to layout event: " + e.getMessage());
 				}
+			}
 
-				try{
-					if(event != null){
-						// challenge few bytes to test broken connection
-						// without doing this, we may loose the event in socket buffers
-						writer.write("   ");
-						writer.flush();
-						
-						// transmit actual data
-						writer.write(layout.doLayout(event));
-						writer.flush();
-					}
+			for(Link link : links){
+				if(!link.buffer.isEmpty()){
+					link.failed = !link.write(link.buffer);
+					link.buffer.reset();
 				}
-				catch(IOException e){
-					writer = null;
-					addWarn("logFaces appender socket write failed: " + e.getMessage());
-					if(shutdown)
-						break;
+			}
 
-					// put it back into queue for re-transmitt
-					queue.offer(event);
-					startFailover();
+			int kept = 0;
+			for(int i = 0; i < size; i++){
+				Link link = routes[i];
+				if(link == null || link.failed)
+					batch.set(kept++, batch.get(i));
+				routes[i] = null;
+			}
+			batch.subList(kept, size).clear();
+			metrics.sent(size - kept);
+			for(Link link : links)
+				link.failed = false;
+		}
+
+		private CharSequence keyOf(ILoggingEvent event){
+			if(balanceKey != null){
+				String value = event.getMDCPropertyMap().get(balanceKey);
+				if(value != null)
+					return value;
+			}
+			return application;
+		}
+
+		/**
+		 * Summary of a limited logger, queued without waiting as this runs on the dispatcher
+		 */
+		@Override
+		public void onSuppressed(String logger, long events){
+			enqueueNow(summary(logger, events));
+		}
+
+		/**
+		 * Logs percentiles of latencies measured since the last report, if there was anything to measure
+		 */
+		void reportLatency(){
+			if(sendLatency == null || latencyReport <= 0 || System.currentTimeMillis() < nextReport)
+				return;
+			nextReport = System.currentTimeMillis() + latencyReport;
+			if(enqueueReported == null){
+				enqueueReported = new long[LatencyHistogram.BUCKETS];
+				queueReported = new long[LatencyHistogram.BUCKETS];
+				sendReported = new long[LatencyHistogram.BUCKETS];
+			}
+			long[] enqueued = enqueueLatency.since(enqueueReported);
+			long[] queued = queueLatency.since(queueReported);
+			long[] sent = sendLatency.since(sendReported);
+			if(LatencyHistogram.count(enqueued) == 0 && LatencyHistogram.count(sent) == 0)
+				return;
+			addInfo("logFaces: latency of enqueue: " + LatencyHistogram.summary(enqueued));
+			addInfo("logFaces: latency in queue: " + LatencyHistogram.summary(queued));
+			addInfo("logFaces: latency of send: " + LatencyHistogram.summary(sent));
+		}
+
+		void reportDrops(){
+			if(lanes != null && lanes.getShed() > reportedShed){
+				long shed = lanes.getShed();
+				addWarn(String.format("logFaces: appender queue is full, shed %d events (%s)", shed - reportedShed, lanes.getShedding()));
+				metrics.dropped(shed - reportedShed);
+				reportedShed = shed;
+			}
+			if(spill == null)
+				return;
+			long drops = spill.getDropped();
+			if(drops > reportedDrops){
+				addWarn(String.format("logFaces: spill is full, dropped %d oldest events", drops - reportedDrops));
+				metrics.dropped(drops - reportedDrops);
+				reportedDrops = drops;
+			}
+		}
+
+		/**
+		 * Lays out the whole batch into the buffer and writes it with a single
+		 * flush, large batches go out in chunks flushed one by one. When writing
+		 * fails, events of the chunks already flushed are dropped from the batch
+		 * and only the unsent tail stays for re-transmission.
+		 */
+		void transmit(){
+			int sent = 0;
+			try{
+				// nio notices peer which went away by reading
+				if(channel != null)
+					channel.checkAlive();
+				probe(buffer);
+
+				int size = batch.size();
+				for(int i = 0; i < size; i++){
+					int mark = buffer.size();
+					try{
+						layout.encode(batch.get(i), buffer);
+					}
+					catch(Exception e){
+						buffer.truncate(mark);
+						buffer.clearTraces();
+						addWarn("logFaces appender failed to layout event: " + e.getMessage());
+					}
+					if(buffer.size() >= MAX_WRITE_SIZE){
+						buffer.writeTo(os);
+						os.flush();
+						bytesWritten += buffer.size();
+						buffer.reset();
+						sent = i + 1;
+					}
 				}
-				catch(Exception e){
+				buffer.writeTo(os);
+				os.flush();
+				bytesWritten += buffer.size();
+				sent = size;
+			}
+			catch(Exception e){
+				// layout failures are handled per event, anything else leaves the stream in unknown state
+				closeQuietly(os);
+				os = null;
+				buffer.clearTraces();
+				connection.disconnected();
+				if(e instanceof IOException)
+					addWarn("logFaces appender socket write failed: " + e.getMessage());
+				else
 					addWarn("logFaces appender general purpose failure: " + e.getMessage());
-					if(shutdown)
-						break;
-				}
+				startFailover();
+			}
+			finally{
+				buffer.reset();
+				batch.subList(0, sent).clear();
+				metrics.sent(sent);
 			}
-			
-			addInfo("logFaces appender dispatcher thread ends");
 		}
 	}
 
@@ -427,6 +1353,276 @@ public class LogfacesAppender extends AppenderBase<ILoggingEvent> implements App
 	public void setFormat(String format) {
 		this.format = format;
 	}
+
+	/**
+	 * tcp (default) or nio, the latter doesn't support SSL
+	 */
+	public void setProtocol(String protocol) {
+		this.protocol = protocol;
+	}
+
+	public String getProtocol() {
+		return protocol;
+	}
+
+	public void setSendBufferSize(int sendBufferSize) {
+		this.sendBufferSize = sendBufferSize;
+	}
+
+	public int getSendBufferSize() {
+		return sendBufferSize;
+	}
+
+	/**
+	 * deflate compresses the connection, flushed once per batch
+	 */
+	public void setCompression(String compression) {
+		this.compression = compression;
+	}
+
+	public String getCompression() {
+		return compression;
+	}
+
+	public void setCompressionLevel(int level) {
+		this.compressionLevel = level;
+	}
+
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	/**
+	 * @return compression ratio of current connection, 0 if not compressed
+	 */
+	public double getCompressionRatio() {
+		DeflatingOutputStream stream = deflating;
+		return stream != null ? stream.getRatio() : 0;
+	}
+
+	/**
+	 * @return time spent compressing each batch, in microseconds
+	 */
+	public double getCompressionMicrosPerBatch() {
+		DeflatingOutputStream stream = deflating;
+		return stream != null ? stream.getMicrosPerBatch() : 0;
+	}
+
+	/**
+	 * Directory of disk spill, events which don't fit into the queue go there
+	 */
+	public void setSpillDir(String spillDir) {
+		this.spillDir = spillDir;
+	}
+
+	public String getSpillDir() {
+		return spillDir;
+	}
+
+	/**
+	 * Directory of write ahead journal, every event is journaled before it's sent
+	 * and whatever wasn't written to the socket is sent on the next start
+	 */
+	public void setJournalDir(String journalDir) {
+		this.journalDir = journalDir;
+	}
+
+	public String getJournalDir() {
+		return journalDir;
+	}
+
+	/**
+	 * Interval of journal group commit (fsync), in milliseconds
+	 */
+	public void setJournalSync(long journalSync) {
+		this.journalSync = journalSync;
+	}
+
+	public long getJournalSync() {
+		return journalSync;
+	}
+
+	/**
+	 * Disk space the spill or journal may take, like 256MB, oldest events are dropped beyond it
+	 */
+	public void setSpillSize(String spillSize) {
+		this.spillSize = Utils.parseSize(spillSize, DEFAULT_SPILL_SIZE);
+	}
+
+	/**
+	 * Spreads events over all remote hosts: round-robin, least-bytes or hash
+	 */
+	public void setBalance(String balance) {
+		this.balance = balance;
+	}
+
+	public String getBalance() {
+		return balance;
+	}
+
+	/**
+	 * MDC key hashed by the hash strategy, application name when not set or missing
+	 */
+	public void setBalanceKey(String balanceKey) {
+		this.balanceKey = balanceKey;
+	}
+
+	public String getBalanceKey() {
+		return balanceKey;
+	}
+
+	/**
+	 * Queues events in lanes per level, most severe sent first, and sets what gives
+	 * way when the queue is full: reject, drop-lowest, drop-oldest or block-high
+	 */
+	public void setShedding(String shedding) {
+		this.shedding = shedding;
+	}
+
+	public String getShedding() {
+		return shedding;
+	}
+
+	/**
+	 * @return queued events dropped by shedding to make room for more severe or newer ones
+	 */
+	public long getShedEvents() {
+		PriorityLanes<ILoggingEvent> l = lanes;
+		return l != null ? l.getShed() : 0;
+	}
+
+	/**
+	 * Rate limits of loggers, like "com.acme.retry=100/s; org.hibernate:DEBUG=10/s"
+	 */
+	public void setRateLimit(String rateLimit) {
+		this.limiter = RateLimiter.parse(rateLimit);
+	}
+
+	/**
+	 * Window in milliseconds in which repeats of an event are counted instead of sent,
+	 * the next one after it carries the count as "repeats" attribute, or a copy of the
+	 * first repeat once the window closed with nothing after it, 0 disables it
+	 */
+	public void setCoalesceWindow(long millis) {
+		if(millis <= 0){
+			this.coalescer = null;
+			return;
+		}
+		this.coalescer = new Coalescer<ILoggingEvent>(millis, new Coalescer.Listener<ILoggingEvent>(){
+			@Override
+			public ILoggingEvent retain(ILoggingEvent event){
+				event.getThreadName();
+				event.getMDCPropertyMap();
+				if(locationInfo)
+					event.getCallerData();
+				return event;
+			}
+
+			@Override
+			public void onRepeats(ILoggingEvent event, long repeats){
+				enqueueNow(withRepeats(event, repeats));
+			}
+		});
+	}
+
+	/**
+	 * Off-heap buffer of encoded events, like 64MB, bounded by bytes instead of queue size
+	 */
+	public void setBufferBytes(String bufferBytes) {
+		this.bufferBytes = Utils.parseSize(bufferBytes, 0);
+	}
+
+	public long getBufferBytes() {
+		return bufferBytes;
+	}
+
+	/**
+	 * @return events waiting for the dispatcher, queued and encoded
+	 */
+	public int getQueuedEvents() {
+		ByteRing ring = encoded;
+		return (queue != null ? queue.size() : 0) + (ring != null ? ring.size() : 0);
+	}
+
+	/**
+	 * @return bytes taken by encoded events waiting for the dispatcher
+	 */
+	public long getQueuedBytes() {
+		ByteRing ring = encoded;
+		return ring != null ? ring.bytes() : 0;
+	}
+
+	/**
+	 * Events are encoded by the caller and kept as bytes until sent, instead of queued
+	 */
+	public void setEncodeOnAppend(boolean encodeOnAppend) {
+		this.encodeOnAppend = encodeOnAppend;
+	}
+
+	public boolean isEncodeOnAppend() {
+		return encodeOnAppend;
+	}
+
+	/**
+	 * Bytes events encoded on append may take, like 4MB, the queue size doesn't apply to them
+	 */
+	public void setEncodeBufferSize(String encodeBufferSize) {
+		this.encodeBufferSize = Utils.parseSize(encodeBufferSize, DEFAULT_ENCODE_BUFFER_SIZE);
+	}
+
+	/**
+	 * Registers metrics of the appender as MBean, on by default
+	 */
+	public void setJmx(boolean jmx) {
+		this.jmx = jmx;
+	}
+
+	public AppenderMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Measures latency of enqueueing, waiting in the queue and sending events
+	 */
+	public void setMeasureLatency(boolean measureLatency) {
+		this.measureLatency = measureLatency;
+	}
+
+	/**
+	 * Interval of reporting latency percentiles as status info, 0 only measures
+	 */
+	public void setLatencyReport(long millis) {
+		this.latencyReport = millis;
+	}
+
+	/**
+	 * @return time callers spend handing events over, null unless latency is measured
+	 */
+	public LatencyHistogram getEnqueueLatency() {
+		return enqueueLatency;
+	}
+
+	/**
+	 * @return time events wait for the dispatcher, null unless latency is measured
+	 */
+	public LatencyHistogram getQueueLatency() {
+		return queueLatency;
+	}
+
+	/**
+	 * @return time dispatcher takes to encode and write an event, null unless latency is measured
+	 */
+	public LatencyHistogram getSendLatency() {
+		return sendLatency;
+	}
+
+	public void setTraceReferences(boolean enabled) {
+		buffer.setTraceReferences(enabled);
+	}
+
+	public boolean getTraceReferences() {
+		return buffer.isTraceReferences();
+	}
 	
 	//
 	// custom implementation of AppenderAttachable
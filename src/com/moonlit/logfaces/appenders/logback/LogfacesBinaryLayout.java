@@ -0,0 +1,113 @@
+/**
+ * LogfacesBinaryLayout serializes logback events into compact binary format,
+ * see BinaryFormat for the frame layout.
+ * Created by Moonlit Software Ltd logfaces team.
+ * 
+ * This layout is free software, you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation.
+ */
+
+package com.moonlit.logfaces.appenders.logback;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.slf4j.Marker;
+
+import com.moonlit.logfaces.appenders.util.BinaryFormat;
+import com.moonlit.logfaces.appenders.util.EventBuffer;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.ThrowableProxyUtil;
+
+public class LogfacesBinaryLayout extends LogfacesLayout {
+	private final byte[] constantFields;
+
+	public LogfacesBinaryLayout(String app, boolean marker, boolean location){
+		super(false, app, marker, location);
+		this.constantFields = BinaryFormat.constantFields(applicationName, hostName);
+	}
+
+	/**
+	 * Binary frames can't be represented as text, use encode instead
+	 */
+	@Override
+	public String doLayout(ILoggingEvent event) {
+		throw new UnsupportedOperationException("binary layout produces bytes only");
+	}
+
+	@Override
+	public void encode(ILoggingEvent event, EventBuffer out) {
+		int frame = BinaryFormat.beginFrame(out, event.getTimeStamp(), levelCode(event.getLevel()));
+		out.writeBytes(constantFields);
+		BinaryFormat.writeField(out, BinaryFormat.THREAD, event.getThreadName());
+		BinaryFormat.writeField(out, BinaryFormat.LOGGER, event.getLoggerName());
+		BinaryFormat.writeField(out, BinaryFormat.MESSAGE, event.getFormattedMessage());
+
+		IThrowableProxy tp = event.getThrowableProxy();
+		if (tp != null) {
+			long fingerprint = fingerprint(tp);
+			if(!out.markTraceSent(fingerprint))
+				BinaryFormat.writeField(out, BinaryFormat.THROWABLE, renderThrowable(tp, fingerprint));
+			if(out.isTraceReferences())
+				BinaryFormat.writeField(out, BinaryFormat.TRACE_ID, fingerprint);
+		}
+		
+		if(locationInfo) {
+			StackTraceElement[] callerDataArray = event.getCallerData();
+			if (callerDataArray != null && callerDataArray.length > 0) {
+				StackTraceElement element = callerDataArray[0];
+				BinaryFormat.writeField(out, BinaryFormat.CLASS, element.getClassName());
+				BinaryFormat.writeField(out, BinaryFormat.METHOD, element.getMethodName());
+				BinaryFormat.writeField(out, BinaryFormat.FILE, element.getFileName());
+				BinaryFormat.writeField(out, BinaryFormat.LINE, element.getLineNumber());
+			}
+		}
+
+		Map<String, String> mdc = event.getMDCPropertyMap();
+		if(mdc != null) {
+			for(Entry<String, String> entry : mdc.entrySet())
+				BinaryFormat.writeProperty(out, entry.getKey(), entry.getValue());
+		}
+		
+		if(delegateMarker) {
+			List<Marker> markers = event.getMarkerList();
+			if(markers != null && !markers.isEmpty())
+				BinaryFormat.writeProperty(out, MARKER_CONTEXT, markers.get(0).getName());
+		}
+		BinaryFormat.endFrame(out, frame);
+	}
+
+	/**
+	 * Binary strings need no escaping, trace is cached as is
+	 */
+	@Override
+	protected String renderThrowable(IThrowableProxy tp, long fingerprint) {
+		String rendered = traces.get(fingerprint);
+		if(rendered == null) {
+			rendered = ThrowableProxyUtil.asString(tp);
+			traces.put(fingerprint, rendered);
+		}
+		return rendered;
+	}
+
+	static byte levelCode(Level level) {
+		switch(level.toInt()) {
+		case Level.ERROR_INT:
+			return BinaryFormat.ERROR;
+		case Level.WARN_INT:
+			return BinaryFormat.WARN;
+		case Level.INFO_INT:
+			return BinaryFormat.INFO;
+		case Level.DEBUG_INT:
+			return BinaryFormat.DEBUG;
+		case Level.TRACE_INT:
+			return BinaryFormat.TRACE;
+		default:
+			return BinaryFormat.UNKNOWN;
+		}
+	}
+}
@@ -11,6 +11,7 @@
 
 package com.moonlit.logfaces.appenders.logback;
 import java.net.InetAddress;
+import java.nio.charset.Charset;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -18,22 +19,42 @@ import java.util.Set;
 
 import org.slf4j.Marker;
 
-import com.moonlit.logfaces.appenders.util.Transform;
+import com.moonlit.logfaces.appenders.util.EscapeCache;
+import com.moonlit.logfaces.appenders.util.Escaper;
+import com.moonlit.logfaces.appenders.util.EventBuffer;
+import com.moonlit.logfaces.appenders.util.ThrowableCache;
 import com.moonlit.logfaces.appenders.util.Utils;
 
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
 import ch.qos.logback.classic.spi.ThrowableProxyUtil;
 import ch.qos.logback.core.LayoutBase;
 
 public class LogfacesLayout extends LayoutBase<ILoggingEvent> {
 	private final int DEFAULT_SIZE = 256;
-	private final String MARKER_CONTEXT = "marker";
-	private boolean delegateMarker, locationInfo, json;
-	private String applicationName = "", hostName;
+	private final int MAX_BUILDER_SIZE = 64 * 1024;
+	private static final int MAX_TRACE_DEPTH = 32;
+	protected final String MARKER_CONTEXT = "marker";
+	protected boolean delegateMarker, locationInfo, json;
+	protected String applicationName = "", hostName;
+	private Charset charset;
+	private final EscapeCache names;
+	protected final ThrowableCache traces = new ThrowableCache();
+	private final ThreadLocal<StringBuilder> builders = new ThreadLocal<StringBuilder>();
+	// constant parts of every event, application and host never change
+	// so they are rendered once, both as text and bytes
+	private String prefix, suffix;
+	private byte[] prefixBytes, suffixBytes;
 
 	public LogfacesLayout(boolean json, String app, boolean marker, boolean location){
+		this(json, app, marker, location, Charset.defaultCharset());
+	}
+
+	public LogfacesLayout(boolean json, String app, boolean marker, boolean location, Charset charset){
 		this.json = json;
+		this.charset = charset;
+		this.names = new EscapeCache(json ? Escaper.JSON : Escaper.XML_ATTRIBUTE);
 		this.applicationName = app;
 		this.delegateMarker = marker;
 		this.locationInfo = location;
@@ -47,36 +68,89 @@ public class LogfacesLayout extends LayoutBase<ILoggingEvent> {
 			catch(Exception e2) {
 			}
 		}
+		renderConstants();
+	}
+
+	private void renderConstants() {
+		StringBuilder head = new StringBuilder(DEFAULT_SIZE);
+		StringBuilder tail = new StringBuilder(DEFAULT_SIZE);
+		if(json) {
+			head.append("{");
+			Utils.jsonAttribute(head, "a", applicationName, true);
+			Utils.jsonAttribute(head, "h", hostName, false);
+			tail.append("}");
+		}
+		else {
+			appendData(tail, Utils.APP_KEY, applicationName);
+			appendData(tail, Utils.HOST_KEY, hostName);
+			tail.append("\r\n  </log4j:properties>");
+			tail.append("\r\n</log4j:event>\r\n\r\n");
+		}
+		prefix = head.toString();
+		suffix = tail.toString();
+		prefixBytes = prefix.getBytes(charset);
+		suffixBytes = suffix.getBytes(charset);
 	}
 
 	@Override
 	public String doLayout(ILoggingEvent event) {
-		return json ? doJsonLayout(event) : doXmlLayout(event);
+		StringBuilder buf = new StringBuilder(DEFAULT_SIZE);
+		buf.append(prefix);
+		format(event, buf, null);
+		buf.append(suffix);
+		return buf.toString();
+	}
+
+	/**
+	 * Writes serialized event as bytes, constant parts are copied as is
+	 */
+	public void encode(ILoggingEvent event, EventBuffer out) {
+		StringBuilder buf = builders.get();
+		if(buf == null) {
+			buf = new StringBuilder(DEFAULT_SIZE * 4);
+			builders.set(buf);
+		}
+		buf.setLength(0);
+		out.writeBytes(prefixBytes);
+		format(event, buf, out);
+		out.writeChars(buf, charset);
+		out.writeBytes(suffixBytes);
+		if(buf.capacity() > MAX_BUILDER_SIZE)
+			builders.remove();
+	}
+
+	private void format(ILoggingEvent event, StringBuilder buf, EventBuffer out) {
+		if(json)
+			formatJson(event, buf, out);
+		else
+			formatXml(event, buf, out);
 	}
 	
-	public String doXmlLayout(ILoggingEvent event) {
-		StringBuilder buf = new StringBuilder(DEFAULT_SIZE);
+	private void formatXml(ILoggingEvent event, StringBuilder buf, EventBuffer out) {
 		buf.append("<log4j:event logger=\"");
-		buf.append(event.getLoggerName());
+		names.append(buf, event.getLoggerName());
 		buf.append("\" timestamp=\"");
 		buf.append(event.getTimeStamp());
 		buf.append("\" level=\"");
 		buf.append(event.getLevel());
 		buf.append("\" thread=\"");
-		buf.append(event.getThreadName());
+		names.append(buf, event.getThreadName());
 		buf.append("\">\r\n");
 
 		buf.append("  <log4j:message><![CDATA[");
-		String message = event.getFormattedMessage();
-		Transform.appendEscapingCDATA(buf, Utils.safeXml(message));
+		Escaper.CDATA.append(buf, event.getFormattedMessage());
 		buf.append("]]></log4j:message>\r\n");
 
 		IThrowableProxy tp = event.getThrowableProxy();
+		long fingerprint = 0;
 		if (tp != null) {
+			fingerprint = fingerprint(tp);
 			buf.append("  <log4j:throwable><![CDATA[");
 			buf.append("\r\n");
-			String ex = ThrowableProxyUtil.asString(tp);
-			buf.append(Utils.safeXml(ex));
+			if(out != null && out.markTraceSent(fingerprint))
+				buf.append(ThrowableCache.reference(fingerprint));
+			else
+				buf.append(renderThrowable(tp, fingerprint));
 			buf.append("\r\n");
 			buf.append("]]></log4j:throwable>\r\n");
 		}
@@ -86,9 +160,9 @@ public class LogfacesLayout extends LayoutBase<ILoggingEvent> {
 			if (callerDataArray != null && callerDataArray.length > 0) {
 				StackTraceElement immediateCallerData = callerDataArray[0];
 				buf.append("  <log4j:locationInfo class=\"");
-				buf.append(immediateCallerData.getClassName());
+				Escaper.XML_ATTRIBUTE.append(buf, immediateCallerData.getClassName());
 				buf.append("\" method=\"");
-				buf.append(Transform.escapeTags(immediateCallerData.getMethodName()));
+				Escaper.XML_ATTRIBUTE.append(buf, immediateCallerData.getMethodName());
 				buf.append("\" file=\"");
 				buf.append(immediateCallerData.getFileName());
 				buf.append("\" line=\"");
@@ -97,58 +171,50 @@ public class LogfacesLayout extends LayoutBase<ILoggingEvent> {
 			}
 		}
 
-		buf.append("<log4j:properties>\r\n");
-		buf.append("<log4j:data name=\"" + Utils.APP_KEY);
-		buf.append("\" value=\"" + Transform.escapeTags(applicationName));
-		buf.append("\"/>\r\n");
-
-		buf.append("<log4j:data name=\"" + Utils.HOST_KEY);
-		buf.append("\" value=\"" + Transform.escapeTags(hostName));
-		buf.append("\"/>\r\n");
-		
+		buf.append("<log4j:properties>");
 		if(delegateMarker){
 			List<Marker> markers = event.getMarkerList();
-			if(markers != null && !markers.isEmpty()) {
-				buf.append("\r\n    <log4j:data");
-				buf.append(" name='" + Transform.escapeTags(MARKER_CONTEXT) + "'");
-				buf.append(" value='" + Transform.escapeTags(markers.get(0).getName()) + "'");
-				buf.append("/>");
-			}
+			if(markers != null && !markers.isEmpty())
+				appendData(buf, MARKER_CONTEXT, markers.get(0).getName());
 		}
 		
 		Map<String, String> propertyMap = event.getMDCPropertyMap();
 		if ((propertyMap != null) && (propertyMap.size() != 0)) {
 			Set<Entry<String, String>> entrySet = propertyMap.entrySet();
-			for (Entry<String, String> entry : entrySet) {
-				buf.append("\r\n    <log4j:data");
-				buf.append(" name='" + Transform.escapeTags(entry.getKey()) + "'");
-				buf.append(" value='" + Transform.escapeTags(entry.getValue()) + "'");
-				buf.append("/>");
-			}
+			for (Entry<String, String> entry : entrySet)
+				appendData(buf, entry.getKey(), entry.getValue());
 		}
-		
-		buf.append("\r\n  </log4j:properties>");
-		buf.append("\r\n</log4j:event>\r\n\r\n");
 
-		return buf.toString();
+		if(tp != null && out != null && out.isTraceReferences())
+			appendData(buf, Utils.TRACE_KEY, ThrowableCache.id(fingerprint));
 	}
 
-	public String doJsonLayout(ILoggingEvent event) {
-		StringBuilder buf = new StringBuilder(DEFAULT_SIZE);
-		buf.append("{");
-		
-		Utils.jsonAttribute(buf, "a", applicationName, true);
-		Utils.jsonAttribute(buf, "h", hostName, false);
-		Utils.jsonAttribute(buf, "t", Long.toString(event.getTimeStamp()), false);
-		Utils.jsonAttribute(buf, "r", event.getThreadName(), false);
+	private void appendData(StringBuilder buf, String name, String value) {
+		buf.append("\r\n    <log4j:data name='");
+		Escaper.XML_ATTRIBUTE.append(buf, name);
+		buf.append("' value='");
+		Escaper.XML_ATTRIBUTE.append(buf, value);
+		buf.append("'/>");
+	}
+
+	private void formatJson(ILoggingEvent event, StringBuilder buf, EventBuffer out) {
+		Utils.jsonAttribute(buf, "t", event.getTimeStamp(), false);
+		Utils.jsonAttribute(buf, "r", names, event.getThreadName());
 		Utils.jsonAttribute(buf, "p", event.getLevel().toString(), false);
-		Utils.jsonAttribute(buf, "g", event.getLoggerName(), false);
+		Utils.jsonAttribute(buf, "g", names, event.getLoggerName());
 		Utils.jsonAttribute(buf, "m", event.getMessage() != null ? event.getFormattedMessage() : "", false);
 		
 		IThrowableProxy tp = event.getThrowableProxy();
+		long fingerprint = 0;
 		if (tp != null) {
+			fingerprint = fingerprint(tp);
 			Utils.jsonAttribute(buf, "w", "true", false);
-			Utils.jsonAttribute(buf, "i", ThrowableProxyUtil.asString(tp), false);
+			buf.append(",\"i\":\"");
+			if(out != null && out.markTraceSent(fingerprint))
+				buf.append(ThrowableCache.reference(fingerprint));
+			else
+				buf.append(renderThrowable(tp, fingerprint));
+			buf.append('"');
 		}
 		
 		if(locationInfo) {
@@ -158,23 +224,61 @@ public class LogfacesLayout extends LayoutBase<ILoggingEvent> {
 				Utils.jsonAttribute(buf, "c", element.getClassName(), false);
 				Utils.jsonAttribute(buf, "e", element.getMethodName(), false);
 				Utils.jsonAttribute(buf, "f", element.getFileName(), false);
-				Utils.jsonAttribute(buf, "l", ""+element.getLineNumber(), false);
+				Utils.jsonAttribute(buf, "l", element.getLineNumber(), false);
 			}
 		}
 
 		Map<String, String> mdc = event.getMDCPropertyMap();
 		if(mdc != null) {
-			for(String key : mdc.keySet())
-				Utils.jsonAttribute(buf, "p_"+key, String.valueOf(mdc.get(key)), false);
+			for(Entry<String, String> entry : mdc.entrySet())
+				Utils.jsonProperty(buf, entry.getKey(), String.valueOf(entry.getValue()));
 		}
 		
 		if(delegateMarker) {
 			List<Marker> markers = event.getMarkerList();
 			if(markers != null && !markers.isEmpty())
-				Utils.jsonAttribute(buf, "p_"+MARKER_CONTEXT, markers.get(0).getName(), false);
+				Utils.jsonProperty(buf, MARKER_CONTEXT, markers.get(0).getName());
 		}
-		
-		buf.append("}");
-		return buf.toString();
+
+		if(tp != null && out != null && out.isTraceReferences())
+			Utils.jsonProperty(buf, Utils.TRACE_KEY, ThrowableCache.id(fingerprint));
+	}
+
+	/**
+	 * @return trace rendered and escaped for the format, cached by fingerprint
+	 */
+	protected String renderThrowable(IThrowableProxy tp, long fingerprint) {
+		String rendered = traces.get(fingerprint);
+		if(rendered == null) {
+			String trace = ThrowableProxyUtil.asString(tp);
+			rendered = json ? Escaper.JSON.escape(trace) : Escaper.CDATA.escape(trace);
+			traces.put(fingerprint, rendered);
+		}
+		return rendered;
+	}
+
+	/**
+	 * Same fingerprint as ThrowableCache computes for throwables, over the proxy
+	 */
+	static long fingerprint(IThrowableProxy tp) {
+		return ThrowableCache.finish(fingerprint(ThrowableCache.seed(), tp, 0));
+	}
+
+	private static long fingerprint(long h, IThrowableProxy tp, int depth) {
+		for(; tp != null && depth < MAX_TRACE_DEPTH; tp = tp.getCause(), depth++) {
+			h = ThrowableCache.mix(h, tp.getClassName().hashCode());
+			h = ThrowableCache.mix(h, tp.getMessage() != null ? tp.getMessage().hashCode() : 0);
+			StackTraceElementProxy[] frames = tp.getStackTraceElementProxyArray();
+			h = ThrowableCache.mix(h, frames.length);
+			h = ThrowableCache.mix(h, tp.getCommonFrames());
+			for(StackTraceElementProxy frame : frames)
+				h = ThrowableCache.mix(h, frame.getStackTraceElement().hashCode());
+			IThrowableProxy[] suppressed = tp.getSuppressed();
+			if(suppressed != null) {
+				for(IThrowableProxy s : suppressed)
+					h = fingerprint(h, s, depth + 1);
+			}
+		}
+		return h;
 	}
 }
@@ -0,0 +1,345 @@
+package com.moonlit.logfaces.appenders.receiver;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Minimal stand-in for logFaces server, accepts appender connections
+ * and decodes events sent in any format, see StreamDecoder. Meant for
+ * testing the appenders end to end on a single machine. Compressed
+ * connections (zlib stream) are recognized by the first byte and inflated.
+ * Datagrams are received on the same port once UDP is started.
+ *
+ * Failures seen in production can be injected while it runs:
+ * <ul>
+ * <li>read delay, pause before every read from a socket, a slow reader or a long link</li>
+ * <li>read rate, bytes per second each connection is read at</li>
+ * <li>stall, nothing is read but connections stay open, a hung server or half open connection</li>
+ * <li>reset after number of events, connection is reset with events of the batch still unread</li>
+ * <li>resetConnections, all connections are reset right away</li>
+ * </ul>
+ *
+ * Can be started standalone, events are printed to stdout:
+ * java com.moonlit.logfaces.appenders.receiver.LocalReceiver [port]
+ */
+public class LocalReceiver implements Closeable {
+	public interface Listener {
+		void onEvent(Map<String, String> event);
+	}
+
+	// first byte of zlib stream with default window size
+	protected static final int ZLIB_HEADER = 0x78;
+
+	protected final ServerSocket server;
+	protected final Listener listener;
+	protected final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+	protected final AtomicLong received = new AtomicLong();
+	protected final AtomicLong bytes = new AtomicLong();
+	protected final AtomicLong errors = new AtomicLong();
+	protected final AtomicLong resets = new AtomicLong();
+	protected volatile DatagramSocket datagrams;
+	protected volatile Charset charset = StandardCharsets.UTF_8;
+	protected volatile boolean running;
+
+	protected volatile long readDelay;
+	protected volatile long readRate;
+	protected volatile boolean stalled;
+	protected volatile long resetAfter;
+
+	public LocalReceiver(int port, Listener listener) throws IOException {
+		this(InetAddress.getLoopbackAddress(), port, listener);
+	}
+
+	/**
+	 * Receivers bound to 127.0.0.x addresses with the same port stand in for a cluster
+	 */
+	public LocalReceiver(InetAddress address, int port, Listener listener) throws IOException {
+		this.server = new ServerSocket(port, 50, address);
+		this.listener = listener;
+	}
+
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	public long getReceived() {
+		return received.get();
+	}
+
+	public long getErrors() {
+		return errors.get();
+	}
+
+	/**
+	 * @return bytes read from connections and datagrams, compressed size if compressed
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * @return connections reset by fault injection
+	 */
+	public long getResets() {
+		return resets.get();
+	}
+
+	public int getConnections() {
+		return connections.size();
+	}
+
+	/**
+	 * Charset of XML and JSON events, UTF-8 by default
+	 */
+	public void setCharset(Charset charset) {
+		this.charset = charset;
+	}
+
+	/**
+	 * @param millis pause before every read from a connection or datagram socket
+	 */
+	public void setReadDelay(long millis) {
+		this.readDelay = millis;
+	}
+
+	/**
+	 * @param bytesPerSecond rate each connection is read at, 0 for no limit
+	 */
+	public void setReadRate(long bytesPerSecond) {
+		this.readRate = bytesPerSecond;
+	}
+
+	/**
+	 * Stalled receiver keeps connections open and accepts new ones, but reads nothing
+	 */
+	public void setStalled(boolean stalled) {
+		this.stalled = stalled;
+	}
+
+	/**
+	 * @param events each connection is reset after receiving this many events, 0 never
+	 */
+	public void setResetAfter(long events) {
+		this.resetAfter = events;
+	}
+
+	/**
+	 * Resets all open connections, senders get connection reset on their next write
+	 */
+	public void resetConnections() {
+		for(Socket socket : connections)
+			reset(socket);
+	}
+
+	public void start() {
+		running = true;
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				accept();
+			}
+		}, "LocalReceiver-" + getPort());
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Starts receiving datagrams on the same address and port
+	 */
+	public void startUdp() throws SocketException {
+		final DatagramSocket socket = new DatagramSocket(new InetSocketAddress(server.getInetAddress(), getPort()));
+		socket.setReceiveBufferSize(1024 * 1024);
+		datagrams = socket;
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				receive(socket);
+			}
+		}, "LocalReceiver-udp-" + getPort());
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	@Override
+	public void close() throws IOException {
+		running = false;
+		server.close();
+		if(datagrams != null)
+			datagrams.close();
+		for(Socket socket : connections)
+			socket.close();
+	}
+
+	protected void accept() {
+		while(running) {
+			try {
+				final Socket socket = server.accept();
+				connections.add(socket);
+				Thread reader = new Thread(new Runnable() {
+					public void run() {
+						read(socket);
+					}
+				}, "LocalReceiver-" + socket.getRemoteSocketAddress());
+				reader.setDaemon(true);
+				reader.start();
+			}
+			catch(IOException e) {
+				if(running)
+					errors.incrementAndGet();
+			}
+		}
+	}
+
+	protected void read(Socket socket) {
+		try {
+			StreamDecoder decoder = new StreamDecoder(open(socket), charset);
+			Map<String, String> event;
+			long events = 0;
+			while((event = decoder.next()) != null) {
+				received.incrementAndGet();
+				if(listener != null)
+					listener.onEvent(event);
+				long after = resetAfter;
+				if(after > 0 && ++events >= after) {
+					reset(socket);
+					return;
+				}
+			}
+		}
+		catch(IOException e) {
+			if(running && !socket.isClosed())
+				errors.incrementAndGet();
+		}
+		finally {
+			connections.remove(socket);
+			try {
+				socket.close();
+			}
+			catch(IOException e) {
+			}
+		}
+	}
+
+	protected void receive(DatagramSocket socket) {
+		DatagramPacket packet = new DatagramPacket(new byte[64 * 1024], 64 * 1024);
+		while(running) {
+			try {
+				awaitRead();
+				socket.receive(packet);
+				bytes.addAndGet(packet.getLength());
+				Map<String, String> event = StreamDecoder.decode(packet.getData(), packet.getOffset(), packet.getLength(), charset);
+				received.incrementAndGet();
+				if(listener != null)
+					listener.onEvent(event);
+			}
+			catch(IOException e) {
+				if(running && !socket.isClosed())
+					errors.incrementAndGet();
+				if(socket.isClosed())
+					return;
+			}
+		}
+	}
+
+	/**
+	 * Abortive close, unread data is discarded and peer gets RST instead of FIN
+	 */
+	protected void reset(Socket socket) {
+		try {
+			socket.setSoLinger(true, 0);
+			socket.close();
+			resets.incrementAndGet();
+		}
+		catch(IOException e) {
+		}
+	}
+
+	/**
+	 * Applies stall and read delay before a read
+	 */
+	protected void awaitRead() {
+		while(stalled && running)
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+		long delay = readDelay;
+		if(delay > 0)
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(delay));
+	}
+
+	protected InputStream open(Socket socket) throws IOException {
+		InputStream in = new BufferedInputStream(new FaultyInputStream(socket.getInputStream()));
+		in.mark(1);
+		int first = in.read();
+		in.reset();
+		if(first == ZLIB_HEADER)
+			in = new BufferedInputStream(new InflaterInputStream(in));
+		return in;
+	}
+
+	/**
+	 * Socket stream with injected faults, counts bytes read
+	 */
+	protected class FaultyInputStream extends FilterInputStream {
+		private final long started = System.nanoTime();
+		private long read;
+
+		protected FaultyInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			awaitRead();
+			long rate = readRate;
+			if(rate > 0)
+				len = (int)Math.max(Math.min(len, rate / 20), 1);
+			int n = super.read(b, off, len);
+			if(n <= 0)
+				return n;
+			bytes.addAndGet(n);
+			read += n;
+			if(rate > 0) {
+				long due = started + read * 1000000000L / rate;
+				long ahead = due - System.nanoTime();
+				if(ahead > 0)
+					LockSupport.parkNanos(ahead);
+			}
+			return n;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 55200;
+		LocalReceiver receiver = new LocalReceiver(port, new Listener() {
+			public void onEvent(Map<String, String> event) {
+				System.out.println(event);
+			}
+		});
+		receiver.start();
+		receiver.startUdp();
+		System.out.println("receiving events on port " + receiver.getPort());
+		Thread.currentThread().join();
+	}
+}
@@ -0,0 +1,117 @@
+package com.moonlit.logfaces.appenders.receiver;
+
+import java.util.BitSet;
+import java.util.Map;
+
+/**
+ * Checks received events for loss and duplicates. Senders put sequence numbers
+ * into messages after a prefix, like "seq=42 ...", numbers start at 0 and each
+ * is used once. Events without the prefix are counted, but not tracked.
+ */
+public class SequenceTracker implements LocalReceiver.Listener {
+	public static final String DEFAULT_PREFIX = "seq=";
+
+	private final String prefix;
+	private final BitSet seen = new BitSet();
+	private long received, distinct, duplicates, untracked;
+
+	public SequenceTracker() {
+		this(DEFAULT_PREFIX);
+	}
+
+	public SequenceTracker(String prefix) {
+		this.prefix = prefix;
+	}
+
+	@Override
+	public void onEvent(Map<String, String> event) {
+		track(parse(event.get("m")));
+	}
+
+	public synchronized void track(long seq) {
+		received++;
+		if(seq < 0 || seq > Integer.MAX_VALUE) {
+			untracked++;
+			return;
+		}
+		if(seen.get((int)seq))
+			duplicates++;
+		else {
+			seen.set((int)seq);
+			distinct++;
+		}
+	}
+
+	/**
+	 * @return sequence number in the message or -1 if there isn't any
+	 */
+	public long parse(String message) {
+		if(message == null)
+			return -1;
+		int i = message.indexOf(prefix);
+		if(i < 0)
+			return -1;
+		i += prefix.length();
+		long seq = -1;
+		for(; i < message.length(); i++) {
+			char c = message.charAt(i);
+			if(c < '0' || c > '9')
+				break;
+			seq = (seq < 0 ? 0 : seq * 10) + (c - '0');
+		}
+		return seq;
+	}
+
+	public synchronized long getReceived() {
+		return received;
+	}
+
+	/**
+	 * @return events received at least once
+	 */
+	public synchronized long getDistinct() {
+		return distinct;
+	}
+
+	public synchronized long getDuplicates() {
+		return duplicates;
+	}
+
+	public synchronized long getUntracked() {
+		return untracked;
+	}
+
+	/**
+	 * @param sent number of events sent, sequence 0 to sent - 1
+	 * @return events never received
+	 */
+	public synchronized long getLost(long sent) {
+		return sent - seen.get(0, (int)Math.min(sent, Integer.MAX_VALUE)).cardinality();
+	}
+
+	/**
+	 * @return first ranges of missing sequence numbers, like "17-25, 90", for the report
+	 */
+	public synchronized String missing(long sent, int ranges) {
+		StringBuilder buf = new StringBuilder();
+		int end = (int)Math.min(sent, Integer.MAX_VALUE);
+		int from = seen.nextClearBit(0);
+		while(from < end && ranges-- > 0) {
+			int to = Math.min(seen.nextSetBit(from) < 0 ? end : seen.nextSetBit(from), end) - 1;
+			if(buf.length() > 0)
+				buf.append(", ");
+			buf.append(from);
+			if(to > from)
+				buf.append('-').append(to);
+			from = seen.nextClearBit(to + 1);
+		}
+		if(from < end)
+			buf.append(", ...");
+		return buf.toString();
+	}
+
+	public synchronized void clear() {
+		seen.clear();
+		received = distinct = duplicates = untracked = 0;
+	}
+}
@@ -0,0 +1,343 @@
+package com.moonlit.logfaces.appenders.receiver;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.moonlit.logfaces.appenders.util.BinaryDecoder;
+import com.moonlit.logfaces.appenders.util.BinaryFormat;
+import com.moonlit.logfaces.appenders.util.Utils;
+
+/**
+ * Decodes events in any of the formats appenders produce, XML, JSON or binary,
+ * recognized by the first byte of each event. Events are decoded into maps keyed
+ * like JSON format, same as BinaryDecoder does, so the format doesn't matter to
+ * whoever consumes them.
+ *
+ * Text formats are decoded only as far as the appenders use them, this is not
+ * a general XML or JSON parser.
+ */
+public class StreamDecoder {
+	private static final byte[] XML_END = "</log4j:event>".getBytes(StandardCharsets.US_ASCII);
+	private static final int MAX_EVENT_SIZE = BinaryDecoder.MAX_FRAME_SIZE;
+
+	private final InputStream in;
+	private final Charset charset;
+	private final BinaryDecoder binary;
+	private byte[] event = new byte[4096];
+
+	/**
+	 * @param in stream supporting mark, such as BufferedInputStream
+	 */
+	public StreamDecoder(InputStream in, Charset charset) {
+		if(!in.markSupported())
+			throw new IllegalArgumentException("stream must support mark");
+		this.in = in;
+		this.charset = charset;
+		this.binary = new BinaryDecoder(in);
+	}
+
+	/**
+	 * @return next event from the stream or null when stream ends
+	 */
+	public Map<String, String> next() throws IOException {
+		int b;
+		do {
+			in.mark(1);
+			b = in.read();
+			if(b < 0)
+				return null;
+		} while(Character.isWhitespace(b));
+
+		if((byte)b == BinaryFormat.MAGIC) {
+			in.reset();
+			return binary.next();
+		}
+		if(b == '<')
+			return decodeXml(new String(event, 0, readXml(b), charset));
+		if(b == '{')
+			return decodeJson(new String(event, 0, readJson(b), charset));
+		throw new IOException(String.format("unknown format, unexpected byte 0x%02x", b));
+	}
+
+	/**
+	 * Decodes single event such as datagram
+	 */
+	public static Map<String, String> decode(byte[] data, int offset, int length, Charset charset) throws IOException {
+		Map<String, String> event = new StreamDecoder(new ByteArrayInputStream(data, offset, length), charset).next();
+		if(event == null)
+			throw new IOException("no event");
+		return event;
+	}
+
+	private int readXml(int first) throws IOException {
+		int size = 0;
+		event[size++] = (byte)first;
+		while(size < XML_END.length || !endsWith(event, size, XML_END))
+			size = append(size, readByte());
+		return size;
+	}
+
+	private int readJson(int first) throws IOException {
+		int size = 0;
+		event[size++] = (byte)first;
+		int depth = 1;
+		boolean string = false, escaped = false;
+		while(depth > 0) {
+			int b = readByte();
+			size = append(size, b);
+			if(escaped)
+				escaped = false;
+			else if(string) {
+				if(b == '\\')
+					escaped = true;
+				else if(b == '"')
+					string = false;
+			}
+			else if(b == '"')
+				string = true;
+			else if(b == '{')
+				depth++;
+			else if(b == '}')
+				depth--;
+		}
+		return size;
+	}
+
+	private int readByte() throws IOException {
+		int b = in.read();
+		if(b < 0)
+			throw new EOFException("stream ended inside of an event");
+		return b;
+	}
+
+	private int append(int size, int b) throws IOException {
+		if(size == event.length) {
+			if(size >= MAX_EVENT_SIZE)
+				throw new IOException("event exceeds " + MAX_EVENT_SIZE + " bytes");
+			event = Arrays.copyOf(event, size * 2);
+		}
+		event[size] = (byte)b;
+		return size + 1;
+	}
+
+	private static boolean endsWith(byte[] data, int size, byte[] suffix) {
+		for(int i = 1; i <= suffix.length; i++) {
+			if(data[size - i] != suffix[suffix.length - i])
+				return false;
+		}
+		return true;
+	}
+
+	static Map<String, String> decodeXml(String xml) throws IOException {
+		Map<String, String> event = new LinkedHashMap<String, String>();
+		int head = xml.indexOf('>');
+		if(!xml.startsWith("<log4j:event") || head < 0)
+			throw new IOException("not a log4j event");
+		String attributes = xml.substring(0, head);
+		put(event, "g", attribute(attributes, "logger"));
+		put(event, "t", attribute(attributes, "timestamp"));
+		put(event, "p", attribute(attributes, "level"));
+		put(event, "r", attribute(attributes, "thread"));
+		put(event, "m", element(xml, "log4j:message"));
+		put(event, "n", element(xml, "log4j:NDC"));
+		String thrown = element(xml, "log4j:throwable");
+		if(thrown != null) {
+			event.put("w", "true");
+			event.put("i", thrown.trim());
+		}
+
+		int location = xml.indexOf("<log4j:locationInfo ");
+		if(location >= 0) {
+			String tag = xml.substring(location, xml.indexOf('>', location));
+			put(event, "c", attribute(tag, "class"));
+			put(event, "e", attribute(tag, "method"));
+			put(event, "f", attribute(tag, "file"));
+			put(event, "l", attribute(tag, "line"));
+		}
+
+		for(int i = xml.indexOf("<log4j:data "); i >= 0; i = xml.indexOf("<log4j:data ", i + 1)) {
+			String tag = xml.substring(i, xml.indexOf('>', i));
+			String name = attribute(tag, "name");
+			String value = attribute(tag, "value");
+			if(Utils.APP_KEY.equals(name))
+				event.put("a", value);
+			else if(Utils.HOST_KEY.equals(name))
+				event.put("h", value);
+			else if(name != null)
+				event.put("p_" + name, value);
+		}
+		return event;
+	}
+
+	private static void put(Map<String, String> event, String key, String value) {
+		if(value != null)
+			event.put(key, value);
+	}
+
+	private static String attribute(String tag, String name) {
+		String prefix = " " + name + "=\"";
+		int start = tag.indexOf(prefix);
+		if(start < 0)
+			return null;
+		start += prefix.length();
+		int end = tag.indexOf('"', start);
+		return end < 0 ? null : unescape(tag.substring(start, end));
+	}
+
+	/**
+	 * @return text of the element, CDATA sections and escaped text alike
+	 */
+	private static String element(String xml, String name) {
+		int start = xml.indexOf("<" + name + ">");
+		if(start < 0)
+			return null;
+		start += name.length() + 2;
+		int end = xml.indexOf("</" + name + ">", start);
+		if(end < 0)
+			return null;
+
+		StringBuilder text = new StringBuilder(end - start);
+		int i = start;
+		while(i < end) {
+			int cdata = xml.indexOf("<![CDATA[", i);
+			if(cdata < 0 || cdata >= end) {
+				text.append(unescape(xml.substring(i, end)));
+				break;
+			}
+			text.append(unescape(xml.substring(i, cdata)));
+			int close = xml.indexOf("]]>", cdata + 9);
+			if(close < 0)
+				close = end;
+			text.append(xml, cdata + 9, close);
+			i = close + 3;
+		}
+		return text.toString();
+	}
+
+	private static String unescape(String s) {
+		int amp = s.indexOf('&');
+		if(amp < 0)
+			return s;
+		StringBuilder buf = new StringBuilder(s.length());
+		int i = 0;
+		while(amp >= 0) {
+			buf.append(s, i, amp);
+			int semi = s.indexOf(';', amp);
+			if(semi < 0) {
+				i = amp;
+				break;
+			}
+			String entity = s.substring(amp + 1, semi);
+			if("lt".equals(entity))
+				buf.append('<');
+			else if("gt".equals(entity))
+				buf.append('>');
+			else if("amp".equals(entity))
+				buf.append('&');
+			else if("quot".equals(entity))
+				buf.append('"');
+			else if("apos".equals(entity))
+				buf.append('\'');
+			else if(entity.startsWith("#x"))
+				buf.appendCodePoint(Integer.parseInt(entity.substring(2), 16));
+			else if(entity.startsWith("#"))
+				buf.appendCodePoint(Integer.parseInt(entity.substring(1)));
+			else
+				buf.append(s, amp, semi + 1);
+			i = semi + 1;
+			amp = s.indexOf('&', i);
+		}
+		buf.append(s, i, s.length());
+		return buf.toString();
+	}
+
+	/**
+	 * Flat object of string values, as the JSON layouts write it
+	 */
+	static Map<String, String> decodeJson(String json) throws IOException {
+		Map<String, String> event = new LinkedHashMap<String, String>();
+		int[] pos = {skip(json, 1)};
+		try {
+			while(json.charAt(pos[0]) != '}') {
+				String key = string(json, pos);
+				pos[0] = skip(json, pos[0]);
+				if(json.charAt(pos[0]++) != ':')
+					throw new IOException("expected : at " + (pos[0] - 1));
+				pos[0] = skip(json, pos[0]);
+				String value;
+				if(json.charAt(pos[0]) == '"')
+					value = string(json, pos);
+				else {
+					int start = pos[0];
+					while(",}".indexOf(json.charAt(pos[0])) < 0 && !Character.isWhitespace(json.charAt(pos[0])))
+						pos[0]++;
+					value = json.substring(start, pos[0]);
+				}
+				event.put(key, value);
+				pos[0] = skip(json, pos[0]);
+				if(json.charAt(pos[0]) == ',')
+					pos[0] = skip(json, pos[0] + 1);
+			}
+		}
+		catch(RuntimeException e) {
+			throw new IOException("corrupted JSON event: " + e, e);
+		}
+		return event;
+	}
+
+	private static int skip(String json, int i) {
+		while(Character.isWhitespace(json.charAt(i)))
+			i++;
+		return i;
+	}
+
+	private static String string(String json, int[] pos) throws IOException {
+		int i = pos[0];
+		if(json.charAt(i++) != '"')
+			throw new IOException("expected string at " + (i - 1));
+		StringBuilder buf = new StringBuilder();
+		while(true) {
+			char c = json.charAt(i++);
+			if(c == '"')
+				break;
+			if(c != '\\') {
+				buf.append(c);
+				continue;
+			}
+			c = json.charAt(i++);
+			switch(c) {
+			case 'n':
+				buf.append('\n');
+				break;
+			case 'r':
+				buf.append('\r');
+				break;
+			case 't':
+				buf.append('\t');
+				break;
+			case 'b':
+				buf.append('\b');
+				break;
+			case 'f':
+				buf.append('\f');
+				break;
+			case 'u':
+				buf.append((char)Integer.parseInt(json.substring(i, i + 4), 16));
+				i += 4;
+				break;
+			default:
+				buf.append(c);
+				break;
+			}
+		}
+		pos[0] = i;
+		return buf.toString();
+	}
+}
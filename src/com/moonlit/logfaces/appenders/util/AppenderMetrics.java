@@ -0,0 +1,102 @@
+package com.moonlit.logfaces.appenders.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Statistics of an appender, registered as MBean under
+ *
+ *   com.moonlit.logfaces:type=Appender,framework=log4j2|logback,name=appender name
+ *
+ * Counters are bumped on application threads, so they are striped (LongAdder)
+ * and never contend, the sums are only taken when read. Queue and connection
+ * state isn't counted here, the appender reports it as it is when asked.
+ */
+public abstract class AppenderMetrics implements AppenderMetricsMBean {
+	public static final String DOMAIN = "com.moonlit.logfaces";
+
+	private final LongAdder enqueued = new LongAdder();
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder backup = new LongAdder();
+	private ObjectName objectName;
+
+	public void enqueued() {
+		enqueued.increment();
+	}
+
+	public void sent(long events) {
+		sent.add(events);
+	}
+
+	public void dropped(long events) {
+		dropped.add(events);
+	}
+
+	public void backup() {
+		backup.increment();
+	}
+
+	@Override
+	public long getEnqueued() {
+		return enqueued.sum();
+	}
+
+	@Override
+	public long getSent() {
+		return sent.sum();
+	}
+
+	@Override
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	@Override
+	public long getSentToBackup() {
+		return backup.sum();
+	}
+
+	/**
+	 * Registers with the platform MBean server
+	 */
+	public synchronized void register(String framework, String name) throws JMException {
+		if(objectName != null)
+			return;
+		ObjectName on = new ObjectName(DOMAIN + ":type=Appender,framework=" + framework + ",name=" + quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(this, AppenderMetricsMBean.class), on);
+		objectName = on;
+	}
+
+	public synchronized void unregister() {
+		if(objectName == null)
+			return;
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			if(server.isRegistered(objectName))
+				server.unregisterMBean(objectName);
+		}
+		catch(JMException e) {
+		}
+		objectName = null;
+	}
+
+	public synchronized ObjectName getObjectName() {
+		return objectName;
+	}
+
+	private static String quote(String name) {
+		if(name == null)
+			return "\"\"";
+		for(int i = 0; i < name.length(); i++) {
+			if(",=:\"*?\n".indexOf(name.charAt(i)) >= 0)
+				return ObjectName.quote(name);
+		}
+		return name;
+	}
+}
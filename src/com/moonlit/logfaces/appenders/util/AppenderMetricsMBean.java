@@ -0,0 +1,41 @@
+package com.moonlit.logfaces.appenders.util;
+
+/**
+ * Management interface of appender pipeline, see AppenderMetrics
+ */
+public interface AppenderMetricsMBean {
+	/**
+	 * @return events waiting for the dispatcher, queued or encoded
+	 */
+	int getQueueDepth();
+
+	int getQueueCapacity();
+
+	/**
+	 * @return events accepted for delivery, queued, buffered or spilled
+	 */
+	long getEnqueued();
+
+	long getSent();
+
+	/**
+	 * @return events lost on the way: rejected, shed, or dropped by spill or transport
+	 */
+	long getDropped();
+
+	long getSentToBackup();
+
+	long getBytesSent();
+
+	long getReconnects();
+
+	/**
+	 * @return host of current connection, hosts of all live ones when there are more, null when down
+	 */
+	String getCurrentHost();
+
+	/**
+	 * @return time spent disconnected, summed over connections when there are more
+	 */
+	long getDisconnectedMillis();
+}
@@ -0,0 +1,163 @@
+package com.moonlit.logfaces.appenders.util;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Spreads events over connections to several servers. Targets which are
+ * not available (connection down) are skipped, they come back once their
+ * connection is restored.
+ *
+ * round-robin - next available target on every choice
+ * least-bytes - target with fewest bytes handed over and not written yet
+ * hash        - consistent hashing of a key (MDC value or application), events
+ *               with same key stick to one target, when it's down they move
+ *               to the next one on the ring and only those
+ *
+ * Choosing doesn't allocate, callers are the dispatchers.
+ */
+public class Balancer<T extends Balancer.Target> {
+	public interface Target {
+		boolean isAvailable();
+		long getOutstandingBytes();
+	}
+
+	public enum Strategy {
+		ROUND_ROBIN, LEAST_BYTES, HASH;
+
+		/**
+		 * @return strategy by name, round robin if not recognized
+		 */
+		public static Strategy parse(String name) {
+			if(name == null)
+				return ROUND_ROBIN;
+			String s = name.trim().toLowerCase();
+			if(s.startsWith("least"))
+				return LEAST_BYTES;
+			if(s.startsWith("hash") || s.startsWith("consistent"))
+				return HASH;
+			return ROUND_ROBIN;
+		}
+	}
+
+	// points on the ring per target, enough to spread keys evenly over few servers
+	private static final int VIRTUAL_NODES = 128;
+
+	private final Object[] targets;
+	private final Strategy strategy;
+	private final long[] ring;
+	private final int[] owners;
+	private int next;
+
+	public Balancer(List<T> targets, Strategy strategy) {
+		this.targets = targets.toArray();
+		this.strategy = strategy;
+		if(strategy == Strategy.HASH) {
+			int size = this.targets.length * VIRTUAL_NODES;
+			long[] points = new long[size];
+			for(int t = 0, i = 0; t < this.targets.length; t++) {
+				for(int v = 0; v < VIRTUAL_NODES; v++, i++)
+					points[i] = (mix(t * 0x9E3779B97F4A7C15L + v) & ~0xFFFFL) | t;
+			}
+			Arrays.sort(points);
+			this.ring = points;
+			this.owners = new int[size];
+			for(int i = 0; i < size; i++)
+				owners[i] = (int)(points[i] & 0xFFFF);
+		}
+		else {
+			this.ring = null;
+			this.owners = null;
+		}
+	}
+
+	public Strategy getStrategy() {
+		return strategy;
+	}
+
+	/**
+	 * @param key used by hash strategy only
+	 * @return target for next event, null when none is available
+	 */
+	public T choose(CharSequence key) {
+		switch(strategy) {
+			case HASH:
+				return onRing(hash(key));
+			case LEAST_BYTES:
+				return leastBytes();
+			default:
+				return nextAvailable();
+		}
+	}
+
+	public boolean isAvailable() {
+		for(Object target : targets) {
+			if(((Target)target).isAvailable())
+				return true;
+		}
+		return false;
+	}
+
+	@SuppressWarnings("unchecked")
+	private T nextAvailable() {
+		for(int i = 0; i < targets.length; i++) {
+			T target = (T)targets[next];
+			if(++next == targets.length)
+				next = 0;
+			if(target.isAvailable())
+				return target;
+		}
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private T leastBytes() {
+		T best = null;
+		long least = Long.MAX_VALUE;
+		// starting point rotates so equal targets share the load
+		for(int i = 0; i < targets.length; i++) {
+			T target = (T)targets[(next + i) % targets.length];
+			if(!target.isAvailable())
+				continue;
+			long bytes = target.getOutstandingBytes();
+			if(bytes < least) {
+				least = bytes;
+				best = target;
+			}
+		}
+		if(++next == targets.length)
+			next = 0;
+		return best;
+	}
+
+	@SuppressWarnings("unchecked")
+	private T onRing(long hash) {
+		int index = Arrays.binarySearch(ring, hash);
+		if(index < 0)
+			index = -index - 1;
+		for(int i = 0; i < ring.length; i++) {
+			T target = (T)targets[owners[(index + i) % ring.length]];
+			if(target.isAvailable())
+				return target;
+		}
+		return null;
+	}
+
+	private static long hash(CharSequence key) {
+		long h = 0xcbf29ce484222325L;
+		if(key != null) {
+			for(int i = 0; i < key.length(); i++)
+				h = (h ^ key.charAt(i)) * 0x100000001b3L;
+		}
+		return mix(h);
+	}
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
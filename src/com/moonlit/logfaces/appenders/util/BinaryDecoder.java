@@ -0,0 +1,158 @@
+package com.moonlit.logfaces.appenders.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reference decoder of the binary format, see BinaryFormat.
+ * Events are decoded into maps keyed the same way as JSON format,
+ * "t" for timestamp, "p" for level, "p_" prefixed user properties etc.
+ */
+public class BinaryDecoder {
+	public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+	public static final int MAX_TRACES = 4096;
+
+	protected final InputStream in;
+	private byte[] frame = new byte[4096];
+	// traces received over this stream, resolves TRACE_ID references
+	private final Map<Long, String> traces = new LinkedHashMap<Long, String>(256, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+			return size() > MAX_TRACES;
+		}
+	};
+
+	public BinaryDecoder(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * @return next event from the stream or null when stream ends
+	 */
+	public Map<String, String> next() throws IOException {
+		int b;
+		do {
+			b = in.read();
+			if(b < 0)
+				return null;
+		} while(Character.isWhitespace(b));
+
+		if((byte)b != BinaryFormat.MAGIC)
+			throw new IOException(String.format("not a binary frame, unexpected byte 0x%02x", b));
+
+		int length = (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+		if(length < 0 || length > MAX_FRAME_SIZE)
+			throw new IOException("invalid frame length " + length);
+		if(frame.length < length)
+			frame = new byte[Math.max(length, frame.length * 2)];
+
+		int read = 0;
+		while(read < length) {
+			int n = in.read(frame, read, length - read);
+			if(n < 0)
+				throw new EOFException("stream ended inside of a frame");
+			read += n;
+		}
+		return decode(ByteBuffer.wrap(frame, 0, length), traces);
+	}
+
+	private int readByte() throws IOException {
+		int b = in.read();
+		if(b < 0)
+			throw new EOFException("stream ended inside of a frame");
+		return b;
+	}
+
+	/**
+	 * Decodes complete frame, including MAGIC and length, such as single datagram
+	 */
+	public static Map<String, String> decodeFrame(byte[] data, int offset, int length) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(data, offset, length);
+		while(buf.hasRemaining() && Character.isWhitespace(buf.get(buf.position())))
+			buf.get();
+		if(buf.remaining() < BinaryFormat.HEADER_SIZE || buf.get() != BinaryFormat.MAGIC)
+			throw new IOException("not a binary frame");
+		int size = buf.getInt();
+		if(size < 0 || size > buf.remaining())
+			throw new IOException("invalid frame length " + size);
+		buf.limit(buf.position() + size);
+		return decode(buf, null);
+	}
+
+	/**
+	 * Decodes frame body
+	 * @param traces traces seen on the same stream, may be null
+	 */
+	public static Map<String, String> decode(ByteBuffer body, Map<Long, String> traces) throws IOException {
+		try {
+			Map<String, String> event = new LinkedHashMap<String, String>();
+			int version = body.get();
+			if(version != BinaryFormat.VERSION)
+				throw new IOException("unsupported binary format version " + version);
+			event.put("t", Long.toString(readVarint(body)));
+			event.put("p", BinaryFormat.levelName(body.get()));
+			while(body.hasRemaining()) {
+				char tag = (char)body.get();
+				switch(tag) {
+				case BinaryFormat.LINE:
+					event.put("l", Long.toString(readVarint(body)));
+					break;
+				case BinaryFormat.TRACE_ID:
+					long fingerprint = readVarint(body);
+					event.put("x", ThrowableCache.id(fingerprint));
+					String trace = event.get("i");
+					if(trace == null) {
+						trace = traces != null ? traces.get(fingerprint) : null;
+						event.put("w", "true");
+						event.put("i", trace != null ? trace : ThrowableCache.reference(fingerprint));
+					}
+					else if(traces != null) {
+						traces.put(fingerprint, trace);
+					}
+					break;
+				case BinaryFormat.PROPERTY:
+					String key = readString(body);
+					event.put("p_" + key, readString(body));
+					break;
+				case BinaryFormat.THROWABLE:
+					event.put("w", "true");
+					event.put("i", readString(body));
+					break;
+				default:
+					event.put(String.valueOf(tag), readString(body));
+					break;
+				}
+			}
+			return event;
+		}
+		catch(RuntimeException e) {
+			throw new IOException("corrupted frame: " + e, e);
+		}
+	}
+
+	static long readVarint(ByteBuffer buf) throws IOException {
+		long value = 0;
+		for(int shift = 0; shift < 64; shift += 7) {
+			byte b = buf.get();
+			value |= (long)(b & 0x7f) << shift;
+			if((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("malformed varint");
+	}
+
+	static String readString(ByteBuffer buf) throws IOException {
+		int length = (int)readVarint(buf);
+		if(length < 0 || length > buf.remaining())
+			throw new IOException("invalid string length " + length);
+		String s = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+		buf.position(buf.position() + length);
+		return s;
+	}
+}
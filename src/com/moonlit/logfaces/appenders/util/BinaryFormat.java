@@ -0,0 +1,134 @@
+package com.moonlit.logfaces.appenders.util;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary wire format, an alternative to XML and JSON.
+ *
+ * <pre>
+ * frame    := MAGIC length:int32 body
+ * body     := VERSION timestamp:varint level:byte field*
+ * field    := tag:byte string
+ *           | LINE varint
+ *           | TRACE_ID fingerprint:varint
+ *           | PROPERTY string string
+ * string   := length:varint utf8-bytes
+ * </pre>
+ *
+ * Integers are big endian, varints are unsigned LEB128. Field tags are the
+ * same letters as the keys of JSON format, so decoded events can be compared
+ * one to one. Whitespace between frames is ignored, this keeps the connection
+ * probe bytes transports write before each event harmless.
+ *
+ * TRACE_ID field follows THROWABLE to identify it, when the trace has already
+ * been sent over the connection, TRACE_ID comes alone and receiver resolves it.
+ */
+public final class BinaryFormat {
+	public static final byte MAGIC = (byte)0xB1;
+	public static final byte VERSION = 1;
+	public static final int HEADER_SIZE = 5;
+
+	public static final byte UNKNOWN = 0;
+	public static final byte TRACE = 1;
+	public static final byte DEBUG = 2;
+	public static final byte INFO = 3;
+	public static final byte WARN = 4;
+	public static final byte ERROR = 5;
+	public static final byte FATAL = 6;
+	static final String[] LEVELS = {"UNKNOWN", "TRACE", "DEBUG", "INFO", "WARN", "ERROR", "FATAL"};
+
+	public static final char APPLICATION = 'a';
+	public static final char HOST = 'h';
+	public static final char THREAD = 'r';
+	public static final char LOGGER = 'g';
+	public static final char MESSAGE = 'm';
+	public static final char NDC = 'n';
+	public static final char THROWABLE = 'i';
+	public static final char CLASS = 'c';
+	public static final char METHOD = 'e';
+	public static final char FILE = 'f';
+	public static final char LINE = 'l';
+	public static final char PROPERTY = 'P';
+	public static final char TRACE_ID = 'x';
+
+	private BinaryFormat() {
+	}
+
+	public static String levelName(int code) {
+		return code >= 0 && code < LEVELS.length ? LEVELS[code] : LEVELS[UNKNOWN];
+	}
+
+	/**
+	 * Starts a frame and writes fixed part of the body
+	 * @return position of the frame to be passed into endFrame
+	 */
+	public static int beginFrame(EventBuffer out, long timestamp, byte level) {
+		int start = out.size();
+		out.writeByte(MAGIC);
+		out.writeInt(0);
+		out.writeByte(VERSION);
+		out.writeVarint(timestamp);
+		out.writeByte(level);
+		return start;
+	}
+
+	public static void endFrame(EventBuffer out, int start) {
+		out.putInt(start + 1, out.size() - start - HEADER_SIZE);
+	}
+
+	public static void writeField(EventBuffer out, char tag, CharSequence value) {
+		if(value == null)
+			return;
+		out.writeByte(tag);
+		writeString(out, value);
+	}
+
+	public static void writeField(EventBuffer out, char tag, long value) {
+		out.writeByte(tag);
+		out.writeVarint(value);
+	}
+
+	public static void writeProperty(EventBuffer out, String key, String value) {
+		if(key == null)
+			return;
+		out.writeByte(PROPERTY);
+		writeString(out, key);
+		writeString(out, value != null ? value : "");
+	}
+
+	public static void writeString(EventBuffer out, CharSequence value) {
+		out.writeVarint(utf8Length(value));
+		out.writeChars(value, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Application and host fields which are the same in every frame
+	 */
+	public static byte[] constantFields(String application, String host) {
+		EventBuffer out = new EventBuffer(128);
+		writeField(out, APPLICATION, application != null ? application : "");
+		writeField(out, HOST, host != null ? host : "");
+		byte[] bytes = new byte[out.size()];
+		System.arraycopy(out.array(), 0, bytes, 0, bytes.length);
+		return bytes;
+	}
+
+	public static int utf8Length(CharSequence s) {
+		int len = s.length();
+		int bytes = len;
+		for(int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			if(c < 0x80)
+				continue;
+			if(c < 0x800)
+				bytes++;
+			else if(Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+				bytes += 2;
+				i++;
+			}
+			else if(!Character.isSurrogate(c))
+				bytes += 2;
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,201 @@
+package com.moonlit.logfaces.appenders.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded ring of serialized events, length prefixed records in one buffer,
+ * on heap or in direct memory. Producers encode events themselves and copy
+ * the bytes in, the consumer takes records out in batches ready to be written.
+ * It's bounded by bytes, not by number of events, and a direct one holds
+ * nothing the garbage collector has to look at.
+ *
+ * Records wrap around the end of the buffer. Nothing is allocated per record.
+ * Producers copy their record in holding the lock, they wait only for each
+ * other's copy of one record. There is a single consumer, it takes positions
+ * of complete records under the lock and copies a batch out without it, space
+ * is released only after the copy. Producers never wait for the consumer
+ * unless they choose to wait for space with a timeout.
+ */
+public class ByteRing {
+	private static final long PRODUCER_PARK_NANOS = 50000;
+
+	// view of producers, only touched holding the lock, and of the consumer
+	private final ByteBuffer data, view;
+	private final int capacity;
+	// positions grow forever, index is position modulo capacity
+	private long head, tail;
+	private int count;
+	// length prefix, followed by offer time when measuring residence
+	private final byte[] header = new byte[12];
+	private int prefix = 4;
+	private LatencyHistogram residence;
+
+	public ByteRing(int capacity) {
+		this(capacity, false);
+	}
+
+	/**
+	 * @param direct allocate the buffer outside of the heap
+	 */
+	public ByteRing(int capacity, boolean direct) {
+		if(capacity < 64)
+			throw new IllegalArgumentException("capacity too small: " + capacity);
+		this.capacity = capacity;
+		this.data = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+		this.view = data.duplicate();
+	}
+
+	/**
+	 * @return false if there is not enough space for the record now
+	 */
+	public synchronized boolean offer(byte[] b, int off, int len) {
+		if(len + prefix > capacity - (tail - head))
+			return false;
+		header[0] = (byte)(len >>> 24);
+		header[1] = (byte)(len >>> 16);
+		header[2] = (byte)(len >>> 8);
+		header[3] = (byte)len;
+		if(residence != null) {
+			long now = System.nanoTime();
+			for(int i = 0; i < 8; i++)
+				header[4 + i] = (byte)(now >>> (56 - 8 * i));
+		}
+		put(header, 0, prefix);
+		put(b, off, len);
+		count++;
+		return true;
+	}
+
+	/**
+	 * Waits for space up to the timeout, negative timeout waits for good
+	 * @return false if there was no space in time or the record can never fit
+	 */
+	public boolean offer(byte[] b, int off, int len, long timeout, TimeUnit unit) throws InterruptedException {
+		if(offer(b, off, len))
+			return true;
+		if(len + prefix > capacity)
+			return false;
+		long deadline = timeout < 0 ? Long.MAX_VALUE : System.nanoTime() + unit.toNanos(timeout);
+		while(true) {
+			if(Thread.interrupted())
+				throw new InterruptedException();
+			long remaining = deadline - System.nanoTime();
+			if(remaining <= 0)
+				return false;
+			LockSupport.parkNanos(this, Math.min(remaining, PRODUCER_PARK_NANOS));
+			if(offer(b, off, len))
+				return true;
+		}
+	}
+
+	private void put(byte[] b, int off, int len) {
+		int index = (int)(tail % capacity);
+		int first = Math.min(len, capacity - index);
+		data.clear().position(index);
+		data.put(b, off, first);
+		if(first < len) {
+			data.clear();
+			data.put(b, off + first, len - first);
+		}
+		tail += len;
+	}
+
+	/**
+	 * Moves records to the buffer, concatenated without their prefixes,
+	 * stops before exceeding max bytes unless it's the first record.
+	 * Called by the single consumer only.
+	 * @return number of records moved
+	 */
+	public int drainTo(EventBuffer out, int maxRecords, int maxBytes) {
+		long position;
+		int available, prefix;
+		LatencyHistogram residence;
+		synchronized(this) {
+			position = head;
+			available = count;
+			prefix = this.prefix;
+			residence = this.residence;
+		}
+
+		// records up to here are complete, producers don't write over them until head moves
+		int n = 0;
+		int size = 0;
+		long now = residence != null ? System.nanoTime() : 0;
+		while(n < maxRecords && n < available) {
+			int len = (int)valueAt(position, 4);
+			if(n > 0 && size + len > maxBytes)
+				break;
+			if(residence != null)
+				residence.record(now - valueAt(position + 4, 8));
+			long start = position + prefix;
+			int index = (int)(start % capacity);
+			int first = Math.min(len, capacity - index);
+			view.clear().position(index);
+			view.limit(index + first);
+			out.writeBytes(view);
+			if(first < len) {
+				view.clear().limit(len - first);
+				out.writeBytes(view);
+			}
+			// absolute reads check the limit
+			view.clear();
+			position = start + len;
+			size += len;
+			n++;
+		}
+
+		if(n > 0) {
+			synchronized(this) {
+				head = position;
+				count -= n;
+			}
+		}
+		return n;
+	}
+
+	private long valueAt(long position, int bytes) {
+		long value = 0;
+		for(int i = 0; i < bytes; i++)
+			value = (value << 8) | (view.get((int)((position + i) % capacity)) & 0xFF);
+		return value;
+	}
+
+	public synchronized boolean isEmpty() {
+		return count == 0;
+	}
+
+	/**
+	 * @return number of records in the ring
+	 */
+	public synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * Records how long records wait in the ring, each one carries its offer
+	 * time then, to be set while the ring is empty
+	 */
+	public synchronized void measureResidence(LatencyHistogram histogram) {
+		if(count > 0)
+			throw new IllegalStateException("ring is not empty");
+		residence = histogram;
+		prefix = histogram != null ? 12 : 4;
+	}
+
+	/**
+	 * @return bytes taken by records, including their prefixes
+	 */
+	public synchronized long bytes() {
+		return tail - head;
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	public boolean isDirect() {
+		return data.isDirect();
+	}
+}
@@ -0,0 +1,165 @@
+package com.moonlit.logfaces.appenders.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Output stream over non blocking SocketChannel, the nio transport.
+ *
+ * Written bytes are collected in direct buffer segments and nothing goes to
+ * the socket until flush, which hands all segments to the kernel with a
+ * gathering write, usually a single syscall for the whole batch. Partial
+ * writes, when socket send buffer is full, are continued once the selector
+ * reports the channel writable again.
+ *
+ * Broken connections are detected with a non blocking read before the batch,
+ * the server never sends anything, so end of stream or an error means the
+ * peer has gone. This replaces the probe bytes of the blocking transport.
+ */
+public class ChannelOutputStream extends OutputStream {
+	public static final int SEGMENT_SIZE = 64 * 1024;
+	public static final int MAX_SEGMENTS = 16;
+	public static final long WRITE_TIMEOUT = 30000;
+
+	private final SocketChannel channel;
+	private final Selector selector;
+	private final ByteBuffer[] segments = new ByteBuffer[MAX_SEGMENTS];
+	private final ByteBuffer scratch = ByteBuffer.allocate(256);
+	private int current;
+	private long writeCount, bytesWritten;
+
+	protected ChannelOutputStream(SocketChannel channel) throws IOException {
+		this.channel = channel;
+		this.selector = Selector.open();
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_WRITE);
+		segments[0] = ByteBuffer.allocateDirect(SEGMENT_SIZE);
+	}
+
+	/**
+	 * Connects to the address, send buffer size is left to the system when not positive
+	 */
+	public static ChannelOutputStream open(InetAddress address, int port, int sendBufferSize, int connectTimeout) throws IOException {
+		SocketChannel channel = SocketChannel.open();
+		try {
+			Socket socket = channel.socket();
+			socket.setKeepAlive(true);
+			socket.setTcpNoDelay(true);
+			if(sendBufferSize > 0)
+				socket.setSendBufferSize(sendBufferSize);
+			socket.connect(new InetSocketAddress(address, port), connectTimeout);
+			return new ChannelOutputStream(channel);
+		}
+		catch(IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		segment().put((byte)b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while(len > 0) {
+			ByteBuffer segment = segment();
+			int n = Math.min(len, segment.remaining());
+			segment.put(b, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * @return segment with some space left, writes everything out when all segments are full
+	 */
+	private ByteBuffer segment() throws IOException {
+		ByteBuffer segment = segments[current];
+		if(segment.hasRemaining())
+			return segment;
+		if(current + 1 == MAX_SEGMENTS) {
+			writeOut();
+			return segments[0];
+		}
+		current++;
+		if(segments[current] == null)
+			segments[current] = ByteBuffer.allocateDirect(SEGMENT_SIZE);
+		return segments[current];
+	}
+
+	@Override
+	public void flush() throws IOException {
+		writeOut();
+	}
+
+	private void writeOut() throws IOException {
+		int count = current + 1;
+		long remaining = 0;
+		for(int i = 0; i < count; i++) {
+			segments[i].flip();
+			remaining += segments[i].remaining();
+		}
+
+		int first = 0;
+		while(remaining > 0) {
+			long n = channel.write(segments, first, count - first);
+			writeCount++;
+			if(n == 0) {
+				awaitWritable();
+				continue;
+			}
+			remaining -= n;
+			bytesWritten += n;
+			while(first < count && !segments[first].hasRemaining())
+				first++;
+		}
+
+		for(int i = 0; i < count; i++)
+			segments[i].clear();
+		current = 0;
+	}
+
+	private void awaitWritable() throws IOException {
+		if(selector.select(WRITE_TIMEOUT) == 0)
+			throw new SocketTimeoutException("socket not writable for " + WRITE_TIMEOUT + " ms");
+		selector.selectedKeys().clear();
+	}
+
+	/**
+	 * @throws IOException if the peer closed or reset the connection
+	 */
+	public void checkAlive() throws IOException {
+		scratch.clear();
+		if(channel.read(scratch) < 0)
+			throw new EOFException("connection closed by peer");
+	}
+
+	public long getWriteCount() {
+		return writeCount;
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			selector.close();
+		}
+		finally {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package com.moonlit.logfaces.appenders.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Spots repeats of the same event (message, level and logger) within a time
+ * window. Appenders hash the fields themselves, the coalescer only sees the
+ * hash and the event time. The first event of a window is sent, repeats
+ * within the window are counted and swallowed. The count goes out with the
+ * first repeat after the window or, if nothing comes, with a copy of the
+ * first repeat once the dispatcher sweeps the slots after the window closed.
+ *
+ * Hashes live in a fixed table indexed by the hash, a different event landing
+ * in the same slot takes it over and the count kept there goes out right away.
+ * Slots are updated without locks, under contention a repeat may slip through
+ * or be left out of the count, never an event which isn't a repeat.
+ */
+public class Coalescer<E> {
+	public static final int DEFAULT_SLOTS = 4096;
+	public static final long SEND = -1;
+	public static final long SWALLOW = -2;
+	public static final long SEED = 0xcbf29ce484222325L;
+	static final long SWEEP_INTERVAL = 250;
+
+	private final long window;
+	private final int mask;
+	private final Listener<E> listener;
+	private final AtomicLongArray hashes;
+	private final AtomicLongArray starts;
+	private final AtomicLongArray counts;
+	// copy of the first repeat in each slot, sent with the count if nothing else takes it
+	private final AtomicReferenceArray<E> samples;
+	private volatile long nextSweep;
+
+	/**
+	 * Keeps copies of repeated events and sends them with their counts
+	 */
+	public interface Listener<E> {
+		/**
+		 * @return copy of the event which stays valid after append returns
+		 */
+		E retain(E event);
+
+		void onRepeats(E event, long repeats);
+	}
+
+	public Coalescer(long windowMillis, Listener<E> listener) {
+		this(windowMillis, DEFAULT_SLOTS, listener);
+	}
+
+	public Coalescer(long windowMillis, int slots, Listener<E> listener) {
+		int length = Integer.highestOneBit(Math.max(slots - 1, 1)) << 1;
+		this.window = windowMillis;
+		this.mask = length - 1;
+		this.listener = listener;
+		this.hashes = new AtomicLongArray(length);
+		this.starts = new AtomicLongArray(length);
+		this.counts = new AtomicLongArray(length);
+		this.samples = new AtomicReferenceArray<E>(length);
+	}
+
+	/**
+	 * @return SWALLOW for a repeat within the window, SEND for an event to be
+	 * sent as it is, or number of repeats swallowed before this event
+	 */
+	public long check(long hash, long timeMillis, E event) {
+		if(hash == 0)
+			hash = 1;
+		int i = (int)(hash ^ (hash >>> 32)) & mask;
+		long start = starts.get(i);
+		if(hashes.get(i) == hash) {
+			if(timeMillis - start < window) {
+				if(counts.incrementAndGet(i) == 1)
+					samples.set(i, listener.retain(event));
+				return SWALLOW;
+			}
+			if(!starts.compareAndSet(i, start, timeMillis))
+				return SEND;
+			samples.set(i, null);
+			long repeats = counts.getAndSet(i, 0);
+			return repeats > 0 ? repeats : SEND;
+		}
+		flush(i);
+		hashes.set(i, hash);
+		starts.set(i, timeMillis);
+		counts.set(i, 0);
+		return SEND;
+	}
+
+	/**
+	 * Sends counts of windows which closed without another repeat, does the
+	 * work at most every sweep interval
+	 */
+	public void sweep(long nowMillis) {
+		if(nowMillis - nextSweep < 0)
+			return;
+		nextSweep = nowMillis + Math.min(window, SWEEP_INTERVAL);
+		for(int i = 0; i <= mask; i++) {
+			if(counts.get(i) > 0 && nowMillis - starts.get(i) >= window)
+				flush(i);
+		}
+	}
+
+	/**
+	 * Sends count of the slot with its copy, unless a repeat is still being counted in
+	 */
+	private void flush(int i) {
+		E sample = samples.get(i);
+		if(sample == null || !samples.compareAndSet(i, sample, null))
+			return;
+		long repeats = counts.getAndSet(i, 0);
+		if(repeats > 0)
+			listener.onRepeats(sample, repeats);
+	}
+
+	/**
+	 * FNV-1a step over characters, to be finished with mix
+	 */
+	public static long hash(long h, CharSequence s) {
+		if(s == null)
+			return h * 0x100000001b3L;
+		for(int i = 0; i < s.length(); i++)
+			h = (h ^ s.charAt(i)) * 0x100000001b3L;
+		return h;
+	}
+
+	public static long hash(long h, long value) {
+		return (h ^ value) * 0x100000001b3L;
+	}
+
+	public static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
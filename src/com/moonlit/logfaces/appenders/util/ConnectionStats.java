@@ -0,0 +1,49 @@
+package com.moonlit.logfaces.appenders.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connects and outages of one connection, updated by whoever opens or
+ * loses it and read from any thread. The outage clock runs from the moment
+ * the connection is lost (or first wanted) until it's open again.
+ */
+public class ConnectionStats {
+	private final AtomicLong connects = new AtomicLong();
+	private final AtomicLong downSince = new AtomicLong();
+	private final AtomicLong downNanos = new AtomicLong();
+
+	public void connected() {
+		long since = downSince.getAndSet(0);
+		if(since != 0)
+			downNanos.addAndGet(System.nanoTime() - since);
+		connects.incrementAndGet();
+	}
+
+	/**
+	 * Starts the outage clock unless it's already running
+	 */
+	public void disconnected() {
+		long now = System.nanoTime();
+		downSince.compareAndSet(0, now != 0 ? now : 1);
+	}
+
+	/**
+	 * @return connections opened after the first one
+	 */
+	public long getReconnects() {
+		return Math.max(connects.get() - 1, 0);
+	}
+
+	/**
+	 * @return time spent without connection, including current outage
+	 */
+	public long getDisconnectedMillis() {
+		long since = downSince.get();
+		long nanos = downNanos.get() + (since != 0 ? System.nanoTime() - since : 0);
+		return nanos / 1000000;
+	}
+
+	public boolean isDown() {
+		return downSince.get() != 0;
+	}
+}
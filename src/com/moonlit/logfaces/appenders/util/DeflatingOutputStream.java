@@ -0,0 +1,104 @@
+package com.moonlit.logfaces.appenders.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the whole connection as one zlib stream. The deflater lives as
+ * long as the connection, so its dictionary carries over between events and
+ * repeating logger names, hosts and message patterns compress very well.
+ *
+ * Every flush ends with SYNC_FLUSH, the receiver can inflate everything
+ * written so far without waiting for more data. Transports flush once per
+ * batch, which keeps flush overhead (few bytes each) negligible.
+ *
+ * Not thread safe, used by the dispatcher owning the connection, a turn at a time.
+ */
+public class DeflatingOutputStream extends OutputStream {
+	private final OutputStream out;
+	private final Deflater deflater;
+	private final byte[] output = new byte[32 * 1024];
+	private final byte[] single = new byte[1];
+	private long bytesIn, bytesOut, flushCount, deflateNanos;
+
+	public DeflatingOutputStream(OutputStream out, int level) {
+		this.out = out;
+		this.deflater = new Deflater(level);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		single[0] = (byte)b;
+		write(single, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if(len == 0)
+			return;
+		deflater.setInput(b, off, len);
+		while(!deflater.needsInput())
+			deflate(Deflater.NO_FLUSH);
+		bytesIn += len;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		// output buffer filled up completely means there may be more pending
+		while(deflate(Deflater.SYNC_FLUSH) == output.length);
+		flushCount++;
+		out.flush();
+	}
+
+	private int deflate(int mode) throws IOException {
+		long started = System.nanoTime();
+		int n = deflater.deflate(output, 0, output.length, mode);
+		deflateNanos += System.nanoTime() - started;
+		if(n > 0) {
+			out.write(output, 0, n);
+			bytesOut += n;
+		}
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			// proper end of stream, receiver can tell it from broken connection
+			deflater.finish();
+			while(!deflater.finished())
+				deflate(Deflater.NO_FLUSH);
+			out.flush();
+		}
+		catch(IOException e) {
+			// closing broken connection, nothing to finish
+		}
+		finally {
+			deflater.end();
+			out.close();
+		}
+	}
+
+	public long getBytesIn() {
+		return bytesIn;
+	}
+
+	public long getBytesOut() {
+		return bytesOut;
+	}
+
+	/**
+	 * @return uncompressed to compressed size, 0 if nothing written yet
+	 */
+	public double getRatio() {
+		return bytesOut == 0 ? 0 : (double)bytesIn / bytesOut;
+	}
+
+	/**
+	 * @return time spent compressing per flush (batch), in microseconds
+	 */
+	public double getMicrosPerBatch() {
+		return flushCount == 0 ? 0 : deflateNanos / 1000.0 / flushCount;
+	}
+}
@@ -0,0 +1,111 @@
+package com.moonlit.logfaces.appenders.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dispatch loop of an appender or a pooled connection, run in turns on the
+ * dispatcher lane of SharedScheduler instead of a thread of its own. A turn
+ * does the work there is without waiting for more and tells when the next
+ * one is due, producers of work wake the loop up earlier. A loop waiting
+ * for events holds no thread, so a few pool threads serve any number of
+ * appenders.
+ *
+ * Turns of a loop never overlap. Wake up during a turn makes the next turn
+ * follow right after it, so no event is left waiting for the timeout. A loop
+ * with more work than a turn should take returns 0 and waits for its turn
+ * behind the other loops.
+ */
+public abstract class DispatchLoop implements Runnable {
+	private static final int NEW = 0, IDLE = 1, SCHEDULED = 2, RUNNING = 3, SIGNALED = 4, DONE = 5;
+
+	private final AtomicInteger state = new AtomicInteger(NEW);
+	private final CountDownLatch done = new CountDownLatch(1);
+	private final Runnable waker = new Runnable() {
+		public void run() {
+			wakeUp();
+		}
+	};
+	// wake up at the end of the wait, only turns touch it
+	private ScheduledFuture<?> timeout;
+
+	/**
+	 * Does the work there is, blocking on nothing but the socket
+	 * @return milliseconds until the next turn unless woken up before,
+	 * 0 for the next turn right away, negative once the loop is done
+	 */
+	protected abstract long turn();
+
+	public void start() {
+		if(!state.compareAndSet(NEW, SCHEDULED))
+			throw new IllegalStateException("dispatch loop already started");
+		SharedScheduler.dispatch(this);
+	}
+
+	/**
+	 * Makes the next turn due right away, any thread
+	 */
+	public void wakeUp() {
+		while(true) {
+			int s = state.get();
+			if(s == IDLE) {
+				if(state.compareAndSet(IDLE, SCHEDULED)) {
+					SharedScheduler.dispatch(this);
+					return;
+				}
+			}
+			else if(s != RUNNING || state.compareAndSet(RUNNING, SIGNALED)) {
+				return;
+			}
+		}
+	}
+
+	@Override
+	public final void run() {
+		state.set(RUNNING);
+		if(timeout != null) {
+			timeout.cancel(false);
+			timeout = null;
+		}
+		// turn which throws ends the loop, as it would end a thread
+		long wait = -1;
+		try {
+			wait = turn();
+		}
+		finally {
+			if(wait < 0) {
+				state.set(DONE);
+				done.countDown();
+			}
+		}
+		if(wait < 0)
+			return;
+		if(wait > 0)
+			timeout = SharedScheduler.wakeUp(waker, wait);
+		// woken up during the turn or more to do
+		if(wait == 0 || !state.compareAndSet(RUNNING, IDLE)) {
+			state.set(SCHEDULED);
+			SharedScheduler.dispatch(this);
+		}
+	}
+
+	/**
+	 * @return true once started until the last turn is over
+	 */
+	public boolean isAlive() {
+		int s = state.get();
+		return s != NEW && s != DONE;
+	}
+
+	/**
+	 * Waits for the last turn, like Thread.join 0 waits for as long as it takes
+	 */
+	public void join(long millis) throws InterruptedException {
+		if(millis == 0)
+			done.await();
+		else
+			done.await(millis, TimeUnit.MILLISECONDS);
+	}
+}
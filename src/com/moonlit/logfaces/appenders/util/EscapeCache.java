@@ -0,0 +1,60 @@
+package com.moonlit.logfaces.appenders.util;
+
+/**
+ * Bounded cache of escaped values which come from a small set,
+ * such as logger and thread names.
+ *
+ * The table is direct mapped by hash, a collision simply replaces the
+ * slot, so the cache never grows beyond its size and needs no locking.
+ * Entries are immutable and published through final fields, a racing
+ * reader either sees a complete entry or misses and escapes again.
+ */
+public final class EscapeCache {
+	public static final int DEFAULT_SIZE = 1024;
+	private static final int MAX_KEY_LENGTH = 256;
+
+	private final Escaper escaper;
+	private final Entry[] table;
+	private final int mask;
+
+	public EscapeCache(Escaper escaper) {
+		this(escaper, DEFAULT_SIZE);
+	}
+
+	public EscapeCache(Escaper escaper, int size) {
+		int capacity = Integer.highestOneBit(Math.max(size - 1, 1)) << 1;
+		this.escaper = escaper;
+		this.table = new Entry[capacity];
+		this.mask = capacity - 1;
+	}
+
+	public String escape(String key) {
+		if(key == null)
+			return null;
+		int h = key.hashCode();
+		int index = (h ^ (h >>> 16)) & mask;
+		Entry entry = table[index];
+		if(entry != null && (entry.key == key || entry.key.equals(key)))
+			return entry.value;
+
+		String value = escaper.escape(key);
+		if(key.length() <= MAX_KEY_LENGTH)
+			table[index] = new Entry(key, value);
+		return value;
+	}
+
+	public void append(StringBuilder buf, String key) {
+		if(key != null)
+			buf.append(escape(key));
+	}
+
+	private static final class Entry {
+		final String key;
+		final String value;
+
+		Entry(String key, String value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+}
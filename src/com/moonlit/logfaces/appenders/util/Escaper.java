@@ -0,0 +1,138 @@
+package com.moonlit.logfaces.appenders.util;
+
+/**
+ * Single pass, table driven escaping of event fields.
+ * Every character is looked up once, clean input (the usual case) is
+ * detected without copying and appended or returned as is.
+ *
+ * Control characters other than CR, LF and TAB, as well as U+FFFE and U+FFFF,
+ * are dropped by all escapers except TAGS, they are not allowed in XML and
+ * the server would reject the event.
+ */
+public final class Escaper {
+	private static final byte COPY = 0;
+	private static final byte DROP = 1;
+	private static final byte REPLACE = 2;
+	private static final byte CDATA_END = 3;
+	private static final String CDATA_EMBEDDED_END = ">]]&gt;<![CDATA[";
+
+	/** drops illegal characters only */
+	public static final Escaper CONTROL = new Escaper(true);
+	/** text inside CDATA section, also splits embedded ]]> */
+	public static final Escaper CDATA = new Escaper(true).cdata();
+	/** XML attribute values */
+	public static final Escaper XML_ATTRIBUTE = new Escaper(true)
+			.replace('<', "&lt;").replace('>', "&gt;").replace('&', "&amp;").replace('"', "&quot;").replace('\'', "&apos;");
+	/** JSON string values */
+	public static final Escaper JSON = new Escaper(true).replace('\\', "\\\\").replace('"', "\\\"");
+	/** HTML tags, as in original log4j Transform */
+	public static final Escaper TAGS = new Escaper(false)
+			.replace('<', "&lt;").replace('>', "&gt;").replace('&', "&amp;").replace('"', "&quot;");
+
+	private final byte[] actions = new byte[128];
+	private final String[] replacements = new String[128];
+	private final boolean dropNonCharacters;
+
+	private Escaper(boolean dropControls) {
+		this.dropNonCharacters = dropControls;
+		if(dropControls) {
+			for(int c = 0; c < 0x20; c++) {
+				if(c != '\r' && c != '\n' && c != '\t')
+					actions[c] = DROP;
+			}
+			actions[0x7f] = DROP;
+		}
+	}
+
+	private Escaper replace(char c, String replacement) {
+		actions[c] = REPLACE;
+		replacements[c] = replacement;
+		return this;
+	}
+
+	private Escaper cdata() {
+		actions['>'] = CDATA_END;
+		return this;
+	}
+
+	private boolean isSafe(CharSequence s, int i, char c) {
+		if(c < 128) {
+			byte action = actions[c];
+			if(action == CDATA_END)
+				return i < 2 || s.charAt(i - 1) != ']' || s.charAt(i - 2) != ']';
+			return action == COPY;
+		}
+		return !dropNonCharacters || c < '\ufffe';
+	}
+
+	/**
+	 * @return index of the first character which needs escaping, -1 if input is clean
+	 */
+	public int indexOfUnsafe(CharSequence s) {
+		int len = s.length();
+		for(int i = 0; i < len; i++) {
+			if(!isSafe(s, i, s.charAt(i)))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return escaped input, the same instance if nothing needs escaping
+	 */
+	public String escape(String s) {
+		if(s == null || s.isEmpty())
+			return s;
+		int first = indexOfUnsafe(s);
+		if(first < 0)
+			return s;
+		StringBuilder buf = new StringBuilder(s.length() + 16);
+		appendFrom(buf, s, first);
+		return buf.toString();
+	}
+
+	/**
+	 * Appends escaped input directly to the buffer, nulls are ignored.
+	 */
+	public void append(StringBuilder buf, CharSequence s) {
+		if(s == null)
+			return;
+		int first = indexOfUnsafe(s);
+		if(first < 0)
+			buf.append(s);
+		else
+			appendFrom(buf, s, first);
+	}
+
+	private void appendFrom(StringBuilder buf, CharSequence s, int first) {
+		int start = buf.length();
+		buf.append(s, 0, first);
+		int len = s.length();
+		for(int i = first; i < len; i++) {
+			char c = s.charAt(i);
+			if(c >= 128) {
+				if(!dropNonCharacters || c < '\ufffe')
+					buf.append(c);
+				continue;
+			}
+
+			switch(actions[c]) {
+			case COPY:
+				buf.append(c);
+				break;
+			case REPLACE:
+				buf.append(replacements[c]);
+				break;
+			case CDATA_END:
+				int end = buf.length();
+				if(end - start >= 2 && buf.charAt(end - 1) == ']' && buf.charAt(end - 2) == ']')
+					buf.append(CDATA_EMBEDDED_END);
+				else
+					buf.append(c);
+				break;
+			default:
+				break;
+			}
+		}
+	}
+}
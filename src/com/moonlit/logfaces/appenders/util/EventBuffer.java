@@ -0,0 +1,217 @@
+package com.moonlit.logfaces.appenders.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Growable heap byte buffer which encoded events are written into before
+ * they go out to the socket. One instance is owned by each transport and
+ * reused for every event, it grows to fit large events (stack traces) and
+ * shrinks back to its initial size on reset.
+ */
+public class EventBuffer {
+	public static final int DEFAULT_CAPACITY = 8 * 1024;
+	public static final int MAX_RETAINED_CAPACITY = 256 * 1024;
+
+	protected final int initialCapacity;
+	protected ByteBuffer buffer;
+	private CharsetEncoder encoder;
+	// fingerprints of stack traces already sent over the connection
+	// this buffer belongs to, null when trace references are disabled
+	private FingerprintSet sentTraces;
+
+	public EventBuffer() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public EventBuffer(int capacity) {
+		this.initialCapacity = capacity;
+		this.buffer = ByteBuffer.allocate(capacity);
+	}
+
+	public ByteBuffer getByteBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Called by encoders when the buffer is full, instead of
+	 * draining it somewhere we grow it keeping the content.
+	 */
+	public ByteBuffer drain(ByteBuffer buf) {
+		return ensureCapacity(buffer.capacity() + 1);
+	}
+
+	public void writeBytes(ByteBuffer data) {
+		ensureCapacity(buffer.position() + data.remaining());
+		buffer.put(data);
+	}
+
+	public void writeBytes(byte[] data, int offset, int length) {
+		ensureCapacity(buffer.position() + length);
+		buffer.put(data, offset, length);
+	}
+
+	public void writeBytes(byte[] data) {
+		writeBytes(data, 0, data.length);
+	}
+
+	public void writeByte(int b) {
+		ensureCapacity(buffer.position() + 1);
+		buffer.put((byte)b);
+	}
+
+	public void writeInt(int value) {
+		ensureCapacity(buffer.position() + 4);
+		buffer.putInt(value);
+	}
+
+	/**
+	 * Overwrites previously written 4 bytes, used to fill in length prefixes
+	 */
+	public void putInt(int position, int value) {
+		buffer.putInt(position, value);
+	}
+
+	/**
+	 * Writes unsigned LEB128 varint, 7 bits per byte
+	 */
+	public void writeVarint(long value) {
+		ensureCapacity(buffer.position() + 10);
+		while((value & ~0x7fL) != 0) {
+			buffer.put((byte)((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte)value);
+	}
+
+	/**
+	 * Encodes characters into the buffer, UTF-8 is done inline
+	 * without any intermediate objects.
+	 */
+	public void writeChars(CharSequence s, Charset charset) {
+		if(StandardCharsets.UTF_8.equals(charset))
+			writeUtf8(s);
+		else
+			writeEncoded(s, charset);
+	}
+
+	private void writeUtf8(CharSequence s) {
+		int len = s.length();
+		ensureCapacity(buffer.position() + len * 3);
+		byte[] array = buffer.array();
+		int pos = buffer.arrayOffset() + buffer.position();
+		for(int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			if(c < 0x80) {
+				array[pos++] = (byte)c;
+			}
+			else if(c < 0x800) {
+				array[pos++] = (byte)(0xc0 | (c >> 6));
+				array[pos++] = (byte)(0x80 | (c & 0x3f));
+			}
+			else if(Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				array[pos++] = (byte)(0xf0 | (cp >> 18));
+				array[pos++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+				array[pos++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+				array[pos++] = (byte)(0x80 | (cp & 0x3f));
+			}
+			else if(Character.isSurrogate(c)) {
+				array[pos++] = '?';
+			}
+			else {
+				array[pos++] = (byte)(0xe0 | (c >> 12));
+				array[pos++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+				array[pos++] = (byte)(0x80 | (c & 0x3f));
+			}
+		}
+		buffer.position(pos - buffer.arrayOffset());
+	}
+
+	private void writeEncoded(CharSequence s, Charset charset) {
+		if(encoder == null || !encoder.charset().equals(charset)) {
+			encoder = charset.newEncoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+		encoder.reset();
+		CharBuffer in = CharBuffer.wrap(s);
+		while(encoder.encode(in, buffer, true).isOverflow())
+			ensureCapacity(buffer.capacity() + in.remaining() * 2 + 16);
+		while(encoder.flush(buffer).isOverflow())
+			ensureCapacity(buffer.capacity() + 16);
+	}
+
+	public byte[] array() {
+		return buffer.array();
+	}
+
+	public int size() {
+		return buffer.position();
+	}
+
+	public boolean isEmpty() {
+		return buffer.position() == 0;
+	}
+
+	/**
+	 * Discards everything written after the given size, such as partially encoded event
+	 */
+	public void truncate(int size) {
+		buffer.position(size);
+	}
+
+	public void writeTo(OutputStream os) throws IOException {
+		os.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+	}
+
+	public void reset() {
+		if(buffer.capacity() > MAX_RETAINED_CAPACITY)
+			buffer = ByteBuffer.allocate(initialCapacity);
+		else
+			buffer.clear();
+	}
+
+	public void setTraceReferences(boolean enabled) {
+		sentTraces = enabled ? new FingerprintSet(1024) : null;
+	}
+
+	public boolean isTraceReferences() {
+		return sentTraces != null;
+	}
+
+	/**
+	 * Records the trace as sent over current connection
+	 * @return true if it was sent before and a reference can be sent instead
+	 */
+	public boolean markTraceSent(long fingerprint) {
+		return sentTraces != null && !sentTraces.add(fingerprint);
+	}
+
+	/**
+	 * Must be called whenever connection is lost or replaced
+	 */
+	public void clearTraces() {
+		if(sentTraces != null)
+			sentTraces.clear();
+	}
+
+	protected ByteBuffer ensureCapacity(int required) {
+		if(required <= buffer.capacity())
+			return buffer;
+		int capacity = buffer.capacity() * 2;
+		while(capacity < required)
+			capacity *= 2;
+		ByteBuffer grown = ByteBuffer.allocate(capacity);
+		buffer.flip();
+		grown.put(buffer);
+		buffer = grown;
+		return buffer;
+	}
+}
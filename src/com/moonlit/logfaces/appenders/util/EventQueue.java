@@ -0,0 +1,31 @@
+package com.moonlit.logfaces.appenders.util;
+
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Queue between application threads and appender dispatcher, the only
+ * consumer. Besides events the dispatcher may have other work to look at,
+ * producers of that work wake it up.
+ */
+public interface EventQueue<E> extends BlockingQueue<E> {
+	/**
+	 * Makes the consumer waiting in poll return null right away, or the next
+	 * time it would wait, so it can look at other sources of work.
+	 * Wakes the consumer loop up as well.
+	 */
+	void wakeUp();
+
+	/**
+	 * Loop taking the elements out in turns, woken up by every offer
+	 * instead of waiting in poll, to be set before the queue is used
+	 */
+	void setConsumer(DispatchLoop loop);
+
+	int capacity();
+
+	/**
+	 * Records how long each element waits, from offer until it's taken out,
+	 * to be set before the queue is used
+	 */
+	void measureResidence(LatencyHistogram histogram);
+}
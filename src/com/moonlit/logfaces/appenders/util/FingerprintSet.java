@@ -0,0 +1,56 @@
+package com.moonlit.logfaces.appenders.util;
+
+import java.util.Arrays;
+
+/**
+ * Small bounded set of fingerprints, open addressing over a long array.
+ * When it fills up it is simply cleared, forgetting a fingerprint only
+ * means that full content is sent once more. Not thread safe.
+ */
+public final class FingerprintSet {
+	private final long[] slots;
+	private final int mask;
+	private final int limit;
+	private int size;
+
+	public FingerprintSet(int capacity) {
+		int length = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 2;
+		this.slots = new long[length];
+		this.mask = length - 1;
+		this.limit = length / 2;
+	}
+
+	/**
+	 * @return true if fingerprint was added, false if it was already there
+	 */
+	public boolean add(long fingerprint) {
+		if(fingerprint == 0)
+			fingerprint = 1;
+		int i = slot(fingerprint);
+		while(slots[i] != 0) {
+			if(slots[i] == fingerprint)
+				return false;
+			i = (i + 1) & mask;
+		}
+		if(size >= limit) {
+			clear();
+			i = slot(fingerprint);
+		}
+		slots[i] = fingerprint;
+		size++;
+		return true;
+	}
+
+	private int slot(long fingerprint) {
+		return (int)(fingerprint ^ (fingerprint >>> 32)) & mask;
+	}
+
+	public void clear() {
+		Arrays.fill(slots, 0);
+		size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+}
@@ -0,0 +1,122 @@
+package com.moonlit.logfaces.appenders.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Write ahead journal, a segment log which survives the process. Every event
+ * is appended before it's sent and consumed only once it was written to the
+ * socket, whatever is left in the journal when the process dies is sent on
+ * the next start.
+ *
+ * Consumed position (segment sequence and offset) is kept in a small mapped
+ * checkpoint file next to the segments. Appending doesn't wait for the disk,
+ * a task in the sync lane of SharedScheduler forces segments and checkpoint out every sync interval
+ * if anything changed, so one fsync covers all events appended meanwhile.
+ * Process crash loses nothing that was appended, an operating system crash
+ * at most the last interval. Events may be sent twice after a crash, those
+ * written to the socket after the last checkpoint sync.
+ */
+public class Journal extends SegmentLog {
+	public static final long DEFAULT_SYNC_INTERVAL = 100;
+
+	private final RandomAccessFile checkpointFile;
+	private final MappedByteBuffer checkpoint;
+	private final long syncInterval;
+	// held by periodic sync, close waits for the one in progress
+	private final Object syncLock = new Object();
+	private final Runnable syncer = new Runnable() {
+		public void run() {
+			periodicSync();
+		}
+	};
+	private ScheduledFuture<?> nextSync;
+	private volatile boolean changed, closed;
+
+	public Journal(File dir, String prefix, long maxBytes, int segmentSize, long syncInterval) throws IOException {
+		super(dir, prefix, maxBytes, segmentSize, true);
+		this.syncInterval = Math.max(syncInterval, 1);
+		this.checkpointFile = new RandomAccessFile(new File(dir, prefix + ".checkpoint"), "rw");
+		this.checkpoint = checkpointFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 12);
+		restore();
+
+		synchronized(syncLock) {
+			nextSync = SharedScheduler.scheduleSync(syncer, this.syncInterval);
+		}
+	}
+
+	/**
+	 * Skips everything consumed before, as recorded in the checkpoint
+	 */
+	private synchronized void restore() {
+		long sequence = checkpoint.getLong(0);
+		int position = checkpoint.getInt(8);
+		while(!segments.isEmpty() && segments.getFirst().sequence < sequence)
+			segments.removeFirst().delete();
+		if(!segments.isEmpty() && segments.getFirst().sequence == sequence)
+			readPosition = position;
+		recount();
+		mark();
+	}
+
+	@Override
+	public synchronized boolean append(byte[] data, int offset, int length) throws IOException {
+		if(closed)
+			return false;
+		boolean appended = super.append(data, offset, length);
+		changed |= appended;
+		return appended;
+	}
+
+	@Override
+	public synchronized void advance(int count) {
+		super.advance(count);
+		mark();
+	}
+
+	private void mark() {
+		Segment first = segments.peekFirst();
+		checkpoint.putLong(0, first != null ? first.sequence : nextSequence);
+		checkpoint.putInt(8, readPosition);
+		changed = true;
+	}
+
+	/**
+	 * Group commit, one fsync for everything appended or consumed since the last one
+	 */
+	public void sync() {
+		changed = false;
+		force();
+		checkpoint.force();
+	}
+
+	private void periodicSync() {
+		synchronized(syncLock) {
+			if(closed)
+				return;
+			if(changed)
+				sync();
+			nextSync = SharedScheduler.scheduleSync(syncer, syncInterval);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized(syncLock) {
+			closed = true;
+			if(nextSync != null)
+				nextSync.cancel(false);
+		}
+		sync();
+		try {
+			super.close();
+		}
+		finally {
+			checkpointFile.close();
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package com.moonlit.logfaces.appenders.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in nanoseconds with fixed memory, buckets are
+ * laid out like in HdrHistogram: values below 64ns have a bucket each,
+ * above that every power of two is split into 32 buckets, so a value is
+ * known within about 3%. Anything beyond 2^42ns (over an hour) lands
+ * in the last bucket.
+ *
+ * Recording is an index computation and an atomic increment, it doesn't
+ * lock or allocate and any thread may do it. Percentiles are computed by
+ * readers from the counts, over the whole history or since a snapshot.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int LINEAR = SUB_BUCKETS * 2;
+	private static final int MAX_SHIFT = 36;
+	public static final int BUCKETS = LINEAR + MAX_SHIFT * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long nanos) {
+		record(nanos, 1);
+	}
+
+	/**
+	 * Records the same latency for number of events, like the average of a batch
+	 */
+	public void record(long nanos, long events) {
+		if(events <= 0)
+			return;
+		if(nanos < 0)
+			nanos = 0;
+		counts.getAndAdd(indexOf(nanos), events);
+		long m;
+		while(nanos > (m = max.get()) && !max.compareAndSet(m, nanos));
+	}
+
+	static int indexOf(long value) {
+		if(value < LINEAR)
+			return (int)value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		if(shift > MAX_SHIFT)
+			return BUCKETS - 1;
+		return LINEAR + (shift - 1) * SUB_BUCKETS + (int)(value >>> shift) - SUB_BUCKETS;
+	}
+
+	/**
+	 * @return highest value falling into the bucket
+	 */
+	static long valueOf(int index) {
+		if(index < LINEAR)
+			return index;
+		int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+		long sub = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	}
+
+	/**
+	 * @return copy of the counts, to compute percentiles of what comes after it
+	 */
+	public long[] snapshot() {
+		long[] copy = new long[BUCKETS];
+		for(int i = 0; i < BUCKETS; i++)
+			copy[i] = counts.get(i);
+		return copy;
+	}
+
+	public long getCount() {
+		return count(snapshot());
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @param percentile like 99.9
+	 * @return latency in nanoseconds at or below which the percentile of events fall
+	 */
+	public long getValueAtPercentile(double percentile) {
+		return valueAtPercentile(snapshot(), percentile);
+	}
+
+	/**
+	 * @return counts recorded after the earlier snapshot, the snapshot is updated to current counts
+	 */
+	public long[] since(long[] previous) {
+		long[] delta = new long[BUCKETS];
+		for(int i = 0; i < BUCKETS; i++) {
+			long now = counts.get(i);
+			delta[i] = now - previous[i];
+			previous[i] = now;
+		}
+		return delta;
+	}
+
+	public static long count(long[] counts) {
+		long total = 0;
+		for(long c : counts)
+			total += c;
+		return total;
+	}
+
+	public static long valueAtPercentile(long[] counts, double percentile) {
+		long total = count(counts);
+		if(total == 0)
+			return 0;
+		long rank = Math.max((long)Math.ceil(total * Math.min(percentile, 100) / 100), 1);
+		long seen = 0;
+		for(int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if(seen >= rank)
+				return valueOf(i);
+		}
+		return valueOf(counts.length - 1);
+	}
+
+	/**
+	 * @return count and the usual percentiles of the counts, for logging
+	 */
+	public static String summary(long[] counts) {
+		long total = count(counts);
+		if(total == 0)
+			return "no events";
+		int top = 0;
+		for(int i = 0; i < counts.length; i++) {
+			if(counts[i] > 0)
+				top = i;
+		}
+		return String.format("%d events, p50 %s, p90 %s, p99 %s, p99.9 %s, max %s", total,
+				format(valueAtPercentile(counts, 50)), format(valueAtPercentile(counts, 90)),
+				format(valueAtPercentile(counts, 99)), format(valueAtPercentile(counts, 99.9)), format(valueOf(top)));
+	}
+
+	public static String format(long nanos) {
+		if(nanos < 1000)
+			return nanos + "ns";
+		if(nanos < 1000000)
+			return String.format("%.1fus", nanos / 1e3);
+		if(nanos < 1000000000)
+			return String.format("%.1fms", nanos / 1e6);
+		return String.format("%.2fs", nanos / 1e9);
+	}
+
+	@Override
+	public String toString() {
+		return summary(snapshot());
+	}
+}
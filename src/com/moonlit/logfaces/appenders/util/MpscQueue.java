@@ -0,0 +1,254 @@
+package com.moonlit.logfaces.appenders.util;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock free queue for many producers and a single consumer,
+ * the hand-off between application threads and appender dispatcher.
+ *
+ * Slots of the pre-allocated ring carry sequence numbers (D. Vyukov's bounded
+ * queue), producers claim a slot with a single CAS on the tail and publish the
+ * element by advancing the slot sequence. The consumer owns the head and needs
+ * no atomic operations at all, it drains in batches with drainTo.
+ *
+ * Only the consumer ever blocks on an empty queue, it parks and producers wake
+ * it up, or producers wake up the consumer loop which doesn't wait at all. Producers waiting for space (offer with timeout) back off by parking
+ * briefly, the consumer doesn't have to signal them. All methods taking
+ * elements out (poll, take, drainTo) must be called from one thread at a time.
+ */
+public class MpscQueue<E> extends AbstractQueue<E> implements EventQueue<E> {
+	private static final long PRODUCER_PARK_NANOS = 50000;
+
+	private final int capacity;
+	private final Object[] elements;
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong head = new AtomicLong();
+	private volatile Thread consumer;
+	private DispatchLoop loop;
+	private volatile boolean woken;
+	// offer times of elements by slot, only when measuring residence
+	private long[] stamps;
+	private LatencyHistogram residence;
+
+	public MpscQueue(int capacity) {
+		if(capacity <= 0)
+			throw new IllegalArgumentException("capacity must be positive");
+		// published slot of a single slot ring would look free to the next lap
+		capacity = Math.max(capacity, 2);
+		this.capacity = capacity;
+		this.elements = new Object[capacity];
+		this.sequences = new AtomicLongArray(capacity);
+		for(int i = 0; i < capacity; i++)
+			sequences.set(i, i);
+	}
+
+	@Override
+	public boolean offer(E e) {
+		if(e == null)
+			throw new NullPointerException();
+		long t;
+		int index;
+		while(true) {
+			t = tail.get();
+			index = (int)(t % capacity);
+			long diff = sequences.get(index) - t;
+			if(diff == 0) {
+				if(tail.compareAndSet(t, t + 1))
+					break;
+			}
+			else if(diff < 0) {
+				// slot still holds element of the previous lap
+				return false;
+			}
+		}
+		if(stamps != null)
+			stamps[index] = System.nanoTime();
+		elements[index] = e;
+		// full fence, must not be reordered with the read of consumer below
+		sequences.set(index, t + 1);
+
+		Thread waiting = consumer;
+		if(waiting != null)
+			LockSupport.unpark(waiting);
+		if(loop != null)
+			loop.wakeUp();
+		return true;
+	}
+
+	@Override
+	public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+		if(offer(e))
+			return true;
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while(true) {
+			if(Thread.interrupted())
+				throw new InterruptedException();
+			long remaining = deadline - System.nanoTime();
+			if(remaining <= 0)
+				return false;
+			LockSupport.parkNanos(this, Math.min(remaining, PRODUCER_PARK_NANOS));
+			if(offer(e))
+				return true;
+		}
+	}
+
+	@Override
+	public void put(E e) throws InterruptedException {
+		while(!offer(e, Long.MAX_VALUE, TimeUnit.NANOSECONDS));
+	}
+
+	@Override
+	public E poll() {
+		return next(stamps != null ? System.nanoTime() : 0);
+	}
+
+	@SuppressWarnings("unchecked")
+	private E next(long now) {
+		long h = head.get();
+		int index = (int)(h % capacity);
+		if(sequences.get(index) != h + 1)
+			return null;
+		if(stamps != null)
+			residence.record(now - stamps[index]);
+		E e = (E)elements[index];
+		elements[index] = null;
+		sequences.lazySet(index, h + capacity);
+		head.lazySet(h + 1);
+		return e;
+	}
+
+	@Override
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		E e = poll();
+		if(e != null)
+			return e;
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		try {
+			consumer = Thread.currentThread();
+			while(true) {
+				// checked again after announcing ourselves, so a wake up isn't lost
+				if((e = poll()) != null)
+					return e;
+				if(woken) {
+					woken = false;
+					return null;
+				}
+				if(Thread.interrupted())
+					throw new InterruptedException();
+				long remaining = deadline - System.nanoTime();
+				if(remaining <= 0)
+					return null;
+				LockSupport.parkNanos(this, remaining);
+			}
+		}
+		finally {
+			consumer = null;
+		}
+	}
+
+	@Override
+	public void wakeUp() {
+		woken = true;
+		Thread waiting = consumer;
+		if(waiting != null)
+			LockSupport.unpark(waiting);
+		if(loop != null)
+			loop.wakeUp();
+	}
+
+	@Override
+	public void setConsumer(DispatchLoop loop) {
+		this.loop = loop;
+	}
+
+	@Override
+	public E take() throws InterruptedException {
+		E e;
+		while((e = poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) == null);
+		return e;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public E peek() {
+		long h = head.get();
+		int index = (int)(h % capacity);
+		return sequences.get(index) == h + 1 ? (E)elements[index] : null;
+	}
+
+	@Override
+	public int drainTo(Collection<? super E> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super E> c, int maxElements) {
+		int n = 0;
+		long now = stamps != null ? System.nanoTime() : 0;
+		E e;
+		while(n < maxElements && (e = next(now)) != null) {
+			c.add(e);
+			n++;
+		}
+		return n;
+	}
+
+	@Override
+	public int size() {
+		long size = tail.get() - head.get();
+		return size < 0 ? 0 : (int)Math.min(size, capacity);
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	@Override
+	public int remainingCapacity() {
+		return capacity - size();
+	}
+
+	@Override
+	public int capacity() {
+		return capacity;
+	}
+
+	@Override
+	public void measureResidence(LatencyHistogram histogram) {
+		residence = histogram;
+		stamps = histogram != null ? new long[capacity] : null;
+	}
+
+	/**
+	 * Weakly consistent snapshot of the queued elements, from any thread.
+	 * Elements offered or taken out meanwhile may or may not be seen, the
+	 * iterator doesn't remove anything.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public Iterator<E> iterator() {
+		List<E> snapshot = new ArrayList<E>();
+		long t = tail.get();
+		for(long i = head.get(); i < t; i++) {
+			int index = (int)(i % capacity);
+			if(sequences.get(index) != i + 1)
+				continue;
+			Object e = elements[index];
+			// slot wasn't taken out and reused for the next lap while reading it
+			if(e != null && sequences.get(index) == i + 1)
+				snapshot.add((E)e);
+		}
+		return Collections.unmodifiableList(snapshot).iterator();
+	}
+}
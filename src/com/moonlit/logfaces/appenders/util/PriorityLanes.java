@@ -0,0 +1,400 @@
+package com.moonlit.logfaces.appenders.util;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue with a lane per severity sharing one capacity, lane 0 is the
+ * most severe. The consumer always drains the most severe lane first, so
+ * errors and warnings don't wait behind a flood of debug events.
+ *
+ * When it's full, shedding decides what gives way:
+ *
+ * reject     - new event is rejected, like any bounded queue
+ * lowest     - oldest event of the least severe lane below the new one is
+ *              dropped, the new one is rejected if it's the least severe
+ * oldest     - oldest event of the same or lower severity is dropped
+ * block-high - events of the urgent lanes wait for space up to the timeout,
+ *              the others are rejected right away
+ *
+ * Dropped events are counted. Unlike MpscQueue it's guarded by a lock, the
+ * producers have to be able to take events out.
+ */
+public abstract class PriorityLanes<E> extends AbstractQueue<E> implements EventQueue<E> {
+	public enum Shedding {
+		REJECT, LOWEST, OLDEST, BLOCK_HIGH;
+
+		/**
+		 * @return policy by name, with or without "drop-" in front, reject if not recognized
+		 */
+		public static Shedding parse(String name) {
+			if(name == null)
+				return REJECT;
+			String s = name.trim().toLowerCase();
+			if(s.endsWith("lowest"))
+				return LOWEST;
+			if(s.endsWith("oldest"))
+				return OLDEST;
+			if(s.startsWith("block"))
+				return BLOCK_HIGH;
+			return REJECT;
+		}
+	}
+
+	private static final int INITIAL_LANE_SIZE = 16;
+
+	private final int capacity;
+	private final int urgent;
+	private final Shedding shedding;
+	private final Lane[] lanes;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private final AtomicLong shed = new AtomicLong();
+	private int count;
+	private long arrivals;
+	private boolean woken;
+	private LatencyHistogram residence;
+	private DispatchLoop loop;
+
+	/**
+	 * @param lanes number of severities
+	 * @param urgent number of most severe lanes which may wait with block-high
+	 */
+	public PriorityLanes(int capacity, int lanes, int urgent, Shedding shedding) {
+		if(capacity <= 0)
+			throw new IllegalArgumentException("capacity must be positive");
+		this.capacity = capacity;
+		this.urgent = urgent;
+		this.shedding = shedding;
+		this.lanes = new Lane[lanes];
+		for(int i = 0; i < lanes; i++)
+			this.lanes[i] = new Lane(Math.min(capacity, INITIAL_LANE_SIZE), capacity);
+	}
+
+	/**
+	 * @return lane of the element, 0 is the most severe
+	 */
+	protected abstract int laneOf(E e);
+
+	@Override
+	public boolean offer(E e) {
+		try {
+			return offer(e, 0, TimeUnit.NANOSECONDS);
+		}
+		catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	@Override
+	public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+		if(e == null)
+			throw new NullPointerException();
+		int lane = Math.max(0, Math.min(laneOf(e), lanes.length - 1));
+		long nanos = unit.toNanos(timeout);
+		if(shedding == Shedding.BLOCK_HIGH && lane >= urgent)
+			nanos = 0;
+		lock.lockInterruptibly();
+		try {
+			while(count == capacity) {
+				if(shed(lane))
+					break;
+				if(nanos <= 0)
+					return false;
+				nanos = notFull.awaitNanos(nanos);
+			}
+			lanes[lane].add(e, arrivals++, residence != null ? System.nanoTime() : 0);
+			count++;
+			notEmpty.signal();
+		}
+		finally {
+			lock.unlock();
+		}
+		if(loop != null)
+			loop.wakeUp();
+		return true;
+	}
+
+	/**
+	 * Makes room for an event of the lane, as the policy says
+	 * @return false if nothing could be dropped
+	 */
+	private boolean shed(int lane) {
+		int victim = -1;
+		if(shedding == Shedding.LOWEST) {
+			for(int i = lanes.length - 1; i > lane && victim < 0; i--) {
+				if(lanes[i].size > 0)
+					victim = i;
+			}
+		}
+		else if(shedding == Shedding.OLDEST) {
+			long oldest = Long.MAX_VALUE;
+			for(int i = lane; i < lanes.length; i++) {
+				if(lanes[i].size > 0 && lanes[i].headArrival() < oldest) {
+					oldest = lanes[i].headArrival();
+					victim = i;
+				}
+			}
+		}
+		if(victim < 0)
+			return false;
+		lanes[victim].remove();
+		count--;
+		shed.incrementAndGet();
+		return true;
+	}
+
+	@Override
+	public void put(E e) throws InterruptedException {
+		while(!offer(e, Long.MAX_VALUE, TimeUnit.NANOSECONDS));
+	}
+
+	@Override
+	public E poll() {
+		lock.lock();
+		try {
+			return count > 0 ? dequeue() : null;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while(count == 0) {
+				if(woken) {
+					woken = false;
+					return null;
+				}
+				if(nanos <= 0)
+					return null;
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return dequeue();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public E take() throws InterruptedException {
+		E e;
+		while((e = poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) == null);
+		return e;
+	}
+
+	@Override
+	public void wakeUp() {
+		lock.lock();
+		try {
+			woken = true;
+			notEmpty.signal();
+		}
+		finally {
+			lock.unlock();
+		}
+		if(loop != null)
+			loop.wakeUp();
+	}
+
+	@Override
+	public void setConsumer(DispatchLoop loop) {
+		this.loop = loop;
+	}
+
+	@SuppressWarnings("unchecked")
+	private E dequeue() {
+		for(Lane lane : lanes) {
+			if(lane.size > 0) {
+				count--;
+				notFull.signal();
+				if(residence != null)
+					residence.record(System.nanoTime() - lane.headStamp());
+				return (E)lane.remove();
+			}
+		}
+		return null;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public E peek() {
+		lock.lock();
+		try {
+			for(Lane lane : lanes) {
+				if(lane.size > 0)
+					return (E)lane.items[lane.head];
+			}
+			return null;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int drainTo(Collection<? super E> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Takes out the most severe events first, one lock for the whole batch
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public int drainTo(Collection<? super E> c, int maxElements) {
+		lock.lock();
+		try {
+			int n = 0;
+			long now = residence != null ? System.nanoTime() : 0;
+			for(Lane lane : lanes) {
+				while(n < maxElements && lane.size > 0) {
+					if(residence != null)
+						residence.record(now - lane.headStamp());
+					c.add((E)lane.remove());
+					n++;
+				}
+			}
+			count -= n;
+			if(n > 0)
+				notFull.signalAll();
+			return n;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		lock.lock();
+		try {
+			return count;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int remainingCapacity() {
+		return capacity - size();
+	}
+
+	@Override
+	public int capacity() {
+		return capacity;
+	}
+
+	@Override
+	public void measureResidence(LatencyHistogram histogram) {
+		residence = histogram;
+	}
+
+	/**
+	 * @return events dropped to make room for others
+	 */
+	public long getShed() {
+		return shed.get();
+	}
+
+	public Shedding getShedding() {
+		return shedding;
+	}
+
+	/**
+	 * Snapshot of the queued events taken under the lock, in the order they
+	 * would be taken out, most severe lane first. The iterator doesn't remove anything.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public Iterator<E> iterator() {
+		lock.lock();
+		try {
+			List<E> snapshot = new ArrayList<E>(count);
+			for(Lane lane : lanes) {
+				for(int i = 0; i < lane.size; i++)
+					snapshot.add((E)lane.items[(lane.head + i) % lane.items.length]);
+			}
+			return Collections.unmodifiableList(snapshot).iterator();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Ring of one severity, grows up to the shared capacity
+	 */
+	private static final class Lane {
+		final int limit;
+		Object[] items;
+		// order of arrival across lanes and offer time
+		long[] arrivals, stamps;
+		int head, size;
+
+		Lane(int length, int limit) {
+			this.limit = limit;
+			items = new Object[length];
+			arrivals = new long[length];
+			stamps = new long[length];
+		}
+
+		void add(Object item, long arrival, long stamp) {
+			if(size == items.length)
+				grow();
+			int index = (head + size) % items.length;
+			items[index] = item;
+			arrivals[index] = arrival;
+			stamps[index] = stamp;
+			size++;
+		}
+
+		Object remove() {
+			Object item = items[head];
+			items[head] = null;
+			head = (head + 1) % items.length;
+			size--;
+			return item;
+		}
+
+		long headArrival() {
+			return arrivals[head];
+		}
+
+		long headStamp() {
+			return stamps[head];
+		}
+
+		private void grow() {
+			int length = Math.min(Math.max(items.length * 2, 1), limit);
+			Object[] moreItems = new Object[length];
+			long[] moreArrivals = new long[length];
+			long[] moreStamps = new long[length];
+			for(int i = 0; i < size; i++) {
+				moreItems[i] = items[(head + i) % items.length];
+				moreArrivals[i] = arrivals[(head + i) % items.length];
+				moreStamps[i] = stamps[(head + i) % items.length];
+			}
+			items = moreItems;
+			arrivals = moreArrivals;
+			stamps = moreStamps;
+			head = 0;
+		}
+	}
+}
@@ -0,0 +1,276 @@
+package com.moonlit.logfaces.appenders.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rate limits of loggers, checked by appenders before an event is copied
+ * or queued. Limits are given as rules separated by semicolons or commas:
+ *
+ *   com.acme.retry=100/s; org.hibernate:DEBUG=10/s; *=5000/m
+ *
+ * Rule applies to the logger named by the prefix and those under it in the
+ * package tree (* is any) and, with a level, to events of that level and less
+ * severe. The longest prefix wins. Rate is per s, m or h (sec, min, hour),
+ * rules with any other unit are ignored. Every logger matched by a rule gets its own token bucket holding a
+ * second worth of events, so one runaway logger doesn't silence the others.
+ * Bucket is a single theoretical arrival time (GCRA) advanced with one CAS,
+ * checking it doesn't lock and allocates only the first time a logger is seen.
+ * Number of buckets per rule is bounded, loggers beyond the bound share one.
+ *
+ * Suppressed events are counted per logger. The dispatcher sweeps the buckets
+ * and reports the count once suppression is over, when the bucket filled up
+ * again, even if the logger never speaks again. Buckets of idle loggers are
+ * forgotten by the sweep.
+ *
+ * Severities are 0 for error (and fatal) to 4 for trace.
+ */
+public class RateLimiter {
+	public static final int MAX_LOGGERS = 1024;
+	static final long SWEEP_INTERVAL = TimeUnit.MILLISECONDS.toNanos(250);
+	static final long REPORT_INTERVAL = TimeUnit.MINUTES.toNanos(1);
+
+	private final Rule[] rules;
+	private volatile long nextSweep = System.nanoTime();
+
+	private RateLimiter(List<Rule> rules) {
+		this.rules = rules.toArray(new Rule[rules.size()]);
+	}
+
+	/**
+	 * @return limiter of the rules, null if there are none
+	 */
+	public static RateLimiter parse(String spec) {
+		if(spec == null)
+			return null;
+		List<Rule> rules = new ArrayList<Rule>();
+		for(String entry : spec.split("[;,]")) {
+			int eq = entry.indexOf('=');
+			if(eq < 0)
+				continue;
+			String target = entry.substring(0, eq).trim();
+			String rate = entry.substring(eq + 1).trim();
+			int severity = 0;
+			int colon = target.indexOf(':');
+			if(colon >= 0) {
+				severity = severityOf(target.substring(colon + 1).trim());
+				target = target.substring(0, colon).trim();
+			}
+			if(target.equals("*"))
+				target = "";
+
+			TimeUnit unit = TimeUnit.SECONDS;
+			int slash = rate.indexOf('/');
+			if(slash >= 0) {
+				unit = unitOf(rate.substring(slash + 1).trim().toLowerCase());
+				if(unit == null)
+					continue;
+				rate = rate.substring(0, slash).trim();
+			}
+			long events = Utils.parseLong(rate, 0);
+			if(events > 0)
+				rules.add(new Rule(target, severity, unit.toNanos(1) / events));
+		}
+		if(rules.isEmpty())
+			return null;
+		Collections.sort(rules, new Comparator<Rule>() {
+			public int compare(Rule a, Rule b) {
+				return b.prefix.length() - a.prefix.length();
+			}
+		});
+		return new RateLimiter(rules);
+	}
+
+	/**
+	 * @return unit of s, sec, m, min, h, hour and their plurals, null for anything else
+	 */
+	static TimeUnit unitOf(String per) {
+		if(per.equals("s") || per.equals("sec") || per.equals("second") || per.equals("seconds") || per.equals("secs"))
+			return TimeUnit.SECONDS;
+		if(per.equals("m") || per.equals("min") || per.equals("minute") || per.equals("minutes") || per.equals("mins"))
+			return TimeUnit.MINUTES;
+		if(per.equals("h") || per.equals("hour") || per.equals("hours"))
+			return TimeUnit.HOURS;
+		return null;
+	}
+
+	/**
+	 * @return 0 for error to 4 for trace, trace for unknown names
+	 */
+	public static int severityOf(String level) {
+		String s = level.toUpperCase();
+		if(s.equals("FATAL") || s.equals("ERROR"))
+			return 0;
+		if(s.startsWith("WARN"))
+			return 1;
+		if(s.equals("INFO"))
+			return 2;
+		return s.equals("DEBUG") ? 3 : 4;
+	}
+
+	/**
+	 * @return rule limiting the logger at the severity, null if it's not limited
+	 */
+	public Rule match(String logger, int severity) {
+		if(logger == null)
+			logger = "";
+		for(Rule rule : rules) {
+			if(severity >= rule.severity && rule.covers(logger))
+				return rule;
+		}
+		return null;
+	}
+
+	/**
+	 * Ends suppressions which are over, those of loggers whose bucket filled up
+	 * again and those going on for a report interval, and forgets idle loggers.
+	 * Called by the dispatcher every now and then, does the work at most every
+	 * sweep interval.
+	 */
+	public void sweep(Listener listener) {
+		sweep(System.nanoTime(), listener);
+	}
+
+	void sweep(long now, Listener listener) {
+		if(now - nextSweep < 0)
+			return;
+		nextSweep = now + SWEEP_INTERVAL;
+		for(Rule rule : rules)
+			rule.sweep(now, listener);
+	}
+
+	/**
+	 * Receives numbers of events suppressed once suppression of a logger ends
+	 */
+	public interface Listener {
+		void onSuppressed(String logger, long events);
+	}
+
+	public static final class Rule {
+		final String prefix;
+		final int severity;
+		// nanos between events at the limit and how far ahead of time a bucket may run
+		final long interval;
+		final long tolerance;
+		// bucket of every logger the rule matched, loggers beyond the bound share one
+		private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+		private final Bucket shared;
+
+		Rule(String prefix, int severity, long interval) {
+			this.prefix = prefix;
+			this.severity = severity;
+			this.interval = Math.max(interval, 1);
+			this.tolerance = Math.max(TimeUnit.SECONDS.toNanos(1) - this.interval, 0);
+			this.shared = new Bucket(prefix + "*");
+		}
+
+		/**
+		 * @return true for the logger of the prefix and those under it, any logger for empty prefix
+		 */
+		boolean covers(String logger) {
+			if(prefix.isEmpty() || logger.equals(prefix))
+				return true;
+			return logger.length() > prefix.length() && logger.charAt(prefix.length()) == '.' && logger.startsWith(prefix);
+		}
+
+		/**
+		 * Takes a token from bucket of the logger, counts the event as suppressed when there is none
+		 */
+		public boolean tryAcquire(String logger) {
+			return tryAcquire(logger, System.nanoTime());
+		}
+
+		boolean tryAcquire(String logger, long now) {
+			return bucket(logger).tryAcquire(now, interval, tolerance);
+		}
+
+		private Bucket bucket(String logger) {
+			if(logger == null)
+				logger = "";
+			Bucket bucket = buckets.get(logger);
+			if(bucket != null)
+				return bucket;
+			if(buckets.size() >= MAX_LOGGERS)
+				return shared;
+			bucket = new Bucket(logger);
+			Bucket raced = buckets.putIfAbsent(logger, bucket);
+			return raced != null ? raced : bucket;
+		}
+
+		void sweep(long now, Listener listener) {
+			Iterator<Bucket> it = buckets.values().iterator();
+			while(it.hasNext()) {
+				Bucket bucket = it.next();
+				bucket.report(now, listener);
+				// full bucket without suppressions is the same as no bucket
+				if(bucket.isIdle(now))
+					it.remove();
+			}
+			shared.report(now, listener);
+		}
+
+		public String getPrefix() {
+			return prefix;
+		}
+	}
+
+	/**
+	 * Token bucket of one logger, a single theoretical arrival time (GCRA)
+	 * advanced with one CAS
+	 */
+	static final class Bucket {
+		final String logger;
+		final AtomicLong arrival = new AtomicLong(Long.MIN_VALUE);
+		final AtomicLong suppressed = new AtomicLong();
+		// when the suppression being counted started
+		volatile long since;
+
+		Bucket(String logger) {
+			this.logger = logger;
+		}
+
+		boolean tryAcquire(long now, long interval, long tolerance) {
+			while(true) {
+				long tat = arrival.get();
+				long next = tat == Long.MIN_VALUE || tat - now < 0 ? now : tat;
+				if(next - now > tolerance) {
+					if(suppressed.getAndIncrement() == 0)
+						since = now;
+					return false;
+				}
+				if(arrival.compareAndSet(tat, next + interval))
+					return true;
+			}
+		}
+
+		/**
+		 * Suppression is over once the bucket filled up again, a long one
+		 * is reported every report interval while it goes on
+		 */
+		void report(long now, Listener listener) {
+			if(suppressed.get() == 0)
+				return;
+			if(!isFull(now) && now - since < REPORT_INTERVAL)
+				return;
+			since = now;
+			long events = suppressed.getAndSet(0);
+			if(events > 0)
+				listener.onSuppressed(logger, events);
+		}
+
+		boolean isFull(long now) {
+			long tat = arrival.get();
+			return tat == Long.MIN_VALUE || tat - now <= 0;
+		}
+
+		boolean isIdle(long now) {
+			return suppressed.get() == 0 && isFull(now);
+		}
+	}
+}
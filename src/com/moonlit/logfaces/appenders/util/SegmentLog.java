@@ -0,0 +1,360 @@
+package com.moonlit.logfaces.appenders.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+
+/**
+ * Append only log of serialized events kept in memory mapped segment files.
+ * Appending is a copy into mapped memory, the operating system writes pages
+ * out on its own, so callers don't wait for the disk.
+ *
+ * <pre>
+ * segment := record* (END | zeros)
+ * record  := length:int32 bytes
+ * </pre>
+ *
+ * Records are read oldest first, reading doesn't consume them, advance does.
+ * Segments which have been read completely are deleted. Total size is bounded,
+ * when the last segment is full and there are too many of them, the oldest
+ * segment is dropped together with the records it holds.
+ *
+ * Segments are named prefix-sequence.log, the sequence keeps growing.
+ * Existing segments can be picked up when the log is opened again, see
+ * recover, otherwise they are deleted.
+ */
+public class SegmentLog implements Closeable {
+	public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+	public static final String SUFFIX = ".log";
+	private static final int END = -1;
+
+	protected final File dir;
+	protected final String prefix;
+	protected final int segmentSize;
+	protected final int maxSegments;
+	protected final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+	// reading position in the oldest segment
+	protected int readPosition;
+	protected long nextSequence;
+	protected long records, dropped;
+	// records the last read returned and advance didn't consume yet, and how many of them were dropped since
+	private int inFlight, droppedInFlight;
+	private DispatchLoop reader;
+
+	/**
+	 * @param maxBytes total size on disk, at least two segments are kept
+	 * @param recover pick up existing segments instead of deleting them
+	 */
+	public SegmentLog(File dir, String prefix, long maxBytes, int segmentSize, boolean recover) throws IOException {
+		if(!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("can't create directory " + dir);
+		this.dir = dir;
+		this.prefix = prefix;
+		this.segmentSize = segmentSize;
+		this.maxSegments = (int)Math.max(2, maxBytes / segmentSize);
+
+		for(File file : existing()) {
+			if(recover)
+				segments.addLast(Segment.recover(file, sequenceOf(file)));
+			else if(!file.delete())
+				throw new IOException("can't delete " + file);
+		}
+		if(!segments.isEmpty())
+			nextSequence = segments.getLast().sequence + 1;
+		recount();
+	}
+
+	/**
+	 * Counts records not consumed yet, after reading position was restored
+	 */
+	protected void recount() {
+		records = 0;
+		int position = readPosition;
+		for(Segment segment : segments) {
+			records += segment.countFrom(position);
+			position = 0;
+		}
+	}
+
+	/**
+	 * @return false if the record can't fit into a segment
+	 */
+	public synchronized boolean append(byte[] data, int offset, int length) throws IOException {
+		if(length <= 0 || length > segmentSize - 8)
+			return false;
+		Segment segment = segments.peekLast();
+		if(segment == null || segment.remaining() < length + 4) {
+			if(segment != null)
+				segment.seal();
+			segment = roll();
+		}
+		segment.append(data, offset, length);
+		records++;
+		if(reader != null)
+			reader.wakeUp();
+		return true;
+	}
+
+	private Segment roll() throws IOException {
+		while(segments.size() >= maxSegments) {
+			Segment oldest = segments.removeFirst();
+			int unread = oldest.countFrom(readPosition);
+			// what the reader holds was dropped with the segment, its advance must not consume the next one
+			int lost = Math.min(unread, inFlight);
+			inFlight -= lost;
+			droppedInFlight += lost;
+			dropped += unread;
+			records -= unread;
+			readPosition = 0;
+			oldest.delete();
+		}
+		Segment segment = Segment.create(new File(dir, prefix + "-" + nextSequence + SUFFIX), nextSequence, segmentSize);
+		nextSequence++;
+		segments.addLast(segment);
+		return segment;
+	}
+
+	/**
+	 * Copies up to given number of oldest records to the buffer, without consuming them
+	 * @return number of records copied
+	 */
+	public synchronized int read(EventBuffer out, int maxRecords, int maxBytes) {
+		int count = 0;
+		int position = readPosition;
+		Iterator<Segment> it = segments.iterator();
+		Segment segment = it.hasNext() ? it.next() : null;
+		while(segment != null && count < maxRecords) {
+			int length = segment.lengthAt(position);
+			if(length <= 0) {
+				segment = it.hasNext() ? it.next() : null;
+				position = 0;
+				continue;
+			}
+			if(count > 0 && out.size() + length > maxBytes)
+				break;
+			segment.copy(position + 4, length, out);
+			position += 4 + length;
+			count++;
+		}
+		inFlight = count;
+		droppedInFlight = 0;
+		return count;
+	}
+
+	/**
+	 * Consumes given number of oldest records, segments read completely are deleted.
+	 * Records of the last read which were dropped meanwhile count as consumed.
+	 */
+	public synchronized void advance(int count) {
+		int gone = Math.min(count, droppedInFlight);
+		droppedInFlight -= gone;
+		count -= gone;
+		inFlight = Math.max(inFlight - count, 0);
+		while(count > 0 && !segments.isEmpty()) {
+			Segment segment = segments.getFirst();
+			int length = segment.lengthAt(readPosition);
+			if(length <= 0) {
+				if(segment == segments.getLast())
+					break;
+				segments.removeFirst().delete();
+				readPosition = 0;
+				continue;
+			}
+			readPosition += 4 + length;
+			records--;
+			count--;
+		}
+		// don't keep the oldest segment around once it's done
+		if(segments.size() > 1 && segments.getFirst().lengthAt(readPosition) <= 0) {
+			segments.removeFirst().delete();
+			readPosition = 0;
+		}
+	}
+
+	/**
+	 * Loop reading the log, woken up by every append
+	 */
+	public synchronized void setReader(DispatchLoop reader) {
+		this.reader = reader;
+	}
+
+	public synchronized boolean isEmpty() {
+		return records == 0;
+	}
+
+	/**
+	 * @return number of records not consumed yet
+	 */
+	public synchronized long size() {
+		return records;
+	}
+
+	/**
+	 * @return number of records dropped with oldest segments since the log was opened
+	 */
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Forces mapped segments to disk
+	 */
+	public void force() {
+		Segment[] copy;
+		synchronized(this) {
+			copy = segments.toArray(new Segment[segments.size()]);
+		}
+		for(Segment segment : copy)
+			segment.force();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		for(Segment segment : segments)
+			segment.close();
+		segments.clear();
+	}
+
+	protected File[] existing() {
+		File[] files = dir.listFiles(new FilenameFilter() {
+			public boolean accept(File d, String name) {
+				return name.startsWith(prefix + "-") && name.endsWith(SUFFIX);
+			}
+		});
+		if(files == null)
+			return new File[0];
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				return Long.compare(sequenceOf(a), sequenceOf(b));
+			}
+		});
+		return files;
+	}
+
+	protected long sequenceOf(File file) {
+		String name = file.getName();
+		try {
+			return Long.parseLong(name.substring(prefix.length() + 1, name.length() - SUFFIX.length()));
+		}
+		catch(NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Single mapped file. Mappings are released by the garbage collector,
+	 * there is no portable way to unmap earlier.
+	 */
+	static final class Segment {
+		final File file;
+		final long sequence;
+		final RandomAccessFile raf;
+		final MappedByteBuffer map;
+		int writePosition;
+		int records;
+
+		private Segment(File file, long sequence, int size) throws IOException {
+			this.file = file;
+			this.sequence = sequence;
+			this.raf = new RandomAccessFile(file, "rw");
+			try {
+				this.map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			}
+			catch(IOException e) {
+				raf.close();
+				throw e;
+			}
+		}
+
+		static Segment create(File file, long sequence, int size) throws IOException {
+			return new Segment(file, sequence, size);
+		}
+
+		/**
+		 * Scans records of existing file, a record cut short by crash ends the segment
+		 */
+		static Segment recover(File file, long sequence) throws IOException {
+			Segment segment = new Segment(file, sequence, (int)file.length());
+			int position = 0;
+			int capacity = segment.map.capacity();
+			while(position + 4 <= capacity) {
+				int length = segment.map.getInt(position);
+				if(length <= 0 || position + 4 + length > capacity)
+					break;
+				position += 4 + length;
+				segment.records++;
+			}
+			segment.writePosition = position;
+			segment.seal();
+			return segment;
+		}
+
+		int remaining() {
+			return map.capacity() - writePosition;
+		}
+
+		void append(byte[] data, int offset, int length) {
+			// body first, the length makes the record visible
+			map.position(writePosition + 4);
+			map.put(data, offset, length);
+			map.putInt(writePosition, length);
+			writePosition += 4 + length;
+			records++;
+		}
+
+		void seal() {
+			if(remaining() >= 4)
+				map.putInt(writePosition, END);
+			writePosition = map.capacity();
+		}
+
+		int lengthAt(int position) {
+			if(position + 4 > map.capacity())
+				return 0;
+			int length = map.getInt(position);
+			return length > 0 && position + 4 + length <= map.capacity() ? length : 0;
+		}
+
+		void copy(int position, int length, EventBuffer out) {
+			ByteBuffer slice = map.duplicate();
+			slice.limit(position + length).position(position);
+			out.writeBytes(slice);
+		}
+
+		int countFrom(int position) {
+			int count = 0;
+			int length;
+			while((length = lengthAt(position)) > 0) {
+				position += 4 + length;
+				count++;
+			}
+			return count;
+		}
+
+		void force() {
+			map.force();
+		}
+
+		void close() throws IOException {
+			raf.close();
+		}
+
+		void delete() {
+			try {
+				raf.close();
+			}
+			catch(IOException e) {
+			}
+			file.delete();
+		}
+	}
+}
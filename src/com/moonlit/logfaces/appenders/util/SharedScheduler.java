@@ -0,0 +1,157 @@
+package com.moonlit.logfaces.appenders.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs connection management of all appenders in the JVM: connecting,
+ * reconnect attempts, probing of balanced hosts and journal syncs. Instead of
+ * a thread per attempt, a single timer thread waits out the delays and hands
+ * tasks over to workers, so number of threads doesn't grow with number of
+ * appenders or with a flapping network.
+ *
+ * Workers are virtual threads when the JVM has them (21 and later), a connect
+ * which blocks for long then costs nothing. Otherwise it's a pool of at most
+ * 4 platform threads, more can be set with -Dlogfaces.scheduler.threads=n.
+ * Virtual threads can be turned off with -Dlogfaces.scheduler.virtual=false.
+ * All threads are daemons and go away after a minute of idling.
+ *
+ * Connects to dead hosts must not hold the pool, they give up after the
+ * connect timeout, well before the next attempt is due. Journal syncs have
+ * a lane of their own, a slow disk and a slow network don't wait for each other.
+ *
+ * Dispatch loops of appenders and pooled connections run here too, in a lane
+ * of their own, a turn at a time (see DispatchLoop). Loops waiting for events
+ * hold no thread, so dispatching takes the same few threads however many
+ * appenders there are. A turn blocks only while writing to the socket.
+ */
+public final class SharedScheduler {
+	public static final String THREADS_PROPERTY = "logfaces.scheduler.threads";
+	public static final String VIRTUAL_PROPERTY = "logfaces.scheduler.virtual";
+	public static final int DEFAULT_THREADS = 4;
+	public static final int MIN_CONNECT_TIMEOUT = 2000;
+	private static final long KEEP_ALIVE = 60;
+
+	private static final ScheduledThreadPoolExecutor timer;
+	// connection work, journal syncs and turns of dispatch loops
+	private static final ExecutorService workers, syncers, dispatchers;
+	private static final boolean virtual;
+
+	static {
+		timer = new ScheduledThreadPoolExecutor(1, new Factory("LogfacesTimer"));
+		timer.setRemoveOnCancelPolicy(true);
+		timer.setKeepAliveTime(KEEP_ALIVE, TimeUnit.SECONDS);
+		timer.allowCoreThreadTimeOut(true);
+
+		ExecutorService executor = Boolean.parseBoolean(System.getProperty(VIRTUAL_PROPERTY, "true")) ? virtualExecutor() : null;
+		virtual = executor != null;
+		workers = virtual ? executor : pool("LogfacesScheduler");
+		syncers = virtual ? virtualExecutor() : pool("LogfacesSyncer");
+		dispatchers = virtual ? virtualExecutor() : pool("LogfacesDispatcher");
+	}
+
+	private SharedScheduler() {
+	}
+
+	private static ExecutorService pool(String name) {
+		int threads = Math.max(Utils.parseInt(System.getProperty(THREADS_PROPERTY), DEFAULT_THREADS), 1);
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new Factory(name));
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	 * Executors.newVirtualThreadPerTaskExecutor, looked up as the code is built for Java 8
+	 * @return null if the JVM doesn't have virtual threads
+	 */
+	private static ExecutorService virtualExecutor() {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService)method.invoke(null);
+		}
+		catch(Throwable e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Runs the task as soon as a worker is free
+	 */
+	public static void execute(Runnable task) {
+		workers.execute(task);
+	}
+
+	/**
+	 * Runs the task after the delay, cancelling the returned future
+	 * before it's due prevents it from running
+	 */
+	public static ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+		return schedule(task, delayMillis, workers);
+	}
+
+	/**
+	 * Runs disk sync after the delay, in the lane of syncs
+	 */
+	public static ScheduledFuture<?> scheduleSync(Runnable task, long delayMillis) {
+		return schedule(task, delayMillis, syncers);
+	}
+
+	private static ScheduledFuture<?> schedule(final Runnable task, long delayMillis, final ExecutorService lane) {
+		return timer.schedule(new Runnable() {
+			public void run() {
+				lane.execute(task);
+			}
+		}, Math.max(delayMillis, 0), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Runs a turn of the loop in the lane of dispatchers
+	 */
+	static void dispatch(DispatchLoop loop) {
+		dispatchers.execute(loop);
+	}
+
+	/**
+	 * Wakes a dispatch loop up after the delay, on the timer thread as it takes no time
+	 */
+	static ScheduledFuture<?> wakeUp(Runnable waker, long delayMillis) {
+		return timer.schedule(waker, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return connect timeout for attempts the period apart, half the period but at least 2 seconds
+	 */
+	public static int connectTimeout(long periodMillis) {
+		return (int)Math.min(Math.max(periodMillis / 2, MIN_CONNECT_TIMEOUT), Integer.MAX_VALUE);
+	}
+
+	public static boolean isVirtual() {
+		return virtual;
+	}
+
+	private static final class Factory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+		private final String name;
+
+		Factory(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, name + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package com.moonlit.logfaces.appenders.util;
+
+/**
+ * Bounded cache of rendered (and already escaped) stack traces keyed by
+ * fingerprint of the throwable. When the same exception is logged over
+ * and over again, only the fingerprint is computed, rendering is reused.
+ *
+ * The fingerprint covers class, message and frames of every throwable in
+ * the cause and suppressed chain, so equal fingerprints render equally.
+ * Table is direct mapped and lock free, same as EscapeCache.
+ */
+public final class ThrowableCache {
+	public static final int DEFAULT_SIZE = 256;
+	public static final int MAX_RENDERED_LENGTH = 256 * 1024;
+	private static final long SEED = 0xcbf29ce484222325L;
+	private static final long PRIME = 0x100000001b3L;
+	private static final int MAX_DEPTH = 32;
+
+	private final Entry[] table;
+	private final int mask;
+
+	public ThrowableCache() {
+		this(DEFAULT_SIZE);
+	}
+
+	public ThrowableCache(int size) {
+		int capacity = Integer.highestOneBit(Math.max(size - 1, 1)) << 1;
+		this.table = new Entry[capacity];
+		this.mask = capacity - 1;
+	}
+
+	/**
+	 * @return rendered trace or null if not cached
+	 */
+	public String get(long fingerprint) {
+		Entry entry = table[index(fingerprint)];
+		return entry != null && entry.fingerprint == fingerprint ? entry.rendered : null;
+	}
+
+	public void put(long fingerprint, String rendered) {
+		if(rendered != null && rendered.length() <= MAX_RENDERED_LENGTH)
+			table[index(fingerprint)] = new Entry(fingerprint, rendered);
+	}
+
+	private int index(long fingerprint) {
+		return (int)(fingerprint ^ (fingerprint >>> 32)) & mask;
+	}
+
+	public static long fingerprint(Throwable throwable) {
+		return finish(fingerprint(SEED, throwable, 0));
+	}
+
+	private static long fingerprint(long h, Throwable t, int depth) {
+		for(; t != null && depth < MAX_DEPTH; t = t.getCause(), depth++) {
+			h = mix(h, t.getClass().getName().hashCode());
+			h = mix(h, t.getMessage() != null ? t.getMessage().hashCode() : 0);
+			StackTraceElement[] frames = t.getStackTrace();
+			h = mix(h, frames.length);
+			for(StackTraceElement frame : frames)
+				h = mix(h, frame.hashCode());
+			for(Throwable suppressed : t.getSuppressed())
+				h = fingerprint(h, suppressed, depth + 1);
+			if(t.getCause() == t)
+				break;
+		}
+		return h;
+	}
+
+	/**
+	 * Combines next value into the running fingerprint
+	 */
+	public static long mix(long h, int value) {
+		return (h ^ value) * PRIME;
+	}
+
+	public static long seed() {
+		return SEED;
+	}
+
+	/**
+	 * Final avalanche, so that fingerprints spread well across tables
+	 */
+	public static long finish(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Short text sent instead of a trace which was already sent on the connection
+	 */
+	public static String reference(long fingerprint) {
+		return "[trace " + id(fingerprint) + " sent earlier]";
+	}
+
+	public static String id(long fingerprint) {
+		return Long.toHexString(fingerprint);
+	}
+
+	private static final class Entry {
+		final long fingerprint;
+		final String rendered;
+
+		Entry(long fingerprint, String rendered) {
+			this.fingerprint = fingerprint;
+			this.rendered = rendered;
+		}
+	}
+}
@@ -7,6 +7,7 @@ public class Utils {
 	public static final String EOL = System.getProperty("line.separator");
 	public static final String APP_KEY = "application";
 	public static final String HOST_KEY = "hostname";
+	public static final String TRACE_KEY = "trace";
 			
     public static long parseLong(String s, long defaultValue) {
     	if(s == null)
@@ -28,6 +29,31 @@ public class Utils {
         }
     }
 
+    /**
+     * Parses size in bytes with optional KB, MB or GB suffix, like 64MB
+     */
+    public static long parseSize(String s, long defaultValue) {
+    	if(s == null)
+    		return defaultValue;
+    	String value = s.trim().toUpperCase();
+    	long unit = 1;
+    	if(value.endsWith("B"))
+    		value = value.substring(0, value.length() - 1);
+    	if(value.endsWith("K"))
+    		unit = 1024;
+    	else if(value.endsWith("M"))
+    		unit = 1024 * 1024;
+    	else if(value.endsWith("G"))
+    		unit = 1024 * 1024 * 1024;
+    	if(unit > 1)
+    		value = value.substring(0, value.length() - 1);
+        try {
+            return Long.parseLong(value.trim()) * unit;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
     public static boolean parseBool(String s, boolean defaultValue) {
     	if(s == null)
     		return defaultValue;
@@ -38,53 +64,75 @@ public class Utils {
         }
     }
     
+    /**
+     * Appends JSON attribute, the name is expected to be one of the 
+     * constant keys and is not escaped, use jsonProperty for user keys.
+     */
     public static void jsonAttribute(StringBuilder buf, String name, String value, boolean first){
     	if(!first)
-	       	buf.append(",");
-        buf.append("\"");
-        buf.append(safeJson(name));
-        buf.append("\":\"");
-        buf.append(safeJson(value));
-        buf.append("\"");
+	       	buf.append(',');
+        buf.append('"').append(name).append("\":\"");
+        Escaper.JSON.append(buf, value);
+        buf.append('"');
+    }
+
+    /**
+     * Appends JSON attribute with value escaped through the cache
+     */
+    public static void jsonAttribute(StringBuilder buf, String name, EscapeCache cache, String value){
+        buf.append(",\"").append(name).append("\":\"");
+        cache.append(buf, value);
+        buf.append('"');
+    }
+
+    public static void jsonAttribute(StringBuilder buf, String name, long value, boolean first){
+    	if(!first)
+	       	buf.append(',');
+        buf.append('"').append(name).append("\":\"").append(value).append('"');
     }
 
     public static void jsonAttribute(StringBuilder buf, String name, List<String> list, String delim, boolean first){
     	if(!first)
-	       	buf.append(",");
-        buf.append("\"");
-        buf.append(safeJson(name));
-        buf.append("\":\"");
+	       	buf.append(',');
+        buf.append('"').append(name).append("\":\"");
         int size = list.size();
         for(int i=0; i<size; i++){
-        	String string = list.get(i);
-        	buf.append(safeJson(string));
+        	Escaper.JSON.append(buf, list.get(i));
         	if(i < size-1)
         		buf.append(delim);
         }
         
-        buf.append("\"");
+        buf.append('"');
+    }
+
+    /**
+     * Appends user property (MDC or marker) as "p_" prefixed JSON attribute
+     */
+    public static void jsonProperty(StringBuilder buf, String key, String value){
+        buf.append(",\"p_");
+        Escaper.JSON.append(buf, key);
+        buf.append("\":\"");
+        Escaper.JSON.append(buf, value);
+        buf.append('"');
+    }
+    
+    public static String join(List<String> list, String delim){
+        StringBuilder buf = new StringBuilder(256);
+        int size = list.size();
+        for(int i=0; i<size; i++){
+        	if(i > 0)
+        		buf.append(delim);
+        	buf.append(list.get(i));
+        }
+        return buf.toString();
     }
     
     public static String safeXml(String input){
-    	return input != null ? input.replaceAll("[\\p{Cntrl}&&[^\r\n\t]]|[\\ufffe-\\uffff]", "") : "";
+    	return input != null ? Escaper.CONTROL.escape(input) : "";
     }
     
     public static String safeJson(String input){
-    	if(input == null || input.isEmpty())
-    		return"";
-    	
-    	try {
-			String out = input;
-			out = out.replace("\\", "\\\\");
-			//out = out.replace("'", "\\'");
-			//out = out.replace("{", "\\{");
-			//out = out.replace("}", "\\}");
-			out = out.replace("\"", "\\\"");
-			out = out.replaceAll("[\\p{Cntrl}&&[^\r\n\t]]|[\\ufffe-\\uffff]", "");
-			return out;
-		} catch (Exception e) {
-			return input;
-		}
+    	return input != null ? Escaper.JSON.escape(input) : "";
     }
     
     public static String getLocalHostName(int modification) {
@@ -0,0 +1,28 @@
+package com.moonlit.logfaces.appenders.log4j2;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class LogfacesAppenderTest {
+
+	@Test
+	public void parsesAsyncBackpressure() {
+		assertEquals(0, LogfacesAppender.parseBackpressure("drop"));
+		assertEquals(-1, LogfacesAppender.parseBackpressure(" Block "));
+		assertEquals(LogfacesAppender.ASYNC_WAIT_OFFER, LogfacesAppender.parseBackpressure("wait"));
+		assertEquals(250, LogfacesAppender.parseBackpressure("wait:250"));
+		assertEquals(250, LogfacesAppender.parseBackpressure("WAIT: 250"));
+		assertEquals(0, LogfacesAppender.parseBackpressure("wait:0"));
+	}
+
+	@Test
+	public void unknownBackpressureFallsBackToDefault() {
+		assertEquals(LogfacesAppender.ASYNC_WAIT_DEFAULT, LogfacesAppender.parseBackpressure(null));
+		assertEquals(LogfacesAppender.ASYNC_WAIT_DEFAULT, LogfacesAppender.parseBackpressure(" "));
+		assertEquals(LogfacesAppender.ASYNC_WAIT_DEFAULT, LogfacesAppender.parseBackpressure("wait:"));
+		assertEquals(LogfacesAppender.ASYNC_WAIT_DEFAULT, LogfacesAppender.parseBackpressure("wait:-5"));
+		assertEquals(LogfacesAppender.ASYNC_WAIT_DEFAULT, LogfacesAppender.parseBackpressure("wait:soon"));
+		assertEquals(LogfacesAppender.ASYNC_WAIT_DEFAULT, LogfacesAppender.parseBackpressure("spin"));
+	}
+}
@@ -0,0 +1,125 @@
+package com.moonlit.logfaces.appenders.log4j2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TcpManagerTest {
+	private ServerSocket server;
+	private Socket peer;
+	private TcpManager manager;
+
+	@Before
+	public void listen() throws IOException {
+		server = new ServerSocket(0);
+		server.setSoTimeout(5000);
+	}
+
+	@After
+	public void close() throws IOException {
+		if(manager != null)
+			manager.stop();
+		if(peer != null)
+			peer.close();
+		server.close();
+	}
+
+	private static LogEvent event(String message) {
+		return Log4jLogEvent.newBuilder()
+				.setLoggerName("test")
+				.setLevel(Level.INFO)
+				.setMessage(new SimpleMessage(message))
+				.build();
+	}
+
+	private void connect(int batchSize) throws Exception {
+		manager = new TcpManager("localhost", server.getLocalPort(), 100, 3, PatternLayout.newBuilder().withPattern("%m;").build());
+		manager.setBatching(batchSize, 60000);
+		manager.start();
+		peer = server.accept();
+		peer.setSoTimeout(5000);
+		for(int i = 0; i < 500 && !manager.isOperational(); i++)
+			Thread.sleep(10);
+		assertTrue(manager.isOperational());
+	}
+
+	private String receive(int bytes) throws IOException {
+		byte[] data = new byte[bytes];
+		InputStream in = peer.getInputStream();
+		for(int n = 0; n < bytes; ) {
+			int read = in.read(data, n, bytes - n);
+			if(read < 0)
+				break;
+			n += read;
+		}
+		return new String(data, StandardCharsets.US_ASCII);
+	}
+
+	@Test
+	public void eventsWaitForFlush() throws Exception {
+		connect(1000);
+		assertTrue(manager.send(event("a")));
+		assertTrue(manager.send(event("b")));
+		assertTrue(manager.send(event("c")));
+		assertEquals(0, manager.getBatchCount());
+
+		manager.flush();
+		// probe and the batch in one write
+		assertEquals("  a;b;c;", receive(8));
+		assertEquals(1, manager.getBatchCount());
+		assertEquals(1, manager.getWriteCount());
+		assertEquals(3, manager.getTotalCount());
+		manager.flush();
+		assertEquals(1, manager.getBatchCount());
+	}
+
+	@Test
+	public void fullBatchGoesOutRightAway() throws Exception {
+		connect(8);
+		assertTrue(manager.send(event("abc")));
+		assertEquals(0, manager.getBatchCount());
+		assertTrue(manager.send(event("def")));
+		assertEquals(1, manager.getBatchCount());
+		assertEquals("  abc;def;", receive(10));
+
+		// the next batch has its own probe
+		assertTrue(manager.send(event("ghijkl")));
+		assertEquals("  ghijkl;", receive(9));
+	}
+
+	@Test
+	public void eachEventIsWrittenWithoutBatching() throws Exception {
+		connect(0);
+		assertTrue(manager.send(event("a")));
+		assertTrue(manager.send("b;".getBytes(StandardCharsets.US_ASCII), 0, 2));
+		assertEquals("  a;  b;", receive(8));
+		assertEquals(2, manager.getBatchCount());
+		assertEquals(2, manager.getWriteCount());
+	}
+
+	@Test
+	public void keptBatchIsUndeliveredOnStop() throws Exception {
+		connect(1000);
+		assertTrue(manager.send(event("a")));
+		assertTrue(manager.send(event("b")));
+		// connection went down with the batch still held
+		manager.operational = false;
+		manager.stop();
+		assertEquals(2, manager.getUndelivered());
+		assertEquals(0, manager.getBatchCount());
+	}
+}
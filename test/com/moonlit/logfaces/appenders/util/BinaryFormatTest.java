@@ -0,0 +1,137 @@
+package com.moonlit.logfaces.appenders.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class BinaryFormatTest {
+
+	private static int frame(EventBuffer out, long timestamp, String message) {
+		int start = BinaryFormat.beginFrame(out, timestamp, BinaryFormat.INFO);
+		BinaryFormat.writeField(out, BinaryFormat.MESSAGE, message);
+		BinaryFormat.endFrame(out, start);
+		return start;
+	}
+
+	@Test
+	public void fieldsSurviveRoundTrip() throws IOException {
+		EventBuffer out = new EventBuffer(16);
+		int start = BinaryFormat.beginFrame(out, 1700000000123L, BinaryFormat.WARN);
+		byte[] constant = BinaryFormat.constantFields("app", null);
+		out.writeBytes(constant);
+		BinaryFormat.writeField(out, BinaryFormat.LOGGER, "com.acme.Client");
+		BinaryFormat.writeField(out, BinaryFormat.MESSAGE, "h\u00e9llo \u20ac \ud83d\ude00 \"quoted\"");
+		BinaryFormat.writeField(out, BinaryFormat.THREAD, null);
+		BinaryFormat.writeField(out, BinaryFormat.LINE, 300);
+		BinaryFormat.writeProperty(out, "user", "jane");
+		BinaryFormat.writeProperty(out, "empty", null);
+		BinaryFormat.writeProperty(out, null, "ignored");
+		BinaryFormat.endFrame(out, start);
+
+		Map<String, String> event = BinaryDecoder.decodeFrame(out.array(), 0, out.size());
+		assertEquals("1700000000123", event.get("t"));
+		assertEquals("WARN", event.get("p"));
+		assertEquals("app", event.get("a"));
+		assertEquals("", event.get("h"));
+		assertEquals("com.acme.Client", event.get("g"));
+		assertEquals("h\u00e9llo \u20ac \ud83d\ude00 \"quoted\"", event.get("m"));
+		assertNull(event.get("r"));
+		assertEquals("300", event.get("l"));
+		assertEquals("jane", event.get("p_user"));
+		assertEquals("", event.get("p_empty"));
+		assertEquals(9, event.size());
+	}
+
+	@Test
+	public void traceIsSentOnceThenReferenced() throws IOException {
+		EventBuffer out = new EventBuffer();
+		int start = BinaryFormat.beginFrame(out, 1, BinaryFormat.ERROR);
+		BinaryFormat.writeField(out, BinaryFormat.THROWABLE, "java.io.IOException: gone\n\tat a.b(C.java:1)");
+		BinaryFormat.writeField(out, BinaryFormat.TRACE_ID, 12345);
+		BinaryFormat.endFrame(out, start);
+		start = BinaryFormat.beginFrame(out, 2, BinaryFormat.ERROR);
+		BinaryFormat.writeField(out, BinaryFormat.TRACE_ID, 12345);
+		BinaryFormat.endFrame(out, start);
+
+		BinaryDecoder decoder = new BinaryDecoder(new ByteArrayInputStream(out.array(), 0, out.size()));
+		Map<String, String> first = decoder.next();
+		assertEquals("true", first.get("w"));
+		assertEquals(ThrowableCache.id(12345), first.get("x"));
+		Map<String, String> second = decoder.next();
+		assertEquals("ERROR", second.get("p"));
+		assertEquals(first.get("i"), second.get("i"));
+		assertEquals(first.get("x"), second.get("x"));
+		assertNull(decoder.next());
+
+		// a single frame knows no traces sent before it
+		Map<String, String> alone = BinaryDecoder.decodeFrame(out.array(), start, out.size() - start);
+		assertEquals(ThrowableCache.reference(12345), alone.get("i"));
+	}
+
+	@Test
+	public void streamSkipsWhitespaceBetweenFrames() throws IOException {
+		EventBuffer out = new EventBuffer();
+		out.writeBytes("  ".getBytes(StandardCharsets.US_ASCII));
+		frame(out, 1, "first");
+		out.writeBytes("\r\n ".getBytes(StandardCharsets.US_ASCII));
+		frame(out, 2, "second");
+
+		BinaryDecoder decoder = new BinaryDecoder(new ByteArrayInputStream(out.array(), 0, out.size()));
+		assertEquals("first", decoder.next().get("m"));
+		assertEquals("second", decoder.next().get("m"));
+		assertNull(decoder.next());
+	}
+
+	@Test
+	public void largeFrameGrowsDecoderBuffer() throws IOException {
+		StringBuilder message = new StringBuilder();
+		for(int i = 0; i < 10000; i++)
+			message.append(i % 10);
+		EventBuffer out = new EventBuffer();
+		frame(out, 1, message.toString());
+		BinaryDecoder decoder = new BinaryDecoder(new ByteArrayInputStream(out.array(), 0, out.size()));
+		assertEquals(message.toString(), decoder.next().get("m"));
+	}
+
+	@Test
+	public void brokenStreamsAreRejected() throws IOException {
+		EventBuffer out = new EventBuffer();
+		frame(out, 1, "cut short");
+		try {
+			new BinaryDecoder(new ByteArrayInputStream(out.array(), 0, out.size() - 3)).next();
+			fail("truncated frame decoded");
+		}
+		catch(EOFException e) {
+		}
+		try {
+			new BinaryDecoder(new ByteArrayInputStream("<event/>".getBytes(StandardCharsets.US_ASCII))).next();
+			fail("xml decoded as binary");
+		}
+		catch(IOException e) {
+		}
+		try {
+			BinaryDecoder.decodeFrame(out.array(), 0, out.size() - 3);
+			fail("truncated datagram decoded");
+		}
+		catch(IOException e) {
+		}
+	}
+
+	@Test
+	public void utf8LengthMatchesEncoder() {
+		String[] samples = {"", "ascii", "\u00e9\u00e8", "\u20ac", "\ud83d\ude00", "a\ud83d", "\ude00b"};
+		for(String s : samples) {
+			EventBuffer out = new EventBuffer();
+			out.writeChars(s, StandardCharsets.UTF_8);
+			assertEquals(s, out.size(), BinaryFormat.utf8Length(s));
+		}
+	}
+}
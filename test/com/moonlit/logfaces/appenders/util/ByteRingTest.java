@@ -0,0 +1,146 @@
+package com.moonlit.logfaces.appenders.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ByteRingTest {
+
+	private static boolean offer(ByteRing ring, String record) {
+		byte[] b = record.getBytes(StandardCharsets.US_ASCII);
+		return ring.offer(b, 0, b.length);
+	}
+
+	private static String drain(ByteRing ring, int maxRecords, int maxBytes) {
+		EventBuffer out = new EventBuffer(16);
+		ring.drainTo(out, maxRecords, maxBytes);
+		return new String(out.array(), 0, out.size(), StandardCharsets.US_ASCII);
+	}
+
+	@Test
+	public void recordsWrapAroundTheEnd() {
+		for(boolean direct : new boolean[] {false, true}) {
+			ByteRing ring = new ByteRing(64, direct);
+			// 13 bytes each with the prefix, every lap starts elsewhere in the buffer
+			for(int i = 0; i < 50; i++) {
+				assertTrue(offer(ring, "record" + (100 + i)));
+				assertTrue(offer(ring, "record" + (200 + i)));
+				assertEquals(2, ring.size());
+				assertEquals("record" + (100 + i) + "record" + (200 + i), drain(ring, 10, 1000));
+				assertTrue(ring.isEmpty());
+				assertEquals(0, ring.bytes());
+			}
+		}
+	}
+
+	@Test
+	public void rejectsRecordWithoutSpace() throws InterruptedException {
+		ByteRing ring = new ByteRing(64);
+		byte[] record = new byte[26];
+		assertTrue(ring.offer(record, 0, record.length));
+		assertTrue(ring.offer(record, 0, record.length));
+		assertFalse(ring.offer(record, 0, record.length));
+		assertFalse(ring.offer(record, 0, record.length, 1, TimeUnit.MILLISECONDS));
+		// can never fit, doesn't wait at all
+		assertFalse(ring.offer(new byte[100], 0, 100, -1, TimeUnit.MILLISECONDS));
+		assertEquals(60, ring.bytes());
+	}
+
+	@Test
+	public void drainStopsAtLimits() {
+		ByteRing ring = new ByteRing(256);
+		for(int i = 0; i < 6; i++)
+			offer(ring, "r" + i + "-------");
+		assertEquals("r0-------r1-------", drain(ring, 2, 1000));
+		assertEquals("r2-------r3-------", drain(ring, 10, 25));
+		// the first record goes out even when it alone exceeds max bytes
+		assertEquals("r4-------", drain(ring, 10, 1));
+		assertEquals(1, ring.size());
+	}
+
+	@Test
+	public void drainCountsEveryRecordOfTheBatch() {
+		ByteRing ring = new ByteRing(1024);
+		for(int i = 0; i < 20; i++)
+			offer(ring, "record" + i);
+		EventBuffer out = new EventBuffer();
+		assertEquals(16, ring.drainTo(out, 16, 1024));
+		assertEquals(4, ring.size());
+		assertEquals(4, ring.drainTo(out, 16, 1024));
+	}
+
+	@Test
+	public void measuresResidence() {
+		ByteRing ring = new ByteRing(128);
+		LatencyHistogram residence = new LatencyHistogram();
+		ring.measureResidence(residence);
+		offer(ring, "first");
+		offer(ring, "second");
+		// offer time doesn't reach the output
+		assertEquals("firstsecond", drain(ring, 10, 1000));
+		assertEquals(2, residence.getCount());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void residenceIsSetWhileEmpty() {
+		ByteRing ring = new ByteRing(128);
+		offer(ring, "record");
+		ring.measureResidence(new LatencyHistogram());
+	}
+
+	@Test(timeout = 30000)
+	public void concurrentProducersLoseNothing() throws Exception {
+		final int producers = 4;
+		final int records = 50000;
+		final ByteRing ring = new ByteRing(4096);
+		Thread[] threads = new Thread[producers];
+		for(int p = 0; p < producers; p++) {
+			final int producer = p;
+			threads[p] = new Thread() {
+				public void run() {
+					byte[] record = new byte[8];
+					try {
+						for(int i = 0; i < records; i++) {
+							record[0] = (byte)producer;
+							record[4] = (byte)(i >>> 24);
+							record[5] = (byte)(i >>> 16);
+							record[6] = (byte)(i >>> 8);
+							record[7] = (byte)i;
+							ring.offer(record, 0, record.length, -1, TimeUnit.MILLISECONDS);
+						}
+					}
+					catch(InterruptedException e) {
+					}
+				}
+			};
+			threads[p].start();
+		}
+
+		// records of each producer come out whole and in order
+		int[] next = new int[producers];
+		EventBuffer out = new EventBuffer();
+		int received = 0;
+		while(received < producers * records) {
+			out.reset();
+			int n = ring.drainTo(out, 64, 4096);
+			byte[] b = out.array();
+			assertEquals(n * 8, out.size());
+			for(int i = 0; i < n; i++) {
+				int at = i * 8;
+				int sequence = (b[at + 4] & 0xFF) << 24 | (b[at + 5] & 0xFF) << 16 | (b[at + 6] & 0xFF) << 8 | (b[at + 7] & 0xFF);
+				assertEquals(next[b[at]]++, sequence);
+			}
+			received += n;
+			if(n == 0)
+				Thread.yield();
+		}
+		for(Thread thread : threads)
+			thread.join();
+		assertTrue(ring.isEmpty());
+	}
+}
@@ -0,0 +1,118 @@
+package com.moonlit.logfaces.appenders.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class CoalescerTest {
+
+	/**
+	 * Events are strings, copies are marked so the test sees what was retained
+	 */
+	private static final class Repeats implements Coalescer.Listener<String> {
+		final List<String> sent = new ArrayList<String>();
+
+		@Override
+		public String retain(String event) {
+			return "copy of " + event;
+		}
+
+		@Override
+		public void onRepeats(String event, long repeats) {
+			sent.add(event + " x" + repeats);
+		}
+	}
+
+	private static long hash(String event) {
+		return Coalescer.mix(Coalescer.hash(Coalescer.SEED, event));
+	}
+
+	@Test
+	public void repeatsWithinWindowAreSwallowed() {
+		Repeats listener = new Repeats();
+		Coalescer<String> coalescer = new Coalescer<String>(1000, listener);
+		assertEquals(Coalescer.SEND, coalescer.check(hash("a"), 0, "a"));
+		assertEquals(Coalescer.SWALLOW, coalescer.check(hash("a"), 10, "a"));
+		assertEquals(Coalescer.SWALLOW, coalescer.check(hash("a"), 999, "a"));
+		assertEquals(Coalescer.SEND, coalescer.check(hash("b"), 999, "b"));
+		// first one after the window carries the count
+		assertEquals(2, coalescer.check(hash("a"), 1000, "a"));
+		assertEquals(Coalescer.SWALLOW, coalescer.check(hash("a"), 1001, "a"));
+		assertTrue(listener.sent.isEmpty());
+	}
+
+	@Test
+	public void eventAfterQuietWindowIsSentAsItIs() {
+		Coalescer<String> coalescer = new Coalescer<String>(1000, new Repeats());
+		assertEquals(Coalescer.SEND, coalescer.check(hash("a"), 0, "a"));
+		assertEquals(Coalescer.SEND, coalescer.check(hash("a"), 5000, "a"));
+	}
+
+	@Test
+	public void sweepSendsCountOfClosedWindow() {
+		Repeats listener = new Repeats();
+		Coalescer<String> coalescer = new Coalescer<String>(1000, listener);
+		coalescer.check(hash("a"), 0, "a");
+		for(int i = 1; i <= 5; i++)
+			coalescer.check(hash("a"), i, "a");
+
+		coalescer.sweep(500);
+		assertTrue(listener.sent.isEmpty());
+		coalescer.sweep(1000);
+		assertEquals("[copy of a x5]", listener.sent.toString());
+
+		// count went out once, the next event starts over
+		coalescer.sweep(2000);
+		assertEquals(1, listener.sent.size());
+		assertEquals(Coalescer.SEND, coalescer.check(hash("a"), 2500, "a"));
+	}
+
+	@Test
+	public void sweepIsThrottled() {
+		Repeats listener = new Repeats();
+		Coalescer<String> coalescer = new Coalescer<String>(100, listener);
+		coalescer.check(hash("a"), 0, "a");
+		coalescer.check(hash("a"), 1, "a");
+		coalescer.sweep(50);
+		// window closed, but the previous sweep was too recent
+		coalescer.sweep(120);
+		assertTrue(listener.sent.isEmpty());
+		coalescer.sweep(150);
+		assertEquals("[copy of a x1]", listener.sent.toString());
+	}
+
+	@Test
+	public void evictedSlotSendsItsCount() {
+		Repeats listener = new Repeats();
+		// even hashes land in the same of two slots
+		Coalescer<String> coalescer = new Coalescer<String>(1000, 2, listener);
+		coalescer.check(2, 0, "a");
+		coalescer.check(2, 1, "a");
+		coalescer.check(2, 2, "a");
+		assertEquals(Coalescer.SEND, coalescer.check(4, 3, "b"));
+		assertEquals("[copy of a x2]", listener.sent.toString());
+		assertEquals(Coalescer.SWALLOW, coalescer.check(4, 4, "b"));
+		assertEquals(Coalescer.SEND, coalescer.check(2, 5, "a"));
+		assertEquals("[copy of a x2, copy of b x1]", listener.sent.toString());
+	}
+
+	@Test
+	public void countIsNeitherLostNorSentTwice() {
+		Repeats listener = new Repeats();
+		Coalescer<String> coalescer = new Coalescer<String>(1000, listener);
+		coalescer.check(hash("a"), 0, "a");
+		coalescer.check(hash("a"), 1, "a");
+		coalescer.check(hash("a"), 2, "a");
+		// event after the window takes the count, the sweep has nothing left
+		assertEquals(2, coalescer.check(hash("a"), 1500, "a"));
+		coalescer.sweep(1600);
+		assertTrue(listener.sent.isEmpty());
+		coalescer.check(hash("a"), 1700, "a");
+		coalescer.sweep(2600);
+		assertEquals("[copy of a x1]", listener.sent.toString());
+	}
+}
@@ -0,0 +1,130 @@
+package com.moonlit.logfaces.appenders.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.junit.Test;
+
+public class DeflatingOutputStreamTest {
+
+	/**
+	 * Inflates whatever the stream put out since the last call
+	 */
+	private static final class Receiver {
+		final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+		final Inflater inflater = new Inflater();
+		int consumed;
+
+		byte[] receive() throws DataFormatException {
+			byte[] data = wire.toByteArray();
+			inflater.setInput(data, consumed, data.length - consumed);
+			consumed = data.length;
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] chunk = new byte[8192];
+			int n;
+			while((n = inflater.inflate(chunk)) > 0)
+				out.write(chunk, 0, n);
+			return out.toByteArray();
+		}
+	}
+
+	private static byte[] events(int count) {
+		StringBuilder buf = new StringBuilder();
+		for(int i = 0; i < count; i++)
+			buf.append("<event logger=\"com.acme.Client\" level=\"INFO\"><m>request ").append(i).append(" done</m></event>");
+		return buf.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+
+	@Test
+	public void everyFlushIsReadableRightAway() throws Exception {
+		Receiver receiver = new Receiver();
+		DeflatingOutputStream stream = new DeflatingOutputStream(receiver.wire, Deflater.DEFAULT_COMPRESSION);
+		byte[] first = events(10);
+		stream.write(first);
+		stream.write(' ');
+		stream.flush();
+		byte[] expected = Arrays.copyOf(first, first.length + 1);
+		expected[first.length] = ' ';
+		assertArrayEquals(expected, receiver.receive());
+
+		byte[] second = events(3);
+		stream.write(second, 0, second.length);
+		stream.flush();
+		assertArrayEquals(second, receiver.receive());
+		assertFalse(receiver.inflater.finished());
+
+		stream.close();
+		assertEquals(0, receiver.receive().length);
+		assertTrue(receiver.inflater.finished());
+	}
+
+	@Test
+	public void incompressibleBatchLargerThanOutputBuffer() throws Exception {
+		Receiver receiver = new Receiver();
+		DeflatingOutputStream stream = new DeflatingOutputStream(receiver.wire, Deflater.BEST_SPEED);
+		byte[] noise = new byte[200 * 1024];
+		new Random(3).nextBytes(noise);
+		stream.write(noise);
+		stream.flush();
+		assertArrayEquals(noise, receiver.receive());
+		assertTrue(stream.getRatio() < 1.01);
+		stream.close();
+	}
+
+	@Test
+	public void countsBytesAndRatio() throws IOException {
+		ByteArrayOutputStream wire = new ByteArrayOutputStream();
+		DeflatingOutputStream stream = new DeflatingOutputStream(wire, Deflater.DEFAULT_COMPRESSION);
+		assertEquals(0, stream.getRatio(), 0);
+		assertEquals(0, stream.getMicrosPerBatch(), 0);
+		byte[] data = events(1000);
+		stream.write(data);
+		stream.flush();
+		assertEquals(data.length, stream.getBytesIn());
+		assertEquals(wire.size(), stream.getBytesOut());
+		assertTrue(stream.getRatio() > 5);
+		assertTrue(stream.getMicrosPerBatch() > 0);
+		stream.close();
+	}
+
+	@Test
+	public void closesBrokenConnection() throws IOException {
+		final boolean[] state = new boolean[2];
+		OutputStream connection = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] {(byte)b}, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				if(state[0])
+					throw new IOException("connection reset");
+			}
+
+			@Override
+			public void close() {
+				state[1] = true;
+			}
+		};
+		DeflatingOutputStream stream = new DeflatingOutputStream(connection, Deflater.DEFAULT_COMPRESSION);
+		stream.write(events(10));
+		stream.flush();
+		// peer went away, finishing the stream fails quietly and the connection is closed
+		state[0] = true;
+		stream.close();
+		assertTrue(state[1]);
+	}
+}
@@ -0,0 +1,114 @@
+package com.moonlit.logfaces.appenders.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class DispatchLoopTest {
+
+	/**
+	 * Takes everything queued, waits long otherwise, ends once stopped and drained
+	 */
+	private static final class Consumer extends DispatchLoop {
+		final MpscQueue<Integer> queue = new MpscQueue<Integer>(1024);
+		final List<Integer> taken = new ArrayList<Integer>();
+		final AtomicInteger inTurn = new AtomicInteger();
+		volatile boolean stopped, overlapped;
+
+		Consumer() {
+			queue.setConsumer(this);
+		}
+
+		@Override
+		protected long turn() {
+			if(inTurn.incrementAndGet() > 1)
+				overlapped = true;
+			try {
+				if(queue.drainTo(taken, 10) > 0)
+					return 0;
+				return stopped ? -1 : 60000;
+			}
+			finally {
+				inTurn.decrementAndGet();
+			}
+		}
+	}
+
+	@Test
+	public void offersWakeTheLoopUp() throws Exception {
+		Consumer loop = new Consumer();
+		assertFalse(loop.isAlive());
+		loop.start();
+		assertTrue(loop.isAlive());
+		for(int i = 0; i < 1000; i++) {
+			loop.queue.offer(i);
+			if(i % 100 == 0)
+				Thread.sleep(1);
+		}
+		loop.stopped = true;
+		loop.wakeUp();
+		loop.join(5000);
+		assertFalse(loop.isAlive());
+		assertFalse(loop.overlapped);
+		assertEquals(1000, loop.taken.size());
+		for(int i = 0; i < 1000; i++)
+			assertEquals(i, loop.taken.get(i).intValue());
+	}
+
+	@Test
+	public void waitEndsWithoutWakeUp() throws Exception {
+		final AtomicInteger turns = new AtomicInteger();
+		DispatchLoop loop = new DispatchLoop() {
+			@Override
+			protected long turn() {
+				return turns.incrementAndGet() < 3 ? 20 : -1;
+			}
+		};
+		long started = System.currentTimeMillis();
+		loop.start();
+		loop.join(5000);
+		assertEquals(3, turns.get());
+		assertTrue(System.currentTimeMillis() - started >= 40);
+		assertFalse(loop.isAlive());
+	}
+
+	@Test
+	public void manyLoopsShareFewThreads() throws Exception {
+		Consumer[] loops = new Consumer[200];
+		for(int i = 0; i < loops.length; i++) {
+			loops[i] = new Consumer();
+			loops[i].start();
+		}
+		int threads = Thread.activeCount();
+		for(int n = 0; n < 50; n++) {
+			for(Consumer loop : loops)
+				loop.queue.offer(n);
+		}
+		for(Consumer loop : loops) {
+			loop.stopped = true;
+			loop.wakeUp();
+		}
+		for(Consumer loop : loops) {
+			loop.join(5000);
+			assertFalse(loop.isAlive());
+			assertFalse(loop.overlapped);
+			assertEquals(50, loop.taken.size());
+		}
+		// idle loops hold no thread, the lane has a few at most besides the timer
+		assertTrue(Thread.activeCount() - threads <= SharedScheduler.DEFAULT_THREADS + 1);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void startsOnce() {
+		Consumer loop = new Consumer();
+		loop.stopped = true;
+		loop.start();
+		loop.start();
+	}
+}
@@ -0,0 +1,98 @@
+package com.moonlit.logfaces.appenders.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class EscaperTest {
+	private static final String ILLEGAL = "[\\p{Cntrl}&&[^\r\n\t]]|[\\ufffe-\\uffff]";
+	private static final char[] ALPHABET = {
+		'a', 'Z', '0', ' ', '<', '>', '&', '"', '\'', '\\', ']', '\r', '\n', '\t',
+		'\u0000', '\u0001', '\u001f', '\u007f', '\u00e9', '\u20ac', '\ufffd', '\ufffe', '\uffff'
+	};
+
+	/**
+	 * Escaping as it was done with regular expressions before the escaper
+	 */
+	private static String regexXml(String s) {
+		return s.replaceAll(ILLEGAL, "");
+	}
+
+	private static String regexJson(String s) {
+		return s.replace("\\", "\\\\").replace("\"", "\\\"").replaceAll(ILLEGAL, "");
+	}
+
+	private static String regexTags(String s) {
+		return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+	}
+
+	private static String random(Random random, int length) {
+		StringBuilder buf = new StringBuilder(length);
+		for(int i = 0; i < length; i++)
+			buf.append(ALPHABET[random.nextInt(ALPHABET.length)]);
+		return buf.toString();
+	}
+
+	@Test
+	public void matchesRegexEscaping() {
+		Random random = new Random(42);
+		for(int i = 0; i < 20000; i++) {
+			String s = random(random, random.nextInt(24));
+			assertEquals(s, regexXml(s), Escaper.CONTROL.escape(s));
+			assertEquals(s, regexJson(s), Escaper.JSON.escape(s));
+			assertEquals(s, regexTags(s), Escaper.TAGS.escape(s));
+
+			StringBuilder expected = new StringBuilder();
+			Transform.appendEscapingCDATA(expected, regexXml(s));
+			assertEquals(s, expected.toString(), Escaper.CDATA.escape(s));
+
+			// the xml layout used log4j escaping of tags, apostrophes are escaped as well now
+			String attribute = org.apache.logging.log4j.core.util.Transform.escapeHtmlTags(regexXml(s)).replace("'", "&apos;");
+			assertEquals(s, attribute, Escaper.XML_ATTRIBUTE.escape(s));
+		}
+	}
+
+	@Test
+	public void appendsSameAsEscape() {
+		Random random = new Random(7);
+		for(int i = 0; i < 1000; i++) {
+			String s = random(random, random.nextInt(24));
+			StringBuilder buf = new StringBuilder("prefix]]");
+			Escaper.CDATA.append(buf, s);
+			assertEquals("prefix]]" + Escaper.CDATA.escape(s), buf.toString());
+			buf.setLength(0);
+			Escaper.JSON.append(buf, new StringBuilder(s));
+			assertEquals(Escaper.JSON.escape(s), buf.toString());
+		}
+	}
+
+	@Test
+	public void cleanInputIsReturnedAsItIs() {
+		String clean = "nothing to escape \u00e9\r\n\t";
+		assertSame(clean, Escaper.CONTROL.escape(clean));
+		assertSame(clean, Escaper.JSON.escape(clean));
+		assertSame(clean, Escaper.CDATA.escape(clean));
+		assertNull(Escaper.JSON.escape(null));
+		assertEquals(-1, Escaper.XML_ATTRIBUTE.indexOfUnsafe(clean));
+		assertEquals(3, Escaper.XML_ATTRIBUTE.indexOfUnsafe("abc'"));
+	}
+
+	@Test
+	public void splitsEmbeddedCdataEnd() {
+		assertEquals("a]]>]]&gt;<![CDATA[b", Escaper.CDATA.escape("a]]>b"));
+		// control character between brackets and end goes away first
+		assertEquals("]]>]]&gt;<![CDATA[", Escaper.CDATA.escape("]]\u0001>"));
+		assertEquals("]>", Escaper.CDATA.escape("]>"));
+	}
+
+	@Test
+	public void utilsKeepTheirNullHandling() {
+		assertEquals("", Utils.safeXml(null));
+		assertEquals("", Utils.safeJson(null));
+		assertEquals("a\\\"b", Utils.safeJson("a\"b\u0002"));
+	}
+}
@@ -0,0 +1,105 @@
+package com.moonlit.logfaces.appenders.util;
+
+import static com.moonlit.logfaces.appenders.util.SegmentLogTest.append;
+import static com.moonlit.logfaces.appenders.util.SegmentLogTest.read;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JournalTest {
+	// room for three 12 byte records with their prefixes
+	private static final int SEGMENT_SIZE = 52;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Journal open() throws IOException {
+		return new Journal(folder.getRoot(), "journal", 1024, SEGMENT_SIZE, Journal.DEFAULT_SYNC_INTERVAL);
+	}
+
+	@Test
+	public void unconsumedRecordsSurviveReopen() throws IOException {
+		Journal journal = open();
+		append(journal, "record-00001", "record-00002", "record-00003", "record-00004", "record-00005");
+		journal.advance(1);
+		journal.close();
+
+		journal = open();
+		assertEquals(4, journal.size());
+		assertEquals("record-00002record-00003record-00004record-00005", read(journal, 10));
+		journal.close();
+	}
+
+	@Test
+	public void checkpointFollowsConsumedSegments() throws IOException {
+		Journal journal = open();
+		append(journal, "record-00001", "record-00002", "record-00003", "record-00004", "record-00005");
+		// the first segment is read completely and deleted
+		journal.advance(4);
+		journal.close();
+
+		journal = open();
+		assertEquals(1, journal.size());
+		assertEquals("record-00005", read(journal, 10));
+		append(journal, "record-00006");
+		journal.advance(1);
+		journal.close();
+
+		journal = open();
+		assertEquals("record-00006", read(journal, 10));
+		journal.advance(1);
+		journal.close();
+
+		journal = open();
+		assertTrue(journal.isEmpty());
+		journal.close();
+	}
+
+	@Test
+	public void checkpointWithoutSegmentsIsIgnored() throws IOException {
+		Journal journal = open();
+		append(journal, "record-00001", "record-00002");
+		journal.advance(1);
+		journal.close();
+
+		// segments went away, the checkpoint alone doesn't skip anything
+		for(File file : folder.getRoot().listFiles()) {
+			if(file.getName().endsWith(SegmentLog.SUFFIX))
+				assertTrue(file.delete());
+		}
+		journal = open();
+		assertTrue(journal.isEmpty());
+		append(journal, "record-00003");
+		assertEquals("record-00003", read(journal, 10));
+		journal.close();
+	}
+
+	@Test
+	public void closedJournalTakesNothing() throws IOException {
+		Journal journal = open();
+		journal.close();
+		byte[] record = new byte[12];
+		assertFalse(journal.append(record, 0, record.length));
+	}
+
+	@Test(timeout = 10000)
+	public void periodicSyncKeepsRunning() throws Exception {
+		Journal journal = open();
+		append(journal, "record-00001");
+		Thread.sleep(3 * Journal.DEFAULT_SYNC_INTERVAL);
+		append(journal, "record-00002");
+		Thread.sleep(3 * Journal.DEFAULT_SYNC_INTERVAL);
+		journal.close();
+
+		journal = open();
+		assertEquals(2, journal.size());
+		journal.close();
+	}
+}
@@ -0,0 +1,79 @@
+package com.moonlit.logfaces.appenders.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void smallValuesHaveBucketEach() {
+		for(int v = 0; v < 64; v++) {
+			assertEquals(v, LatencyHistogram.indexOf(v));
+			assertEquals(v, LatencyHistogram.valueOf(v));
+		}
+		assertEquals(64, LatencyHistogram.indexOf(64));
+		assertEquals(64, LatencyHistogram.indexOf(65));
+		assertEquals(65, LatencyHistogram.valueOf(64));
+	}
+
+	@Test
+	public void bucketHoldsValueWithinThreePercent() {
+		for(long v = 1; v < (1L << 41); v = v * 17 / 16 + 1) {
+			int index = LatencyHistogram.indexOf(v);
+			long top = LatencyHistogram.valueOf(index);
+			assertTrue(v + " above bucket top " + top, v <= top);
+			assertTrue(v + " too far from bucket top " + top, top - v <= v / 32);
+			// value just above the bucket goes into the next one
+			assertEquals(index + 1, LatencyHistogram.indexOf(top + 1));
+		}
+	}
+
+	@Test
+	public void bucketsAreContiguous() {
+		for(int i = 0; i < LatencyHistogram.BUCKETS - 1; i++) {
+			assertEquals(i, LatencyHistogram.indexOf(LatencyHistogram.valueOf(i)));
+			assertTrue(LatencyHistogram.valueOf(i) < LatencyHistogram.valueOf(i + 1));
+		}
+	}
+
+	@Test
+	public void hugeValuesLandInLastBucket() {
+		assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.indexOf(1L << 43));
+		assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.indexOf(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void percentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for(int i = 1; i <= 100; i++)
+			histogram.record(i * 1000);
+		histogram.record(-5);
+		histogram.record(1000, 0);
+		assertEquals(101, histogram.getCount());
+		assertEquals(100000, histogram.getMax());
+		assertEquals(0, histogram.getValueAtPercentile(0));
+		assertNear(50000, histogram.getValueAtPercentile(50));
+		assertNear(99000, histogram.getValueAtPercentile(99));
+		assertNear(100000, histogram.getValueAtPercentile(100));
+	}
+
+	@Test
+	public void sinceCountsOnlyNewValues() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		long[] previous = new long[LatencyHistogram.BUCKETS];
+		histogram.record(10, 5);
+		assertEquals(5, LatencyHistogram.count(histogram.since(previous)));
+		histogram.record(1000000, 3);
+		long[] delta = histogram.since(previous);
+		assertEquals(3, LatencyHistogram.count(delta));
+		assertNear(1000000, LatencyHistogram.valueAtPercentile(delta, 50));
+		assertEquals(0, LatencyHistogram.count(histogram.since(previous)));
+		assertEquals("no events", LatencyHistogram.summary(histogram.since(previous)));
+	}
+
+	private static void assertNear(long expected, long value) {
+		assertTrue(value + " not near " + expected, value >= expected && value - expected <= expected / 32);
+	}
+}
@@ -0,0 +1,143 @@
+package com.moonlit.logfaces.appenders.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class MpscQueueTest {
+
+	@Test
+	public void keepsOrderAcrossLaps() {
+		MpscQueue<Integer> queue = new MpscQueue<Integer>(4);
+		for(int lap = 0; lap < 3; lap++) {
+			for(int i = 0; i < 4; i++)
+				assertTrue(queue.offer(lap * 4 + i));
+			for(int i = 0; i < 4; i++)
+				assertEquals(Integer.valueOf(lap * 4 + i), queue.poll());
+		}
+		assertNull(queue.poll());
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void rejectsWhenFull() throws InterruptedException {
+		MpscQueue<Integer> queue = new MpscQueue<Integer>(2);
+		assertTrue(queue.offer(1));
+		assertTrue(queue.offer(2));
+		assertFalse(queue.offer(3));
+		assertFalse(queue.offer(3, 1, TimeUnit.MILLISECONDS));
+		assertEquals(2, queue.size());
+		assertEquals(0, queue.remainingCapacity());
+		assertEquals(Integer.valueOf(1), queue.peek());
+		queue.poll();
+		assertTrue(queue.offer(3));
+	}
+
+	@Test
+	public void drainsUpToMax() {
+		MpscQueue<Integer> queue = new MpscQueue<Integer>(16);
+		for(int i = 0; i < 10; i++)
+			queue.offer(i);
+		List<Integer> batch = new ArrayList<Integer>();
+		assertEquals(4, queue.drainTo(batch, 4));
+		assertEquals(6, queue.drainTo(batch));
+		for(int i = 0; i < 10; i++)
+			assertEquals(Integer.valueOf(i), batch.get(i));
+		assertEquals(0, queue.drainTo(batch));
+	}
+
+	@Test
+	public void iteratesSnapshotInOrder() {
+		MpscQueue<Integer> queue = new MpscQueue<Integer>(4);
+		for(int i = 0; i < 4; i++)
+			queue.offer(i);
+		queue.poll();
+		queue.poll();
+		// across the end of the ring
+		queue.offer(4);
+		assertEquals("[2, 3, 4]", queue.toString());
+		assertTrue(queue.contains(3));
+		assertFalse(queue.contains(1));
+
+		Iterator<Integer> it = queue.iterator();
+		queue.poll();
+		// taken out after the snapshot, still iterated
+		assertEquals(Integer.valueOf(2), it.next());
+		assertEquals(Integer.valueOf(3), it.next());
+		assertEquals(Integer.valueOf(4), it.next());
+		assertFalse(it.hasNext());
+		assertEquals("[3, 4]", queue.toString());
+	}
+
+	@Test(timeout = 5000)
+	public void wakeUpReturnsWaitingConsumer() throws Exception {
+		final MpscQueue<Integer> queue = new MpscQueue<Integer>(4);
+		final CountDownLatch waiting = new CountDownLatch(1);
+		Thread waker = new Thread() {
+			public void run() {
+				try {
+					waiting.await();
+					Thread.sleep(50);
+				}
+				catch(InterruptedException e) {
+				}
+				queue.wakeUp();
+			}
+		};
+		waker.start();
+		waiting.countDown();
+		assertNull(queue.poll(1, TimeUnit.MINUTES));
+		waker.join();
+	}
+
+	@Test(timeout = 30000)
+	public void concurrentProducersLoseNothing() throws Exception {
+		final int producers = 4;
+		final int events = 100000;
+		final MpscQueue<long[]> queue = new MpscQueue<long[]>(1024);
+		Thread[] threads = new Thread[producers];
+		for(int p = 0; p < producers; p++) {
+			final int producer = p;
+			threads[p] = new Thread() {
+				public void run() {
+					try {
+						for(int i = 0; i < events; i++)
+							queue.put(new long[] {producer, i});
+					}
+					catch(InterruptedException e) {
+					}
+				}
+			};
+			threads[p].start();
+		}
+
+		// events of each producer come out in the order it offered them
+		long[] next = new long[producers];
+		List<long[]> batch = new ArrayList<long[]>();
+		int received = 0;
+		while(received < producers * events) {
+			long[] first = queue.poll(100, TimeUnit.MILLISECONDS);
+			if(first == null)
+				continue;
+			batch.clear();
+			batch.add(first);
+			queue.drainTo(batch, 64);
+			for(long[] event : batch) {
+				assertEquals(next[(int)event[0]]++, event[1]);
+				received++;
+			}
+		}
+		for(Thread thread : threads)
+			thread.join();
+		assertTrue(queue.isEmpty());
+	}
+}
@@ -0,0 +1,140 @@
+package com.moonlit.logfaces.appenders.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.moonlit.logfaces.appenders.util.PriorityLanes.Shedding;
+
+public class PriorityLanesTest {
+
+	/**
+	 * Events are strings, lane is the first character
+	 */
+	private static PriorityLanes<String> lanes(int capacity, Shedding shedding) {
+		return new PriorityLanes<String>(capacity, 5, 2, shedding) {
+			@Override
+			protected int laneOf(String e) {
+				return e.charAt(0) - '0';
+			}
+		};
+	}
+
+	private static List<String> drain(PriorityLanes<String> queue) {
+		List<String> out = new ArrayList<String>();
+		queue.drainTo(out);
+		return out;
+	}
+
+	@Test
+	public void drainsMostSevereFirst() {
+		PriorityLanes<String> queue = lanes(10, Shedding.REJECT);
+		queue.offer("3a");
+		queue.offer("0a");
+		queue.offer("4a");
+		queue.offer("3b");
+		queue.offer("1a");
+		assertEquals("0a", queue.peek());
+		assertEquals("0a", queue.poll());
+		assertEquals("[1a, 3a, 3b, 4a]", drain(queue).toString());
+		assertNull(queue.poll());
+	}
+
+	@Test
+	public void iteratesSnapshotInTakeOrder() {
+		PriorityLanes<String> queue = lanes(10, Shedding.REJECT);
+		queue.offer("3a");
+		queue.offer("1a");
+		queue.offer("3b");
+		assertEquals("[1a, 3a, 3b]", queue.toString());
+		assertTrue(queue.contains("3b"));
+		assertFalse(queue.contains("2a"));
+
+		Iterator<String> it = queue.iterator();
+		queue.poll();
+		assertEquals("1a", it.next());
+		assertEquals(2, queue.toArray().length);
+	}
+
+	@Test
+	public void rejectDropsNothing() {
+		PriorityLanes<String> queue = lanes(2, Shedding.REJECT);
+		assertTrue(queue.offer("4a"));
+		assertTrue(queue.offer("4b"));
+		assertFalse(queue.offer("0a"));
+		assertEquals(0, queue.getShed());
+		assertEquals("[4a, 4b]", drain(queue).toString());
+	}
+
+	@Test
+	public void lowestGivesWayToMoreSevere() {
+		PriorityLanes<String> queue = lanes(3, Shedding.LOWEST);
+		queue.offer("2a");
+		queue.offer("4a");
+		queue.offer("4b");
+		assertTrue(queue.offer("0a"));
+		assertTrue(queue.offer("1a"));
+		// nothing less severe left, the new one is rejected
+		assertFalse(queue.offer("3a"));
+		assertEquals(2, queue.getShed());
+		assertEquals("[0a, 1a, 2a]", drain(queue).toString());
+	}
+
+	@Test
+	public void oldestOfSameOrLowerSeverityGivesWay() {
+		PriorityLanes<String> queue = lanes(3, Shedding.OLDEST);
+		queue.offer("3a");
+		queue.offer("1a");
+		queue.offer("4a");
+		assertTrue(queue.offer("2a"));
+		assertEquals("[1a, 2a, 4a]", drain(queue).toString());
+		queue.offer("0a");
+		queue.offer("0b");
+		queue.offer("0c");
+		// lanes more severe than the new event are left alone
+		assertFalse(queue.offer("1b"));
+		assertEquals(1, queue.getShed());
+	}
+
+	@Test(timeout = 5000)
+	public void blockHighWaitsOnlyForUrgentLanes() throws Exception {
+		final PriorityLanes<String> queue = lanes(1, Shedding.BLOCK_HIGH);
+		queue.offer("3a");
+		long started = System.nanoTime();
+		assertFalse(queue.offer("3b", 1, TimeUnit.MINUTES));
+		assertTrue(System.nanoTime() - started < TimeUnit.SECONDS.toNanos(1));
+
+		Thread consumer = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(50);
+				}
+				catch(InterruptedException e) {
+				}
+				queue.poll();
+			}
+		};
+		consumer.start();
+		assertTrue(queue.offer("0a", 1, TimeUnit.MINUTES));
+		consumer.join();
+		assertEquals("[0a]", drain(queue).toString());
+	}
+
+	@Test
+	public void parsesShedding() {
+		assertEquals(Shedding.LOWEST, Shedding.parse("drop-lowest"));
+		assertEquals(Shedding.OLDEST, Shedding.parse(" Oldest "));
+		assertEquals(Shedding.BLOCK_HIGH, Shedding.parse("block-high"));
+		assertEquals(Shedding.REJECT, Shedding.parse("reject"));
+		assertEquals(Shedding.REJECT, Shedding.parse("whatever"));
+		assertEquals(Shedding.REJECT, Shedding.parse(null));
+	}
+}
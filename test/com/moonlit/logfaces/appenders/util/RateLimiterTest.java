@@ -0,0 +1,167 @@
+package com.moonlit.logfaces.appenders.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RateLimiterTest {
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * Sweeps are throttled against nanoTime, so tests run on a clock starting now
+	 */
+	private final long start = System.nanoTime() + SECOND;
+
+	private static final class Summaries implements RateLimiter.Listener {
+		final Map<String, Long> suppressed = new LinkedHashMap<String, Long>();
+
+		@Override
+		public void onSuppressed(String logger, long events) {
+			Long before = suppressed.get(logger);
+			suppressed.put(logger, (before != null ? before : 0) + events);
+		}
+	}
+
+	private static int acquire(RateLimiter.Rule rule, String logger, int events, long now) {
+		int passed = 0;
+		for(int i = 0; i < events; i++) {
+			if(rule.tryAcquire(logger, now))
+				passed++;
+		}
+		return passed;
+	}
+
+	@Test
+	public void parsesRules() {
+		RateLimiter limiter = RateLimiter.parse("com.acme.retry=100/s; org.hibernate:DEBUG=10/m, *=5000/h");
+		assertEquals("com.acme.retry", limiter.match("com.acme.retry.Client", 0).getPrefix());
+		assertEquals("", limiter.match("com.acme.Other", 2).getPrefix());
+		// longest prefix wins, the level rule covers only debug and below
+		assertEquals("", limiter.match("org.hibernate.SQL", 2).getPrefix());
+		assertEquals("org.hibernate", limiter.match("org.hibernate.SQL", 3).getPrefix());
+		assertNull(RateLimiter.parse("com.acme=abc;;"));
+		assertNull(RateLimiter.parse(null));
+		assertNull(RateLimiter.parse("com.acme=10/s").match("org.other", 4));
+	}
+
+	@Test
+	public void parsesOnlyKnownUnits() {
+		assertEquals(SECOND / 10, RateLimiter.parse("*=10/sec").match("a", 2).interval);
+		assertEquals(60 * SECOND / 10, RateLimiter.parse("*=10/min").match("a", 2).interval);
+		assertEquals(3600 * SECOND / 10, RateLimiter.parse("*=10/hour").match("a", 2).interval);
+		// milliseconds are not minutes
+		assertNull(RateLimiter.parse("*=10/ms"));
+		assertNull(RateLimiter.parse("*=10/millis"));
+		assertNull(RateLimiter.parse("*=10/day"));
+		assertEquals(SECOND / 10, RateLimiter.parse("*=10/ms; *=10/s").match("a", 2).interval);
+	}
+
+	@Test
+	public void prefixEndsAtPackageBoundary() {
+		RateLimiter limiter = RateLimiter.parse("com.acme=10/s");
+		assertNotNull(limiter.match("com.acme", 2));
+		assertNotNull(limiter.match("com.acme.Client", 2));
+		assertNull(limiter.match("com.acmeother.Client", 2));
+		assertNull(limiter.match("com.acm", 2));
+		// any logger, including the root
+		limiter = RateLimiter.parse("*=10/s");
+		assertNotNull(limiter.match("", 2));
+		assertNotNull(limiter.match(null, 2));
+		assertNotNull(limiter.match("com.acme", 2));
+	}
+
+	@Test
+	public void bucketHoldsSecondOfEvents() {
+		RateLimiter.Rule rule = RateLimiter.parse("*=10/s").match("a", 2);
+		assertEquals(10, acquire(rule, "a", 20, start));
+		// one token comes back every tenth of a second
+		assertEquals(1, acquire(rule, "a", 5, start + SECOND / 10));
+		assertEquals(10, acquire(rule, "a", 20, start + 3 * SECOND));
+	}
+
+	@Test
+	public void loggersOfRuleDontShareBucket() {
+		RateLimiter limiter = RateLimiter.parse("com.acme=10/s");
+		RateLimiter.Rule rule = limiter.match("com.acme.a", 2);
+		assertSame(rule, limiter.match("com.acme.b", 2));
+		assertEquals(10, acquire(rule, "com.acme.a", 100, start));
+		// runaway logger doesn't silence the quiet one
+		assertEquals(10, acquire(rule, "com.acme.b", 10, start));
+		assertFalse(rule.tryAcquire("com.acme.b", start));
+	}
+
+	@Test
+	public void loggersBeyondBoundShareOneBucket() {
+		RateLimiter limiter = RateLimiter.parse("*=1/s");
+		RateLimiter.Rule rule = limiter.match("any", 2);
+		for(int i = 0; i < RateLimiter.MAX_LOGGERS; i++)
+			assertTrue(rule.tryAcquire("logger" + i, start));
+		assertTrue(rule.tryAcquire("late1", start));
+		assertFalse(rule.tryAcquire("late2", start));
+
+		Summaries summaries = new Summaries();
+		limiter.sweep(start + 2 * SECOND, summaries);
+		assertEquals(Long.valueOf(1), summaries.suppressed.get("*"));
+	}
+
+	@Test
+	public void summaryComesWhenBucketFillsUp() {
+		RateLimiter limiter = RateLimiter.parse("*=10/s");
+		RateLimiter.Rule rule = limiter.match("a", 2);
+		acquire(rule, "a", 25, start);
+		acquire(rule, "b", 12, start);
+		Summaries summaries = new Summaries();
+
+		// still suppressing, nothing to report yet
+		limiter.sweep(start + SECOND / 2, summaries);
+		assertTrue(summaries.suppressed.isEmpty());
+
+		// loggers went quiet, counts come without another event
+		limiter.sweep(start + 2 * SECOND, summaries);
+		assertEquals(Long.valueOf(15), summaries.suppressed.get("a"));
+		assertEquals(Long.valueOf(2), summaries.suppressed.get("b"));
+
+		summaries.suppressed.clear();
+		limiter.sweep(start + 4 * SECOND, summaries);
+		assertTrue(summaries.suppressed.isEmpty());
+	}
+
+	@Test
+	public void longSuppressionIsReportedPeriodically() {
+		RateLimiter limiter = RateLimiter.parse("*=1/s");
+		RateLimiter.Rule rule = limiter.match("a", 2);
+		Summaries summaries = new Summaries();
+		long suppressed = 0;
+		// logger keeps the bucket empty, summaries still come every report interval
+		for(long now = start; now - start <= RateLimiter.REPORT_INTERVAL; now += SECOND / 4) {
+			suppressed += 10 - acquire(rule, "a", 10, now);
+			limiter.sweep(now, summaries);
+		}
+		assertNotNull(summaries.suppressed.get("a"));
+		assertTrue(summaries.suppressed.get("a") > 0);
+		assertTrue(summaries.suppressed.get("a") <= suppressed);
+	}
+
+	@Test
+	public void sweepIsThrottled() {
+		RateLimiter limiter = RateLimiter.parse("*=100/s");
+		RateLimiter.Rule rule = limiter.match("a", 2);
+		Summaries summaries = new Summaries();
+		acquire(rule, "a", 101, start);
+		limiter.sweep(start + SECOND - 1, summaries);
+		// bucket is full now, but the previous sweep was too recent
+		limiter.sweep(start + SECOND + RateLimiter.SWEEP_INTERVAL / 2, summaries);
+		assertTrue(summaries.suppressed.isEmpty());
+		limiter.sweep(start + SECOND + RateLimiter.SWEEP_INTERVAL, summaries);
+		assertEquals(Long.valueOf(1), summaries.suppressed.get("a"));
+	}
+}
@@ -0,0 +1,165 @@
+package com.moonlit.logfaces.appenders.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SegmentLogTest {
+	// room for three 12 byte records with their prefixes
+	private static final int SEGMENT_SIZE = 52;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	static void append(SegmentLog log, String... records) throws IOException {
+		for(String record : records) {
+			byte[] b = record.getBytes(StandardCharsets.US_ASCII);
+			assertTrue(log.append(b, 0, b.length));
+		}
+	}
+
+	static String read(SegmentLog log, int maxRecords) {
+		EventBuffer out = new EventBuffer(16);
+		log.read(out, maxRecords, Integer.MAX_VALUE);
+		return new String(out.array(), 0, out.size(), StandardCharsets.US_ASCII);
+	}
+
+	private int segmentFiles() {
+		return folder.getRoot().list().length;
+	}
+
+	@Test
+	public void readsOldestFirstWithoutConsuming() throws IOException {
+		SegmentLog log = new SegmentLog(folder.getRoot(), "spill", 1024, SEGMENT_SIZE, false);
+		append(log, "record-00001", "record-00002", "record-00003", "record-00004");
+		assertEquals(4, log.size());
+		assertEquals("record-00001record-00002", read(log, 2));
+		assertEquals("record-00001record-00002", read(log, 2));
+		// reading goes on into the next segment
+		assertEquals("record-00001record-00002record-00003record-00004", read(log, 10));
+
+		log.advance(3);
+		assertEquals(1, log.size());
+		assertEquals("record-00004", read(log, 10));
+		log.advance(1);
+		assertTrue(log.isEmpty());
+		assertEquals("", read(log, 10));
+		log.close();
+	}
+
+	@Test
+	public void readStopsAtMaxBytes() throws IOException {
+		SegmentLog log = new SegmentLog(folder.getRoot(), "spill", 1024, SEGMENT_SIZE, false);
+		append(log, "record-00001", "record-00002", "record-00003");
+		EventBuffer out = new EventBuffer();
+		assertEquals(2, log.read(out, 10, 30));
+		out.reset();
+		// the first record is read whatever its size
+		assertEquals(1, log.read(out, 10, 1));
+		log.close();
+	}
+
+	@Test
+	public void consumedSegmentsAreDeleted() throws IOException {
+		SegmentLog log = new SegmentLog(folder.getRoot(), "spill", 1024, SEGMENT_SIZE, false);
+		append(log, "record-00001", "record-00002", "record-00003", "record-00004", "record-00005");
+		assertEquals(2, segmentFiles());
+		log.advance(3);
+		assertEquals(1, segmentFiles());
+		log.close();
+	}
+
+	@Test
+	public void oldestSegmentIsDroppedWhenFull() throws IOException {
+		// two segments at most
+		SegmentLog log = new SegmentLog(folder.getRoot(), "spill", 2 * SEGMENT_SIZE, SEGMENT_SIZE, false);
+		for(int i = 1; i <= 7; i++)
+			append(log, String.format("record-%05d", i));
+		assertEquals(3, log.getDropped());
+		assertEquals(4, log.size());
+		assertEquals(2, segmentFiles());
+		assertEquals("record-00004", read(log, 1));
+		// doesn't fit into a segment at all
+		assertFalse(log.append(new byte[SEGMENT_SIZE], 0, SEGMENT_SIZE));
+		log.close();
+	}
+
+	@Test
+	public void rollDuringReadDoesntConsumeNextSegment() throws IOException {
+		SegmentLog log = new SegmentLog(folder.getRoot(), "spill", 2 * SEGMENT_SIZE, SEGMENT_SIZE, false);
+		append(log, "record-00001", "record-00002", "record-00003");
+		assertEquals("record-00001record-00002", read(log, 2));
+		// producer drops the segment being read before the reader advances
+		append(log, "record-00004", "record-00005", "record-00006", "record-00007");
+		assertEquals(3, log.getDropped());
+		log.advance(2);
+		assertEquals(4, log.size());
+		assertEquals("record-00004", read(log, 1));
+		log.close();
+	}
+
+	@Test
+	public void rollDuringReadAcrossSegments() throws IOException {
+		SegmentLog log = new SegmentLog(folder.getRoot(), "spill", 2 * SEGMENT_SIZE, SEGMENT_SIZE, false);
+		append(log, "record-00001", "record-00002", "record-00003", "record-00004");
+		assertEquals("record-00001record-00002record-00003record-00004", read(log, 10));
+		append(log, "record-00005", "record-00006", "record-00007");
+		// only the record read from the segment still there is consumed
+		log.advance(4);
+		assertEquals(3, log.size());
+		assertEquals("record-00005record-00006record-00007", read(log, 10));
+		log.close();
+	}
+
+	@Test
+	public void recoversExistingSegments() throws IOException {
+		SegmentLog log = new SegmentLog(folder.getRoot(), "spill", 1024, SEGMENT_SIZE, false);
+		append(log, "record-00001", "record-00002", "record-00003", "record-00004");
+		log.close();
+
+		log = new SegmentLog(folder.getRoot(), "spill", 1024, SEGMENT_SIZE, true);
+		assertEquals(4, log.size());
+		assertEquals("record-00001record-00002record-00003record-00004", read(log, 10));
+		// recovered segments are sealed, new records go to a new one
+		append(log, "record-00005");
+		assertEquals(3, segmentFiles());
+		assertEquals(5, log.size());
+		log.close();
+
+		log = new SegmentLog(folder.getRoot(), "spill", 1024, SEGMENT_SIZE, false);
+		assertTrue(log.isEmpty());
+		assertEquals(0, segmentFiles());
+		log.close();
+	}
+
+	@Test
+	public void recoveryEndsAtRecordCutShort() throws IOException {
+		SegmentLog log = new SegmentLog(folder.getRoot(), "spill", 1024, SEGMENT_SIZE, false);
+		append(log, "record-00001", "record-00002");
+		log.close();
+
+		// length of the second record runs past the end of the segment, as after a crash
+		RandomAccessFile file = new RandomAccessFile(new File(folder.getRoot(), "spill-0.log"), "rw");
+		try {
+			file.seek(16);
+			file.writeInt(40);
+		}
+		finally {
+			file.close();
+		}
+
+		log = new SegmentLog(folder.getRoot(), "spill", 1024, SEGMENT_SIZE, true);
+		assertEquals(1, log.size());
+		assertEquals("record-00001", read(log, 10));
+		log.close();
+	}
+}